@@ -0,0 +1,352 @@
+package swarms;
+
+import math.geom2d.Point2D;
+import math.geom2d.line.LineSegment2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the simulation's hot paths: building rooms, computing distances and gradients, updating agents, and
+ * computing social forces. Each nested class is a group of benchmarks sharing the same parameters; every benchmark
+ * returns its result, or passes it to a Blackhole, so that the JIT can't eliminate the work being timed.
+ *
+ * Usage: java swarms.Benchmarks [JMH options], e.g. "-rf json -rff results.json" to save the results in JMH's JSON
+ * format, or a regex to run only some benchmarks (see "-h" for all options)
+ */
+public class Benchmarks {
+
+  // Bounds of the GATES8 room, as built by SwarmSim
+  private static final Point2D gates8Min = new Point2D(-1.0, -11.0), gates8Max = new Point2D(60.0, 51.0);
+  private static final long largeCacheBytes = 256L * 1024 * 1024;
+  private static final int numPositions = 1024; // Number of random positions over which point queries cycle
+  private static final int numWarmSinks = 16;   // Number of distinct sinks queried with a warm cache
+  private static final int numLandmarks = 16;   // Number of landmarks of rooms using a LandmarkOracle
+  private static final int quadtreeLeafSize = 8; // Largest side of the leaves of rooms using a QuadtreeGraph
+  private static final Scenario defaults = new Scenario(new HashMap<>()); // Default parameters of the simulation
+  private static final Point2D agentMin = SwarmSim.getAgentMin(SwarmSim.RoomType.GATES8);
+
+  public static void main(String[] args) throws Exception {
+    org.openjdk.jmh.Main.main(args);
+  }
+
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Fork(2)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 1)
+  public static class Rooms {
+
+    @Param({"1.0", "0.6", "0.4"})
+    public double spatialResolution;
+
+    @Benchmark
+    public Room construct() {
+      return new Room(gates8Min, gates8Max, spatialResolution, SwarmSim.RoomType.GATES8, largeCacheBytes);
+    }
+  }
+
+  /**
+   * Adds a long horizontal, vertical, and diagonal wall to a new room in each operation; building the room isn't timed
+   */
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Fork(2)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 1)
+  public static class AddWall {
+
+    @Param({"1.0", "0.6", "0.4"})
+    public double spatialResolution;
+
+    private Room room;
+
+    @Setup(Level.Invocation)
+    public void buildEmptyRoom() {
+      room = new Room(gates8Min, gates8Max, spatialResolution, SwarmSim.RoomType.GATES8, largeCacheBytes);
+    }
+
+    @Benchmark
+    public Room addWall() {
+      room.addWall(new LineSegment2D(5.001, 24.999, 29.999, 24.999));
+      room.addWall(new LineSegment2D(-0.001, 0.0, -0.001, 50.0));
+      room.addWall(new LineSegment2D(38.001, 29.999, 32.001, 5.001));
+      return room;
+    }
+  }
+
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Fork(2)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 1)
+  public static class BuildRoom {
+
+    @Param({"1.0", "0.6", "0.4"})
+    public double spatialResolution;
+
+    @Param({"BASIC", "GATES8"})
+    public String roomType; // Name of a SwarmSim.RoomType, which the code JMH generates can't access
+
+    @Benchmark
+    public Room buildRoom() {
+      return SwarmSim.buildRoom(SwarmSim.RoomType.valueOf(roomType), spatialResolution, largeCacheBytes, 0.1, false);
+    }
+  }
+
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Fork(2)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 1)
+  public static class ExitDistances {
+
+    @Param({"BASIC", "GATES8"})
+    public String roomType; // Name of a SwarmSim.RoomType
+
+    private Room room;
+
+    @Setup
+    public void setup() {
+      room = SwarmSim.buildRoom(SwarmSim.RoomType.valueOf(roomType), defaults.spatialResolution, largeCacheBytes, 0.1,
+                                false);
+    }
+
+    @Benchmark
+    public Room updateExitDistances() {
+      room.updateExitDistances();
+      return room;
+    }
+  }
+
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Fork(2)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 1)
+  public static class Gradient {
+
+    private Room room;
+    private double[][] positions;
+    private final double[] gradient = new double[2];
+    private int next = 0; // Index of the next query's position
+
+    @Setup
+    public void setup() {
+      room = buildGates8(largeCacheBytes);
+      positions = getRandomPositions(numPositions);
+    }
+
+    @Benchmark
+    public void getGradient(Blackhole blackhole) {
+      double[] position = positions[next];
+      next = (next + 1) % numPositions;
+      room.getGradient(position[0], position[1], gradient);
+      blackhole.consume(gradient[0]);
+      blackhole.consume(gradient[1]);
+    }
+  }
+
+  /**
+   * Queries between two agents. With a cold cache, (almost) every query computes a new distance field; with a warm
+   * cache, queries only go to a few sinks, whose fields are all cached. With landmarks, there are no distance fields,
+   * and queries to any sink are answered by a LandmarkOracle. With a quadtree, the cache is cold, but fields are
+   * computed over its leaves.
+   */
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Fork(2)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 1)
+  public static class Between {
+
+    @Param({"cold", "warm", "landmarks", "quadtree"})
+    public String cache;
+
+    private Room room;
+    private double[][] positions;
+    private int numSinks;
+    private final double[] gradient = new double[2];
+    private int next = 0; // Index of the next query
+
+    @Setup
+    public void setup() {
+      boolean warm = cache.equals("warm");
+      room = buildGates8(warm ? largeCacheBytes : 0L);
+      if (cache.equals("landmarks")) { room.useLandmarks(numLandmarks); }
+      if (cache.equals("quadtree")) { room.useQuadtree(quadtreeLeafSize); }
+      positions = getRandomPositions(numPositions);
+      numSinks = warm ? numWarmSinks : numPositions;
+    }
+
+    @Benchmark
+    public void getGradientBetween(Blackhole blackhole) {
+      double[] source = positions[next % numPositions], sink = positions[(7 * next + 1) % numSinks];
+      next = (next + 1) % (numPositions * numSinks);
+      room.getGradientBetween(source[0], source[1], sink[0], sink[1], gradient);
+      blackhole.consume(gradient[0]);
+      blackhole.consume(gradient[1]);
+    }
+
+    @Benchmark
+    public double getDistanceBetween() {
+      double[] source = positions[next % numPositions], sink = positions[(7 * next + 1) % numSinks];
+      next = (next + 1) % (numPositions * numSinks);
+      return room.getDistanceBetween(source[0], source[1], sink[0], sink[1]);
+    }
+  }
+
+  /**
+   * Updates (i.e., accelerates and moves) a single agent per operation; agents are updated round-robin, and agents that
+   * leave the room are replaced
+   */
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Fork(2)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 1)
+  public static class AgentUpdate {
+
+    @Param({"300"})
+    public int agents;
+
+    private Room room;
+    private AgentStore store;
+    private final double[] scratch = new double[2];
+    private double time = 0.0;
+    private int next = 0; // Next agent to update
+
+    @Setup
+    public void setup() {
+      room = buildGates8(largeCacheBytes);
+      store = new AgentStore(agents, defaults.seed, defaults.frameRate, defaults.maxMove, new MetricsRegistry());
+      for (int i = 0; i < agents; i++) { store.initialize(i, agentMin, SwarmSim.agentMax, SwarmSim.RoomType.GATES8); }
+    }
+
+    @Benchmark
+    public void update(Blackhole blackhole) {
+      int agent = next;
+      if (agent == 0) { time += 0.01; }
+      next = (agent + 1) % agents;
+      store.update(agent, time, room, scratch);
+      if (!room.isInsideBoundary(store.posX[agent], store.posY[agent])
+          || room.atExit(store.posX[agent], store.posY[agent], 2.2)) {
+        store.initialize(agent, agentMin, SwarmSim.agentMax, SwarmSim.RoomType.GATES8);
+        store.tLastUpdate[agent] = time;
+      }
+      blackhole.consume(store.posX[agent]);
+      blackhole.consume(store.posY[agent]);
+    }
+  }
+
+  /**
+   * Computes the social forces due to every agent, as if every agent had just been updated, in each operation; agents
+   * don't move, so neighbor lists (if any) are only built once. Forces only act between nearby agents (pushing and
+   * orientation).
+   */
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Fork(2)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 1)
+  public static class SocialForces {
+
+    @Param({"300", "3000", "30000"})
+    public int agents;
+
+    @Param({"0.0", "0.5"})
+    public String skin;
+
+    private Simulation simulation;
+
+    @Setup
+    public void setup() {
+      simulation = buildSimulation(agents, "NO_SPEED", skin);
+    }
+
+    @Benchmark
+    public Simulation updateSocialForces() {
+      for (int agent = 0; agent < agents; agent++) { simulation.updateSocialForces(agent); }
+      return simulation; // The forces are added to the agents' social forces, in the simulation's AgentStore
+    }
+  }
+
+  /**
+   * As SocialForces, but with speed attraction as well, which acts between all pairs of agents, so a sweep is
+   * quadratic; 30k agents would take minutes
+   */
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Fork(2)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 1)
+  public static class FullSocialForces {
+
+    @Param({"300", "3000"})
+    public int agents;
+
+    private Simulation simulation;
+
+    @Setup
+    public void setup() {
+      simulation = buildSimulation(agents, "FULL", "0.0");
+    }
+
+    @Benchmark
+    public Simulation updateSocialForces() {
+      for (int agent = 0; agent < agents; agent++) { simulation.updateSocialForces(agent); }
+      return simulation;
+    }
+  }
+
+  private static Simulation buildSimulation(int numAgents, String communication, String neighborSkin) {
+    Map<String, String> values = new HashMap<>();
+    values.put("numAgents", Integer.toString(numAgents));
+    values.put("communication", communication);
+    values.put("neighborSkin", neighborSkin);
+    Simulation simulation = new Simulation(buildGates8(largeCacheBytes), new Scenario(values), 0);
+    simulation.initializeAgents();
+    return simulation;
+  }
+
+  private static Room buildGates8(long distanceCacheBytes) {
+    return SwarmSim.buildRoom(SwarmSim.RoomType.GATES8, defaults.spatialResolution, distanceCacheBytes, 0.1, false);
+  }
+
+  /**
+   * @return valid starting positions of agents in the GATES8 room, as {x, y} pairs
+   */
+  private static double[][] getRandomPositions(int numPositions) {
+    AgentStore agents = new AgentStore(numPositions, defaults.seed, defaults.frameRate, defaults.maxMove, new MetricsRegistry());
+    double[][] positions = new double[numPositions][];
+    for (int i = 0; i < numPositions; i++) {
+      agents.initialize(i, agentMin, SwarmSim.agentMax, SwarmSim.RoomType.GATES8);
+      positions[i] = new double[] {agents.posX[i], agents.posY[i]};
+    }
+    return positions;
+  }
+
+}
@@ -0,0 +1,16 @@
+package swarms;
+
+import java.util.Comparator;
+
+/**
+ * Orders agents by the time of their next update, breaking ties by ID, so that the order is deterministic
+ */
+class AgentComparator implements Comparator<Agent> {
+
+  @Override
+  public int compare(Agent a1, Agent a2) {
+    int byTime = Double.compare(a1.getNextUpdateTime(), a2.getNextUpdateTime());
+    return (byTime != 0) ? byTime : Integer.compare(a1.getID(), a2.getID()); // break ties by ID
+  }
+
+}
@@ -0,0 +1,147 @@
+package swarms;
+
+import math.geom2d.Point2D;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A uniform grid over agent positions, used to find nearby agents without scanning every agent in the room.
+ * Each agent is stored in the cell containing its position. Cells are intrusive doubly-linked lists over agent IDs,
+ * so moving an agent from one cell to another is O(1) and allocates nothing.
+ *
+ * Positions outside the grid are clamped to the nearest border cell, so agents that are about to leave the room can
+ * still be found.
+ *
+ * Queries list agents in the order of the cells' lists, which depends on the order of past updates; interactions are
+ * summed in that order, so a Checkpoint saves the lists as they are (see write()), rather than re-inserting agents.
+ */
+class AgentGrid {
+
+  private final double minX, minY;
+  private final double cellSize;
+  private final int nCellsX, nCellsY;
+  private final int[] head;       // First agent in each cell, or -1 if the cell is empty
+  private final int[] next, prev; // Next and previous agents in the same cell, or -1
+  private final int[] cellOf;     // Cell currently containing each agent, or -1 if the agent is not in the grid
+
+  /**
+   * @param min bottom left corner of the region covered by the grid
+   * @param max top right corner of the region covered by the grid
+   * @param cellSize side length of each (square) cell; queries are cheapest when this is close to the query range
+   * @param numAgents number of agents, whose IDs must lie in [0, numAgents)
+   */
+  AgentGrid(Point2D min, Point2D max, double cellSize, int numAgents) {
+    this.minX = min.x();
+    this.minY = min.y();
+    this.cellSize = cellSize;
+    nCellsX = 1 + (int) ((max.x() - min.x()) / cellSize);
+    nCellsY = 1 + (int) ((max.y() - min.y()) / cellSize);
+    head = new int[nCellsX * nCellsY];
+    Arrays.fill(head, -1);
+    next = new int[numAgents];
+    prev = new int[numAgents];
+    cellOf = new int[numAgents];
+    Arrays.fill(cellOf, -1);
+  }
+
+  /**
+   * Inserts the agent into the grid, or moves it to the cell containing its current position if it is already there.
+   * This should be called whenever the agent moves.
+   * @param id ID of the agent whose position to (re-)index
+   * @param x current x-coordinate of the agent
+   * @param y current y-coordinate of the agent
+   */
+  void update(int id, double x, double y) {
+    int cell = getCellIdx(x, y);
+    if (cellOf[id] == cell) { return; }
+    if (cellOf[id] >= 0) { unlink(id); }
+    prev[id] = -1;
+    next[id] = head[cell];
+    if (head[cell] >= 0) { prev[head[cell]] = id; }
+    head[cell] = id;
+    cellOf[id] = cell;
+  }
+
+  /**
+   * Removes the agent from the grid (e.g., because it has left the room); does nothing if the agent is not in the grid
+   * @param id ID of the agent to remove
+   */
+  void remove(int id) {
+    if (cellOf[id] >= 0) { unlink(id); }
+  }
+
+  /**
+   * Removes all agents from the grid, e.g., before re-indexing a different set of agents
+   */
+  void clear() {
+    Arrays.fill(head, -1);
+    Arrays.fill(cellOf, -1);
+  }
+
+  private void unlink(int id) {
+    if (prev[id] >= 0) {
+      next[prev[id]] = next[id];
+    } else {
+      head[cellOf[id]] = next[id];
+    }
+    if (next[id] >= 0) { prev[next[id]] = prev[id]; }
+    cellOf[id] = -1;
+  }
+
+  /**
+   * Collects the IDs of all agents in cells within range of (x, y). Since only cells are checked, the result may also
+   * include agents farther away than range, so callers must still check distances themselves.
+   * @param x x-coordinate of the center of the query
+   * @param y y-coordinate of the center of the query
+   * @param range distance within which all agents are guaranteed to be returned
+   * @param buffer array (of length at least numAgents) into which to write agent IDs
+   * @return number of agent IDs written into buffer
+   */
+  int getNeighbors(double x, double y, double range, int[] buffer) {
+    int loX = clamp((int) Math.floor((x - range - minX) / cellSize), nCellsX);
+    int hiX = clamp((int) Math.floor((x + range - minX) / cellSize), nCellsX);
+    int loY = clamp((int) Math.floor((y - range - minY) / cellSize), nCellsY);
+    int hiY = clamp((int) Math.floor((y + range - minY) / cellSize), nCellsY);
+    int numFound = 0;
+    for (int i = loX; i <= hiX; i++) {
+      for (int j = loY; j <= hiY; j++) {
+        for (int id = head[i * nCellsY + j]; id >= 0; id = next[id]) {
+          buffer[numFound++] = id;
+        }
+      }
+    }
+    return numFound;
+  }
+
+  /**
+   * Writes the grid's lists of agents, for a Checkpoint
+   */
+  void write(DataOutputStream out) throws IOException {
+    for (int[] array : new int[][] {head, next, prev, cellOf}) {
+      for (int value : array) { out.writeInt(value); }
+    }
+  }
+
+  /**
+   * Restores the lists written by write(), into a grid with the same cells and number of agents
+   */
+  void read(DataInputStream in) throws IOException {
+    for (int[] array : new int[][] {head, next, prev, cellOf}) {
+      for (int i = 0; i < array.length; i++) { array[i] = in.readInt(); }
+    }
+  }
+
+  private int getCellIdx(double x, double y) {
+    int i = clamp((int) Math.floor((x - minX) / cellSize), nCellsX);
+    int j = clamp((int) Math.floor((y - minY) / cellSize), nCellsY);
+    return i * nCellsY + j;
+  }
+
+  private static int clamp(int idx, int numCells) {
+    return Math.max(0, Math.min(numCells - 1, idx));
+  }
+
+}
@@ -0,0 +1,27 @@
+package swarms;
+
+/**
+ * Orders agents by the simulation time at which each next needs to be updated (AgentStore.nextUpdateTime), for the
+ * event-driven engine. Agents with equal update times are polled in order of ID, so runs don't depend on the
+ * scheduler's internal layout.
+ */
+interface AgentScheduler {
+
+  /**
+   * Schedules the agent at its current nextUpdateTime. An agent may only be scheduled once at a time, and never
+   * earlier than the time of the most recently polled agent.
+   * @param agent ID of the agent to schedule
+   */
+  void add(int agent);
+
+  /**
+   * Removes and returns the agent with the earliest update time
+   * @return ID of the agent to update next
+   */
+  int poll();
+
+  boolean isEmpty();
+
+  int size();
+
+}
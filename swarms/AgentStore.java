@@ -0,0 +1,284 @@
+package swarms;
+
+import math.geom2d.Point2D;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the state of all agents in parallel primitive arrays (structure-of-arrays), indexed by agent ID.
+ * Integration and interactions read and write these arrays directly, so updating an agent allocates no objects.
+ * Agent provides an object view of a single agent for code that doesn't need to be fast (e.g., plotting).
+ *
+ * Each agent draws its random numbers from its own SplitMix64 stream, split off the store's seed, so a run is
+ * determined by its seed, and its whole state (including that of the random number generators) can be saved with
+ * write() and restored with read().
+ */
+class AgentStore {
+
+  // Constant parameters across all agents
+  private static final double myForceWeight = 10.0;
+  // magnitude of noise added to the gradient, relative to size magnitude of gradient
+  private static final double noiseFactor = 0.8;
+  // Scale by which to reduce velocity when colliding with a wall
+  private static final double wallFrictionFactor = 20.0;
+  // Largest possible agent radius; this bounds the distance at which agents can collide
+  static final double maxRadius = 0.5;
+
+  // Time-varying agent parameters
+  final double[] posX, posY;                  // agent's coordinates
+  final double[] velX, velY;                  // agent's velocity (in m/s)
+  final double[] socialForceX, socialForceY;  // sum of social forces on agent (in Newtons)
+  final double[] myForceX, myForceY;          // agent's own force (in Newtons)
+  final double[] tLastUpdate;                 // Simulation time at which agent's update() function was last called
+  final double[] nextUpdateTime;              // Simulation time at which agent's update() function next needs to be called
+  final boolean[] exited;                     // true if and only if the agent has left the room
+
+  // Constant agent-specific parameters
+  final double[] mass, radius, maxSpeed;
+
+  // State of each agent's random number generator
+  private final long[] randomStates;         // SplitMix64 states
+  private final double[] spareGaussians;     // Second of the last pair of normal deviates drawn, if not yet used
+  private final boolean[] hasSpareGaussian;
+
+  // Simulation settings relevant for agents
+  private final double frameRate, maxMove;
+  private final int numAgents;
+  private final LongAdder numWallCollisionTests; // Number of moves checked for collisions with walls
+
+  /**
+   * @param numAgents number of agents to store
+   * @param seed seed from which each agent's stream of random numbers is split
+   * @param frameRate time between saved frames; agents are updated at least this often
+   * @param maxMove maximum distance an agent can move before needing to be updated
+   * @param metrics registry in which to count wall-collision tests
+   */
+  AgentStore(int numAgents, long seed, double frameRate, double maxMove, MetricsRegistry metrics) {
+    this.numAgents = numAgents;
+    this.frameRate = frameRate;
+    this.maxMove = maxMove;
+    posX = new double[numAgents];
+    posY = new double[numAgents];
+    velX = new double[numAgents];
+    velY = new double[numAgents];
+    socialForceX = new double[numAgents];
+    socialForceY = new double[numAgents];
+    myForceX = new double[numAgents];
+    myForceY = new double[numAgents];
+    tLastUpdate = new double[numAgents];
+    nextUpdateTime = new double[numAgents];
+    exited = new boolean[numAgents];
+    mass = new double[numAgents];
+    radius = new double[numAgents];
+    maxSpeed = new double[numAgents];
+    randomStates = new long[numAgents];
+    for (int agent = 0; agent < numAgents; agent++) { randomStates[agent] = SplitMix64.split(seed, agent); }
+    spareGaussians = new double[numAgents];
+    hasSpareGaussian = new boolean[numAgents];
+    numWallCollisionTests = metrics.counter("agents.wallCollisionTests");
+  }
+
+  int size() {
+    return numAgents;
+  }
+
+  /**
+   * Gives an agent random physical parameters, a random valid starting position, and a small random velocity
+   * @param agent ID of the agent to initialize
+   * @param min bottom left of the rectangle in which the agent starts
+   * @param max top right of the rectangle in which the agent starts
+   * @param roomType floor plan of the room, which determines which starting positions are valid
+   */
+  void initialize(int agent, Point2D min, Point2D max, SwarmSim.RoomType roomType) {
+
+    // These are somewhat arbitrary ranges
+    mass[agent] = (65.0 + 10.0 * nextDouble(agent))/100.0; // 13-15
+    radius[agent] = maxRadius - (0.1 * nextDouble(agent)); // 0.4-0.5
+    maxSpeed[agent] = 1.0 + 2.0 * nextDouble(agent); // 1-3
+
+    // Uniformly random valid initial position; continue generating positions until one is valid
+    Point2D pos;
+    do {
+      pos = new Point2D(min.x() + (max.x() - min.x()) * nextDouble(agent), min.y() + (max.y() - min.y()) * nextDouble(agent));
+    } while (!SwarmSim.startingPositionIsValid(roomType, pos));
+    posX[agent] = pos.x();
+    posY[agent] = pos.y();
+
+    // Uniformly random valid initial velocity within circle of radius maxSpeed
+    double speed = maxSpeed[agent] * nextDouble(agent) / 10.0;
+    double angle = 2.0 * Math.PI * nextDouble(agent);
+    velX[agent] = speed * Math.cos(angle);
+    velY[agent] = speed * Math.sin(angle);
+
+    socialForceX[agent] = 0.0;
+    socialForceY[agent] = 0.0;
+    myForceX[agent] = 0.0;
+    myForceY[agent] = 0.0;
+    tLastUpdate[agent] = 0.0;
+    exited[agent] = false;
+    nextUpdateTime[agent] = Math.min(maxMove / getSpeed(agent), frameRate * nextDouble(agent));
+  }
+
+  private double nextDouble(int agent) {
+    return SplitMix64.nextDouble(randomStates, agent);
+  }
+
+  /**
+   * Draws a standard normal deviate from the agent's stream. Deviates are generated in pairs (by the Box-Muller
+   * transform), so every other call just returns the second deviate of the last pair.
+   */
+  private double nextGaussian(int agent) {
+    if (hasSpareGaussian[agent]) {
+      hasSpareGaussian[agent] = false;
+      return spareGaussians[agent];
+    }
+    double magnitude = Math.sqrt(-2.0 * Math.log(1.0 - nextDouble(agent))); // 1.0 - nextDouble() is never 0.0
+    double angle = 2.0 * Math.PI * nextDouble(agent);
+    spareGaussians[agent] = magnitude * Math.sin(angle);
+    hasSpareGaussian[agent] = true;
+    return magnitude * Math.cos(angle);
+  }
+
+  /**
+   * Moves and accelerates the agent, updating its next update time.
+   * It is crucial for synchrony that the agent is removed from (and, if still in the room, re-inserted into) the
+   * update schedule whenever update() is called!
+   * @param agent ID of the agent to update
+   * @param t current simulation time
+   * @param room room in which the agent moves
+   * @param scratch length-2 array of scratch space, owned by the calling thread
+   */
+  void update(int agent, double t, Room room, double[] scratch) {
+    updateIndividualForce(agent, room, scratch);
+    accelerate(agent, t);
+    move(agent, t, room.getWallIndex(), scratch);
+    tLastUpdate[agent] = t;
+    nextUpdateTime[agent] = t + Math.min(maxMove / getSpeed(agent), frameRate);
+  }
+
+  /**
+   * @return the current speed (i.e., norm of the velocity) of the agent, or the agent's maximum possible speed if they
+   * have left the room
+   */
+  double getSpeed(int agent) {
+    return exited[agent] ? maxSpeed[agent] : Math.hypot(velX[agent], velY[agent]);
+  }
+
+  void exit(int agent) {
+    assert !exited[agent];
+    exited[agent] = true;
+  }
+
+  // For now, we should label certain cells as exits, and have agents push towards those
+  private void updateIndividualForce(int agent, Room room, double[] gradient) {
+    room.getGradient(posX[agent], posY[agent], gradient);
+    double gradientNorm = Math.hypot(gradient[0], gradient[1]);
+    try {
+      assert !Double.isNaN(gradientNorm);
+    } catch (AssertionError e) {
+      System.out.println("Gradient NaN at " + new Point2D(posX[agent], posY[agent]) + "!");
+      throw e;
+    }
+    myForceX[agent] = gradient[0] + nextGaussian(agent) * noiseFactor * gradientNorm;
+    myForceY[agent] = gradient[1] + nextGaussian(agent) * noiseFactor * gradientNorm;
+  }
+
+  private void accelerate(int agent, double time) {
+
+    // a = F/m
+    double accX = (myForceX[agent] * myForceWeight + socialForceX[agent] / numAgents) / mass[agent];
+    double accY = (myForceY[agent] * myForceWeight + socialForceY[agent] / numAgents) / mass[agent];
+    double dt = time - tLastUpdate[agent];
+    velX[agent] += accX * dt; // dv = a*dt
+    velY[agent] += accY * dt;
+
+    // Make sure speed is at most maxSpeed
+    double speed = getSpeed(agent);
+    if (speed > maxSpeed[agent]) {
+      velX[agent] *= maxSpeed[agent] / speed;
+      velY[agent] *= maxSpeed[agent] / speed;
+    }
+
+    // Remove earlier social forces once they have been incorporated into the velocity
+    socialForceX[agent] = 0.0;
+    socialForceY[agent] = 0.0;
+
+  }
+
+  /**
+   * Update the position of the agent, based on their velocity and the time since their last update,
+   * truncating their movement and velocity based on any walls in the way
+   * @param time the time at which the move occurs
+   * @param walls index of all walls in the room
+   * @param wallCrossing length-2 scratch array, used for the point where the agent's path crosses a wall
+   */
+  private void move(int agent, double time, WallIndex walls, double[] wallCrossing) {
+
+    double dt = time - tLastUpdate[agent];
+    double speed = Math.hypot(velX[agent], velY[agent]);
+    if (speed == 0.0) { return; }
+
+    // Figure out if the agent will collide with a wall this move; the path is extended to account for positive radius
+    double x = posX[agent], y = posY[agent];
+    double pathEndX = x + velX[agent] * dt + velX[agent] / speed * radius[agent];
+    double pathEndY = y + velY[agent] * dt + velY[agent] / speed * radius[agent];
+    numWallCollisionTests.increment();
+    int collidingWall = walls.getFirstIntersecting(x, y, pathEndX, pathEndY, wallCrossing);
+
+    // Move the agent
+    if (collidingWall < 0) { // no collision with wall; move normally
+      posX[agent] = x + velX[agent] * dt;
+      posY[agent] = y + velY[agent] * dt;
+    } else { // truncate movement and velocity due to collision with wall
+      double moveX = wallCrossing[0] - x, moveY = wallCrossing[1] - y;
+      double moveLength = Math.hypot(moveX, moveY);
+      double shortening = (moveLength - radius[agent]) / moveLength; // shorten move to account for positive radius
+
+      double wallX = walls.getX2(collidingWall) - walls.getX1(collidingWall);
+      double wallY = walls.getY2(collidingWall) - walls.getY1(collidingWall);
+      double wallLength = Math.hypot(wallX, wallY);
+      wallX /= wallLength;
+      wallY /= wallLength;
+      // replace the velocity with its part parallel to the wall; i.e., kill its normal part
+      // redirect momentum to be parallel to the colliding wall
+      double newSpeed = Math.signum(velX[agent] * wallX + velY[agent] * wallY) * speed / wallFrictionFactor;
+      velX[agent] = wallX * newSpeed;
+      velY[agent] = wallY * newSpeed;
+
+      posX[agent] = x + moveX * shortening;
+      posY[agent] = y + moveY * shortening;
+    }
+  }
+
+  /**
+   * Writes the state of all agents, including their random number generators, for a Checkpoint
+   */
+  void write(DataOutputStream out) throws IOException {
+    for (double[] array : new double[][] {posX, posY, velX, velY, socialForceX, socialForceY, myForceX, myForceY,
+                                          tLastUpdate, nextUpdateTime, mass, radius, maxSpeed, spareGaussians}) {
+      for (double value : array) { out.writeDouble(value); }
+    }
+    for (boolean[] array : new boolean[][] {exited, hasSpareGaussian}) {
+      for (boolean value : array) { out.writeBoolean(value); }
+    }
+    for (long state : randomStates) { out.writeLong(state); }
+  }
+
+  /**
+   * Restores the state written by write(), from a store with the same number of agents
+   */
+  void read(DataInputStream in) throws IOException {
+    for (double[] array : new double[][] {posX, posY, velX, velY, socialForceX, socialForceY, myForceX, myForceY,
+                                          tLastUpdate, nextUpdateTime, mass, radius, maxSpeed, spareGaussians}) {
+      for (int i = 0; i < numAgents; i++) { array[i] = in.readDouble(); }
+    }
+    for (boolean[] array : new boolean[][] {exited, hasSpareGaussian}) {
+      for (int i = 0; i < numAgents; i++) { array[i] = in.readBoolean(); }
+    }
+    for (int i = 0; i < numAgents; i++) { randomStates[i] = in.readLong(); }
+  }
+
+}
@@ -0,0 +1,241 @@
+package swarms;
+
+import math.geom2d.Point2D;
+
+import java.util.Arrays;
+
+/**
+ * A decomposition of the region in which agents move into a grid of rectangular tiles, each of which owns the agents
+ * positioned in it, for the TILED engine (see Simulation). Each tile has its own AgentGrid, covering the tile and a
+ * halo around it as wide as the range of interactions; the grid indexes the tile's own agents and, as ghosts, the
+ * agents of other tiles within the halo. So a task simulating a tile finds all interacting agents in its own grid,
+ * and never touches another tile's structures.
+ *
+ * Each time step, after agents move, each tile
+ *  1) drops its agents that have left the room or moved out of the tile (emigrate())
+ *  2) takes in the agents that moved into it from other tiles (immigrate())
+ *  3) collects the ghosts in its halo, and rebuilds its grid (exchangeHalo())
+ * Each phase only writes the tile's own structures, and only reads those of other tiles written by earlier phases, so
+ * the tiles of a phase can be processed in parallel. All agents share one AgentStore, so ghosts are agent IDs, rather
+ * than copies of the agents' state.
+ *
+ * Each tile keeps its agents in order of ID, and collects its ghosts in order of tile and ID, so which agents a tile
+ * holds, and the order in which its grid lists them, only depend on the agents' positions: neither on the number of
+ * threads, nor on the order of past migrations. So a checkpoint needn't save the tiles; assign() rebuilds them.
+ */
+class AgentTiles {
+
+  private final double minX, minY;
+  private final double tileWidth, tileHeight;
+  private final int numTilesX, numTilesY;
+  private final double haloWidth;   // Width of the margin around each tile from which ghosts are collected
+  private final double cellSize;    // Cell size of the tiles' grids
+
+  private final int[][] owned;      // IDs of the agents owned by each tile, in increasing order
+  private final int[] numOwned;
+  private final int[][] emigrants;  // IDs of the agents that last left each tile for other tiles, in increasing order
+  private final int[] numEmigrants;
+  private final int[][] local;      // IDs of each tile's owned agents, followed by those of its ghosts
+  private final int[] numLocal;
+  private final AgentGrid[] grids;  // Index of each tile's local agents, by their index in local
+  private final int[][] found;      // Scratch space for the queries of each tile's grid
+
+  /**
+   * @param min bottom left corner of the region in which agents move
+   * @param max top right corner of the region in which agents move
+   * @param numTiles number of tiles, which are laid out in the grid (of that many tiles) closest to the shape of the
+   *                 region
+   * @param haloWidth distance within which all interacting agents must be indexed by a tile's grid
+   * @param cellSize side length of the cells of the tiles' grids
+   */
+  AgentTiles(Point2D min, Point2D max, int numTiles, double haloWidth, double cellSize) {
+    if (numTiles < 1) { throw new IllegalArgumentException("Need at least one tile: " + numTiles); }
+    this.minX = min.x();
+    this.minY = min.y();
+    this.haloWidth = haloWidth;
+    this.cellSize = cellSize;
+    double width = max.x() - min.x(), height = max.y() - min.y();
+
+    // Choose the factorization numTilesX * numTilesY whose tiles are closest to square
+    int bestX = 1;
+    for (int tilesX = 1; tilesX <= numTiles; tilesX++) {
+      if (numTiles % tilesX == 0 && Math.abs(Math.log(width / tilesX * numTiles / tilesX / height))
+                                    < Math.abs(Math.log(width / bestX * numTiles / bestX / height))) {
+        bestX = tilesX;
+      }
+    }
+    numTilesX = bestX;
+    numTilesY = numTiles / bestX;
+    tileWidth = width / numTilesX;
+    tileHeight = height / numTilesY;
+
+    owned = new int[numTiles][0];
+    numOwned = new int[numTiles];
+    emigrants = new int[numTiles][0];
+    numEmigrants = new int[numTiles];
+    local = new int[numTiles][0];
+    numLocal = new int[numTiles];
+    grids = new AgentGrid[numTiles];
+    found = new int[numTiles][0];
+  }
+
+  int getNumTiles() {
+    return owned.length;
+  }
+
+  /**
+   * @return number of tiles along the x and y axes, as "XxY"
+   */
+  String getLayout() {
+    return numTilesX + "x" + numTilesY;
+  }
+
+  /**
+   * @return tile containing the position; positions outside the region belong to the nearest tile
+   */
+  private int getTile(double x, double y) {
+    return clamp((int) Math.floor((x - minX) / tileWidth), numTilesX) * numTilesY
+        + clamp((int) Math.floor((y - minY) / tileHeight), numTilesY);
+  }
+
+  private static int clamp(int idx, int numTiles) {
+    return Math.max(0, Math.min(numTiles - 1, idx));
+  }
+
+  /**
+   * Assigns every agent in the room to the tile containing its position, and exchanges the tiles' halos, e.g., after
+   * agents have been initialized or restored. This isn't thread-safe.
+   */
+  void assign(AgentStore agents) {
+    Arrays.fill(numOwned, 0);
+    Arrays.fill(numEmigrants, 0);
+    for (int id = 0; id < agents.exited.length; id++) {
+      if (!agents.exited[id]) { add(owned, numOwned, getTile(agents.posX[id], agents.posY[id]), id); }
+    }
+    for (int tile = 0; tile < getNumTiles(); tile++) { exchangeHalo(tile, agents); }
+  }
+
+  /**
+   * Appends the agent to the tile's list in lists, growing the list if it is full
+   */
+  private static void add(int[][] lists, int[] sizes, int tile, int id) {
+    if (sizes[tile] == lists[tile].length) { lists[tile] = Arrays.copyOf(lists[tile], Math.max(8, 2 * sizes[tile])); }
+    lists[tile][sizes[tile]++] = id;
+  }
+
+  /**
+   * Drops the tile's agents that have left the room, and moves those that have moved out of the tile to its emigrants
+   */
+  void emigrate(int tile, AgentStore agents) {
+    int numKept = 0;
+    numEmigrants[tile] = 0;
+    for (int i = 0; i < numOwned[tile]; i++) {
+      int id = owned[tile][i];
+      if (agents.exited[id]) { continue; }
+      if (getTile(agents.posX[id], agents.posY[id]) == tile) {
+        owned[tile][numKept++] = id;
+      } else {
+        add(emigrants, numEmigrants, tile, id);
+      }
+    }
+    numOwned[tile] = numKept;
+  }
+
+  /**
+   * Adds the agents that have moved into the tile to its agents, once every tile has emigrated its agents
+   */
+  void immigrate(int tile, AgentStore agents) {
+    int numKept = numOwned[tile];
+    for (int source = 0; source < getNumTiles(); source++) {
+      for (int i = 0; i < numEmigrants[source]; i++) {
+        int id = emigrants[source][i];
+        if (getTile(agents.posX[id], agents.posY[id]) == tile) { add(owned, numOwned, tile, id); }
+      }
+    }
+    if (numOwned[tile] > numKept) { // Merge the immigrants into the (sorted) agents that stayed
+      Arrays.sort(owned[tile], numKept, numOwned[tile]);
+      int[] merged = new int[owned[tile].length];
+      int i = 0, j = numKept, k = 0;
+      while (i < numKept || j < numOwned[tile]) {
+        merged[k++] = (j == numOwned[tile] || (i < numKept && owned[tile][i] < owned[tile][j])) ? owned[tile][i++]
+                                                                                               : owned[tile][j++];
+      }
+      owned[tile] = merged;
+    }
+  }
+
+  /**
+   * Collects the agents of other tiles within the tile's halo as ghosts, and re-indexes the tile's own agents and its
+   * ghosts in the tile's grid, once every tile has taken in its immigrants
+   */
+  void exchangeHalo(int tile, AgentStore agents) {
+    int tileX = tile / numTilesY, tileY = tile % numTilesY;
+    double loX = minX + tileX * tileWidth - haloWidth, hiX = minX + (tileX + 1) * tileWidth + haloWidth;
+    double loY = minY + tileY * tileHeight - haloWidth, hiY = minY + (tileY + 1) * tileHeight + haloWidth;
+
+    numLocal[tile] = 0;
+    for (int i = 0; i < numOwned[tile]; i++) { add(local, numLocal, tile, owned[tile][i]); }
+    for (int sourceX = clamp(getTileX(loX), numTilesX); sourceX <= clamp(getTileX(hiX), numTilesX); sourceX++) {
+      for (int sourceY = clamp(getTileY(loY), numTilesY); sourceY <= clamp(getTileY(hiY), numTilesY); sourceY++) {
+        int source = sourceX * numTilesY + sourceY;
+        if (source == tile) { continue; }
+        for (int i = 0; i < numOwned[source]; i++) {
+          int id = owned[source][i];
+          double x = agents.posX[id], y = agents.posY[id];
+          if (loX <= x && x <= hiX && loY <= y && y <= hiY) { add(local, numLocal, tile, id); }
+        }
+      }
+    }
+
+    if (grids[tile] == null || found[tile].length < numLocal[tile]) {
+      int capacity = Math.max(8, 2 * numLocal[tile]);
+      grids[tile] = new AgentGrid(new Point2D(loX, loY), new Point2D(hiX, hiY), cellSize, capacity);
+      found[tile] = new int[capacity];
+    } else {
+      grids[tile].clear();
+    }
+    for (int i = 0; i < numLocal[tile]; i++) {
+      int id = local[tile][i];
+      grids[tile].update(i, agents.posX[id], agents.posY[id]);
+    }
+  }
+
+  private int getTileX(double x) {
+    return (int) Math.floor((x - minX) / tileWidth);
+  }
+
+  private int getTileY(double y) {
+    return (int) Math.floor((y - minY) / tileHeight);
+  }
+
+  /**
+   * @return array whose first getNumOwned(tile) entries are the IDs of the tile's agents, in increasing order
+   */
+  int[] getOwned(int tile) {
+    return owned[tile];
+  }
+
+  int getNumOwned(int tile) {
+    return numOwned[tile];
+  }
+
+  /**
+   * Collects the IDs of the tile's own agents and ghosts within range of (x, y), as AgentGrid.getNeighbors() does; the
+   * position should lie in the tile
+   * @return number of agent IDs written into the array returned by getFound(tile)
+   */
+  int getNeighbors(int tile, double x, double y, double range) {
+    int[] buffer = found[tile];
+    int numFound = grids[tile].getNeighbors(x, y, range, buffer);
+    for (int i = 0; i < numFound; i++) { buffer[i] = local[tile][buffer[i]]; }
+    return numFound;
+  }
+
+  /**
+   * @return the tile's scratch space for queries, which holds the results of its last call of getNeighbors()
+   */
+  int[] getFound(int tile) {
+    return found[tile];
+  }
+
+}
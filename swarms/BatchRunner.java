@@ -0,0 +1,200 @@
+package swarms;
+
+import org.jfree.data.xy.YIntervalSeriesCollection;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Runs a batch of scenarios (e.g., all scenarios of a sweep) in a single JVM, so that JIT warm-up and rooms are reused
+ * across them. Scenarios with the same room geometry (see Scenario.getRoomKey()) share a single built room, including
+ * its cache of distance fields. All trials of all scenarios are run concurrently on a fixed pool of threads.
+ * If a scenario has a roomCacheDir, its room is loaded from (or stored in) a RoomCache there, and is stored again,
+ * with any newly computed distance fields, once the batch is done.
+ *
+ * The communication conditions of each combination of the other swept parameters are plotted together, as in the
+ * original experiments.
+ */
+class BatchRunner {
+
+  private final int numThreads;
+
+  /**
+   * @param numThreads number of threads on which to build rooms and run trials
+   */
+  BatchRunner(int numThreads) {
+    this.numThreads = Math.max(numThreads, 1);
+  }
+
+  /**
+   * Runs all trials of all scenarios, and saves the resulting plots
+   * @param scenarios scenarios to run
+   */
+  void run(List<Scenario> scenarios) {
+
+    // All scenarios and their trials are submitted to the executor at once; results are collected in order below
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    Map<String, CompletableFuture<Room>> rooms = new LinkedHashMap<>();
+    Map<String, Scenario> roomScenarios = new HashMap<>(); // First scenario using each room
+    Map<Scenario, CompletableFuture<YIntervalSeriesCollection>> results = new HashMap<>();
+
+    try {
+      for (Scenario scenario : scenarios) {
+        CompletableFuture<Room> room = rooms.computeIfAbsent(scenario.getRoomKey(), key -> buildRoom(executor, scenario));
+        roomScenarios.putIfAbsent(scenario.getRoomKey(), scenario);
+        results.put(scenario, runTrials(executor, room, scenario));
+      }
+      System.out.println("Running " + scenarios.size() + " scenarios in " + rooms.size() + " rooms, on "
+          + numThreads + " threads");
+
+      savePlots(scenarios, scenario -> results.get(scenario).join());
+
+      // The rooms' metrics are shared by their trials, so they are saved once for each room, rather than per trial
+      for (Map.Entry<String, CompletableFuture<Room>> room : rooms.entrySet()) {
+        Scenario scenario = roomScenarios.get(room.getKey());
+        if (scenario.metricsFile != null) {
+          MetricsLog.saveRoomMetrics(getFilePath(scenario.metricsFile, "room_" + room.getKey()), room.getKey(),
+                                     room.getValue().join().getMetrics());
+        }
+      }
+
+      // Store the distance fields computed by this batch, for later runs
+      for (Map.Entry<String, CompletableFuture<Room>> room : rooms.entrySet()) {
+        Scenario scenario = roomScenarios.get(room.getKey());
+        if (scenario.roomCacheDir != null && room.getValue().join().getNumDistanceFieldsComputed() > 0) {
+          new RoomCache(scenario.roomCacheDir).save(getLayout(scenario), room.getValue().join());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Plots the communication conditions of each combination of the other swept parameters together, in the order of
+   * the scenarios
+   * @param results gets the result of a scenario, averaged over its trials (e.g., waiting for it to finish)
+   */
+  static void savePlots(List<Scenario> scenarios, Function<Scenario, YIntervalSeriesCollection> results) {
+    Map<String, List<Scenario>> plots = new LinkedHashMap<>(); // Scenarios by plot, in order
+    for (Scenario scenario : scenarios) {
+      plots.computeIfAbsent(scenario.getSweepDescription(), description -> new ArrayList<>()).add(scenario);
+    }
+    for (Map.Entry<String, List<Scenario>> plot : plots.entrySet()) {
+      ArrayList<YIntervalSeriesCollection> allPlots = new ArrayList<>();
+      for (Scenario scenario : plot.getValue()) {
+        allPlots.add(results.apply(scenario));
+      }
+      Scenario first = plot.getValue().get(0);
+      if (first.plotFile != null) {
+        String plotFilePath = getFilePath(first.plotFile, plot.getKey());
+        (new Plotter("Test", first.simDuration)).plotMultiple(allPlots, plotFilePath);
+      }
+    }
+  }
+
+  private static CompletableFuture<Room> buildRoom(Executor executor, Scenario scenario) {
+    return CompletableFuture.supplyAsync(() -> buildRoom(scenario), executor);
+  }
+
+  /**
+   * Builds the room of a scenario, or loads it from the scenario's roomCacheDir
+   */
+  static Room buildRoom(Scenario scenario) {
+    System.out.println("Constructing room: " + scenario.roomType + " at spatial resolution "
+        + scenario.spatialResolution + "... ");
+    Room room = (scenario.roomCacheDir != null)
+        ? new RoomCache(scenario.roomCacheDir).getOrBuild(getLayout(scenario), scenario.distanceCacheBytes)
+        : getLayout(scenario).build(scenario.distanceCacheBytes);
+    if (scenario.numLandmarks > 0) { room.useLandmarks(scenario.numLandmarks); }
+    if (scenario.quadtreeLeafSize > 0) {
+      room.useQuadtree(scenario.quadtreeLeafSize);
+      System.out.println("Number of quadtree leaves: " + room.getNumQuadtreeLeaves());
+    }
+    return room;
+  }
+
+  static RoomLayout getLayout(Scenario scenario) {
+    return SwarmSim.getLayout(scenario.roomType, scenario.spatialResolution, scenario.leftDoorWidth, scenario.hasObstacle);
+  }
+
+  /**
+   * Runs numTrials trials of a scenario on the executor, once its room is built
+   * @return future result, averaged over the trials, whose statistics are merged in trial order (so that the average
+   * doesn't depend on the order in which trials finish) and passed to Plotter.averageTrials()
+   */
+  private static CompletableFuture<YIntervalSeriesCollection> runTrials(Executor executor,
+                                                                        CompletableFuture<Room> room,
+                                                                        Scenario scenario) {
+
+    String label = scenario.getLabel();
+    ArrayList<CompletableFuture<TrialAggregator>> trials = new ArrayList<>(scenario.numTrials);
+    for (int i = 0; i < scenario.numTrials; i++) {
+      final int trial = i;
+      trials.add(room.thenApplyAsync(builtRoom -> {
+        // A trial that changes walls does so in a room of its own, since other trials share the built room
+        Room trialRoom = scenario.wallChanges.isEmpty() ? builtRoom : buildRoom(scenario);
+        System.out.println("Running trial " + trial + " of \"" + label + "\" condition (seed " + scenario.seed + ")");
+        TrialAggregator result = new Simulation(trialRoom, scenario, trial)
+            .run(getTrialFilePath(scenario.movieFile, label, trial), getTrialFilePath(scenario.metricsFile, label, trial),
+                 getTrialFilePath(scenario.checkpointFile, label, trial));
+        System.out.println("[" + label + ", trial " + trial + "] Distance cache: " + trialRoom.getDistanceCacheStats());
+        if (trialRoom != builtRoom && scenario.metricsFile != null) {
+          MetricsLog.saveRoomMetrics(getFilePath(scenario.metricsFile, label + "_trial" + trial + "_room"),
+                                     scenario.getRoomKey() + " (trial " + trial + " of " + label + ")",
+                                     trialRoom.getMetrics());
+        }
+        return result;
+      }, executor));
+    }
+
+    return CompletableFuture.allOf(trials.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+      TrialAggregator allTrials = new TrialAggregator(scenario.plotBinWidth);
+      for (CompletableFuture<TrialAggregator> trial : trials) {
+        allTrials.merge(trial.join());
+      }
+      return Plotter.averageTrials(allTrials, scenario.communication.label);
+    });
+  }
+
+  /**
+   * Since trials run concurrently, each trial writes its movie, metrics, and checkpoints to its own files, named by inserting the
+   * condition and trial into the given file path (e.g., the scenario's movieFile)
+   * @return the trial's file path, or null if filePath is null (i.e., the output is disabled)
+   */
+  static String getTrialFilePath(String filePath, String label, int trial) {
+    return (filePath == null) ? null : getFilePath(filePath, label + "_trial" + trial);
+  }
+
+  /**
+   * Inserts a description (e.g., of the swept parameters) into a file path, before its extension, and creates the
+   * file's directory if it doesn't exist yet
+   */
+  static String getFilePath(String filePath, String description) {
+    String suffix = description.isEmpty() ? "" : "_" + description.replaceAll("[^A-Za-z0-9.=]+", "_");
+    int extension = filePath.lastIndexOf('.');
+    if (extension <= filePath.lastIndexOf('/')) { extension = -1; } // e.g., "./out"
+    String path = (extension < 0) ? filePath + suffix
+                                  : filePath.substring(0, extension) + suffix + filePath.substring(extension);
+    try {
+      Path directory = Paths.get(path).toAbsolutePath().getParent();
+      if (directory != null) { Files.createDirectories(directory); }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return path;
+  }
+
+}
@@ -0,0 +1,242 @@
+package swarms;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Precomputed line of sight between blocks of cells of a grid graph. The grid is divided into square blocks of cells,
+ * and each pair of blocks is marked as visible (no wall crosses any segment between cells of the two blocks), hidden
+ * (a single wall crosses every such segment), or neither, so that most line-of-sight tests between cells are a single
+ * bit test, and only those between blocks that are partly visible (e.g., through a door, or near the end of a wall)
+ * need to be tested against the walls.
+ *
+ * A new index marks all pairs of blocks as visible, and is updated by addWall() as walls are added to the room, so it
+ * is always consistent with the room's walls. Since adding a wall can only block lines of sight, no visible pair
+ * becomes visible again, and no hidden pair stops being hidden. Removing a wall (see removeWall()) is only handled
+ * conservatively: the pairs it hid are no longer marked hidden, but pairs it blocked aren't marked visible again.
+ */
+class BlockVisibility {
+
+  private static final int minBlockSize = 4;   // Side length (in cells) of the blocks, unless there are too many
+  private static final int maxNumBlocks = 2048; // The index takes 2 bits per pair of blocks, and updating it is
+                                                // O(numBlocks^2) per wall
+  private static final double epsilon = 1e-9;   // Margin (in distance) for round-off in the geometric tests
+
+  private final int blockSize;
+  private final int numBlocks;
+  private final int[] blockOfCell;
+  // Extent of the centers of each block's cells
+  private final double[] blockMinX, blockMinY, blockMaxX, blockMaxY;
+  // Bitsets over pairs of blocks a <= b, at index a * numBlocks + b
+  private final long[] visible, hidden;
+
+  /**
+   * @param graph grid whose cells are divided into blocks; the index starts out as for a room without walls
+   */
+  BlockVisibility(GridGraph graph) {
+    int nCellsX = graph.getNCellsX(), nCellsY = graph.getNCellsY();
+    int size = minBlockSize;
+    while (ceilDiv(nCellsX, size) * ceilDiv(nCellsY, size) > maxNumBlocks) { size++; }
+    blockSize = size;
+    int nBlocksX = ceilDiv(nCellsX, blockSize), nBlocksY = ceilDiv(nCellsY, blockSize);
+    numBlocks = nBlocksX * nBlocksY;
+
+    blockOfCell = new int[graph.getNumCells()];
+    blockMinX = new double[numBlocks];
+    blockMinY = new double[numBlocks];
+    blockMaxX = new double[numBlocks];
+    blockMaxY = new double[numBlocks];
+    Arrays.fill(blockMinX, Double.POSITIVE_INFINITY);
+    Arrays.fill(blockMinY, Double.POSITIVE_INFINITY);
+    Arrays.fill(blockMaxX, Double.NEGATIVE_INFINITY);
+    Arrays.fill(blockMaxY, Double.NEGATIVE_INFINITY);
+    for (int cell = 0; cell < graph.getNumCells(); cell++) {
+      int block = (graph.getIndexX(cell) / blockSize) * nBlocksY + graph.getIndexY(cell) / blockSize;
+      blockOfCell[cell] = block;
+      blockMinX[block] = Math.min(blockMinX[block], graph.getX(cell));
+      blockMinY[block] = Math.min(blockMinY[block], graph.getY(cell));
+      blockMaxX[block] = Math.max(blockMaxX[block], graph.getX(cell));
+      blockMaxY[block] = Math.max(blockMaxY[block], graph.getY(cell));
+    }
+
+    int numWords = (int) (((long) numBlocks * numBlocks + 63) / 64);
+    visible = new long[numWords];
+    hidden = new long[numWords];
+    Arrays.fill(visible, -1L);
+  }
+
+  private static int ceilDiv(int a, int b) {
+    return (a + b - 1) / b;
+  }
+
+  /**
+   * @return index of the pair of blocks containing the two cells, for isVisible() and isHidden()
+   */
+  int getPair(int cell1, int cell2) {
+    int a = blockOfCell[cell1], b = blockOfCell[cell2];
+    return (a <= b) ? a * numBlocks + b : b * numBlocks + a;
+  }
+
+  /**
+   * @return true if every cell of one block of the pair sees every cell of the other block
+   */
+  boolean isVisible(int pair) {
+    return (visible[pair >>> 6] & (1L << pair)) != 0;
+  }
+
+  /**
+   * @return true if no cell of one block of the pair sees any cell of the other block
+   */
+  boolean isHidden(int pair) {
+    return (hidden[pair >>> 6] & (1L << pair)) != 0;
+  }
+
+  /**
+   * Updates the index for a wall added to the room, from (x1, y1) to (x2, y2)
+   */
+  void addWall(double x1, double y1, double x2, double y2) {
+    update(x1, y1, x2, y2, true);
+  }
+
+  /**
+   * Updates the index for a wall removed from the room, from (x1, y1) to (x2, y2), by unmarking the pairs of blocks
+   * that the wall hides (which some other wall may also hide, but these are then just tested exactly)
+   */
+  void removeWall(double x1, double y1, double x2, double y2) {
+    update(x1, y1, x2, y2, false);
+  }
+
+  /**
+   * @param adding true if the wall is being added to the room, and false if it is being removed
+   */
+  private void update(double x1, double y1, double x2, double y2, boolean adding) {
+    double length = Math.hypot(x2 - x1, y2 - y1);
+    double wallMinX = Math.min(x1, x2) - epsilon, wallMaxX = Math.max(x1, x2) + epsilon;
+    double wallMinY = Math.min(y1, y2) - epsilon, wallMaxY = Math.max(y1, y2) + epsilon;
+
+    // Signed distance of each corner of each block (corner k of block b at index 4 * b + k) from the line through the
+    // wall, and the position of its projection onto the line, from 0.0 (at (x1, y1)) to 1.0 (at (x2, y2))
+    double[] cornerDistances = new double[4 * numBlocks], cornerPositions = new double[4 * numBlocks];
+    // Side of the line on which each block lies: 1 or -1 if the whole block lies strictly on one side, and 0 if the
+    // line passes through (or very near) the block
+    byte[] sides = new byte[numBlocks];
+    double[] minPositions = new double[numBlocks], maxPositions = new double[numBlocks];
+    for (int block = 0; length > epsilon && block < numBlocks; block++) {
+      double minDistance = Double.POSITIVE_INFINITY, maxDistance = Double.NEGATIVE_INFINITY;
+      minPositions[block] = Double.POSITIVE_INFINITY;
+      maxPositions[block] = Double.NEGATIVE_INFINITY;
+      for (int corner = 0; corner < 4; corner++) {
+        double x = ((corner & 1) == 0) ? blockMinX[block] : blockMaxX[block];
+        double y = ((corner & 2) == 0) ? blockMinY[block] : blockMaxY[block];
+        double distance = ((x2 - x1) * (y - y1) - (y2 - y1) * (x - x1)) / length;
+        double position = ((x - x1) * (x2 - x1) + (y - y1) * (y2 - y1)) / (length * length);
+        cornerDistances[4 * block + corner] = distance;
+        cornerPositions[4 * block + corner] = position;
+        minDistance = Math.min(minDistance, distance);
+        maxDistance = Math.max(maxDistance, distance);
+        minPositions[block] = Math.min(minPositions[block], position);
+        maxPositions[block] = Math.max(maxPositions[block], position);
+      }
+      sides[block] = (byte) ((minDistance > epsilon) ? 1 : (maxDistance < -epsilon) ? -1 : 0);
+    }
+
+    double margin = epsilon / Math.max(length, epsilon); // epsilon, as a position along the wall
+    int[] left = new int[numBlocks], right = new int[numBlocks], crossed = new int[numBlocks];
+    int numLeft = 0, numRight = 0, numCrossed = 0;
+    for (int block = 0; block < numBlocks; block++) {
+      if (sides[block] > 0) {
+        left[numLeft++] = block;
+      } else if (sides[block] < 0) {
+        right[numRight++] = block;
+      } else {
+        crossed[numCrossed++] = block;
+      }
+    }
+
+    // Pairs of blocks on opposite sides of the line: every segment between them crosses the line, and the crossings
+    // span the part of the line between the extreme crossings of segments between the blocks' corners. Each crossing
+    // lies between the projections of the segment's ends onto the line, so walls that are beside, or span, all of
+    // those projections (as most are) need no further tests. Pairs on the same side of the line are unaffected.
+    for (int i = 0; i < numLeft; i++) {
+      int a = left[i];
+      for (int j = 0; j < numRight; j++) {
+        int b = right[j];
+        double minProjection = Math.min(minPositions[a], minPositions[b]);
+        double maxProjection = Math.max(maxPositions[a], maxPositions[b]);
+        if (maxProjection < -margin || minProjection > 1.0 + margin) { continue; }
+        if (minProjection > margin && maxProjection < 1.0 - margin) {
+          if (adding) {
+            clear(visible, a, b);
+            set(hidden, a, b);
+          } else {
+            clear(hidden, a, b);
+          }
+          continue;
+        }
+        // The segment between corners with distances dA > 0 and dB < 0 and positions pA and pB crosses the line at
+        // position (dA * pB - dB * pA) / (dA - dB); it is compared with the wall's ends without dividing
+        boolean allBefore = true, allAfter = true, allOnWall = true;
+        for (int cornerA = 4 * a; cornerA < 4 * a + 4; cornerA++) {
+          for (int cornerB = 4 * b; cornerB < 4 * b + 4; cornerB++) {
+            double dA = cornerDistances[cornerA], dB = cornerDistances[cornerB];
+            double numerator = dA * cornerPositions[cornerB] - dB * cornerPositions[cornerA], denominator = dA - dB;
+            allBefore &= numerator < -margin * denominator;
+            allAfter &= numerator > (1.0 + margin) * denominator;
+            allOnWall &= margin * denominator < numerator && numerator < (1.0 - margin) * denominator;
+          }
+        }
+        if (allBefore || allAfter) { continue; } // The wall is beside all crossings
+        if (adding) {
+          clear(visible, a, b);
+          if (allOnWall) { set(hidden, a, b); } // The wall spans all crossings
+        } else if (allOnWall) {
+          clear(hidden, a, b);
+        }
+      }
+    }
+
+    // Pairs with a block that the line passes through: the wall can't hide all of the pair, but, conservatively, it
+    // might block some lines of sight if it is anywhere near the blocks
+    for (int i = 0; adding && i < numCrossed; i++) {
+      int a = crossed[i];
+      for (int b = 0; b < numBlocks; b++) {
+        if (wallMinX <= Math.max(blockMaxX[a], blockMaxX[b]) && Math.min(blockMinX[a], blockMinX[b]) <= wallMaxX
+            && wallMinY <= Math.max(blockMaxY[a], blockMaxY[b]) && Math.min(blockMinY[a], blockMinY[b]) <= wallMaxY) {
+          clear(visible, a, b);
+        }
+      }
+    }
+  }
+
+  private void set(long[] bits, int a, int b) {
+    int pair = (a <= b) ? a * numBlocks + b : b * numBlocks + a;
+    bits[pair >>> 6] |= 1L << pair;
+  }
+
+  private void clear(long[] bits, int a, int b) {
+    int pair = (a <= b) ? a * numBlocks + b : b * numBlocks + a;
+    bits[pair >>> 6] &= ~(1L << pair);
+  }
+
+  /**
+   * Writes the index, for a RoomCache to store along with the rest of the room
+   */
+  void write(DataOutputStream out) throws IOException {
+    for (long word : visible) { out.writeLong(word); }
+    for (long word : hidden) { out.writeLong(word); }
+  }
+
+  /**
+   * Restores an index written by write(), for the same grid
+   * @param in buffer positioned at the start of the index, which is advanced past it
+   */
+  void read(ByteBuffer in) {
+    for (long[] bits : new long[][] {visible, hidden}) {
+      in.asLongBuffer().get(bits);
+      in.position(in.position() + 8 * bits.length);
+    }
+  }
+
+}
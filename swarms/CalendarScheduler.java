@@ -0,0 +1,148 @@
+package swarms;
+
+import java.util.Arrays;
+
+/**
+ * An AgentScheduler backed by a calendar queue (Brown, 1988). Time is divided into "days" of equal width, and a ring of
+ * buckets holds one day each, wrapping around every "year" (numBuckets days). Since agents' update times are never
+ * more than frameRate ahead of the current time, almost every poll finds the next agent within a bucket or two of the
+ * previous one, so add() and poll() cost amortized O(1), independent of the number of agents.
+ *
+ * Buckets are intrusive singly-linked lists over agent IDs, and update times are read directly from the AgentStore,
+ * so no objects are allocated per operation. The day width is recalibrated from the observed spacing of update times
+ * once every numBuckets polls.
+ */
+class CalendarScheduler implements AgentScheduler {
+
+  private static final int emptyBucket = -1;
+
+  private final double[] times; // Update time of each agent (AgentStore.nextUpdateTime)
+  private final int[] head;     // First agent in each bucket, or emptyBucket
+  private final int[] next;     // Next agent in the same bucket, or emptyBucket
+  private final int mask;       // numBuckets - 1; numBuckets is a power of 2
+  private double width;         // Width of the time interval ("day") covered by each bucket
+  private int size = 0;
+
+  private long currentDay = 0;         // Day of the most recently polled agent, i.e., floor(lastTime / width)
+  private double lastTime = 0.0;       // Update time of the most recently polled agent
+  private int pollsSinceCalibration = 0;
+  private double calibrationStartTime = 0.0;
+  private final int[] scratch;         // Scratch space for redistributing agents among buckets
+
+  /**
+   * @param agents store whose nextUpdateTime array holds the update times of the agents
+   * @param horizon maximum amount of time by which an agent's update time can exceed the current time
+   */
+  CalendarScheduler(AgentStore agents, double horizon) {
+    times = agents.nextUpdateTime;
+    int numBuckets = Integer.highestOneBit(Math.max(agents.size(), 1) * 2 - 1) * 2;
+    head = new int[numBuckets];
+    Arrays.fill(head, emptyBucket);
+    next = new int[agents.size()];
+    scratch = new int[agents.size()];
+    mask = numBuckets - 1;
+    width = horizon / numBuckets;
+  }
+
+  @Override
+  public void add(int agent) {
+    assert times[agent] >= lastTime; // Can't schedule an agent in the past
+    int bucket = (int) (getDay(times[agent]) & mask);
+    next[agent] = head[bucket];
+    head[bucket] = agent;
+    size++;
+  }
+
+  @Override
+  public int poll() {
+    assert size > 0;
+
+    // Scan the buckets in order, starting from the current one, for an agent due within the bucket's current day
+    long firstDay = currentDay;
+    for (; currentDay <= firstDay + mask; currentDay++) {
+      int agent = pollEarliest(currentDay);
+      if (agent != emptyBucket) { return polled(agent); }
+    }
+
+    // No agent is due within the next year (e.g., because the day width is badly calibrated), so find the earliest
+    // agent directly, and jump to its day
+    int earliest = emptyBucket;
+    for (int bucket = 0; bucket <= mask; bucket++) {
+      for (int agent = head[bucket]; agent != emptyBucket; agent = next[agent]) {
+        if (earliest == emptyBucket || isEarlier(agent, earliest)) { earliest = agent; }
+      }
+    }
+    currentDay = getDay(times[earliest]);
+    return polled(pollEarliest(currentDay));
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Removes the earliest agent due on the given day (from the bucket holding that day)
+   * @return ID of the removed agent, or emptyBucket if there is no such agent
+   */
+  private int pollEarliest(long day) {
+    int bucket = (int) (day & mask);
+    int earliest = emptyBucket, beforeEarliest = emptyBucket;
+    for (int agent = head[bucket], before = emptyBucket; agent != emptyBucket; before = agent, agent = next[agent]) {
+      if (getDay(times[agent]) <= day && (earliest == emptyBucket || isEarlier(agent, earliest))) {
+        earliest = agent;
+        beforeEarliest = before;
+      }
+    }
+    if (earliest != emptyBucket) {
+      if (beforeEarliest == emptyBucket) { head[bucket] = next[earliest]; } else { next[beforeEarliest] = next[earliest]; }
+    }
+    return earliest;
+  }
+
+  private int polled(int agent) {
+    size--;
+    lastTime = times[agent];
+    if (++pollsSinceCalibration > mask) { recalibrate(); }
+    return agent;
+  }
+
+  /**
+   * Resets the day width to a few times the average spacing between the update times of polled agents, so that each
+   * bucket holds a few agents due in the current day, and redistributes the agents among the buckets
+   */
+  private void recalibrate() {
+    double averageSpacing = (lastTime - calibrationStartTime) / pollsSinceCalibration;
+    pollsSinceCalibration = 0;
+    calibrationStartTime = lastTime;
+    if (!(averageSpacing > 0.0)) { return; }
+    width = 3.0 * averageSpacing;
+
+    int numAgents = 0;
+    for (int bucket = 0; bucket <= mask; bucket++) {
+      for (int agent = head[bucket]; agent != emptyBucket; agent = next[agent]) { scratch[numAgents++] = agent; }
+      head[bucket] = emptyBucket;
+    }
+    for (int i = 0; i < numAgents; i++) {
+      int bucket = (int) (getDay(times[scratch[i]]) & mask);
+      next[scratch[i]] = head[bucket];
+      head[bucket] = scratch[i];
+    }
+    currentDay = getDay(lastTime);
+  }
+
+  private long getDay(double time) {
+    return (long) Math.floor(time / width);
+  }
+
+  // Orders agents by update time, breaking ties by ID
+  private boolean isEarlier(int agent1, int agent2) {
+    return times[agent1] < times[agent2] || (times[agent1] == times[agent2] && agent1 < agent2);
+  }
+
+}
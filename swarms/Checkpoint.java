@@ -0,0 +1,127 @@
+package swarms;
+
+import org.jfree.data.xy.XYSeries;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * The progress of a trial (see Simulation) between two agent updates: the simulation time, and the fraction of agents
+ * in the room over time so far. A fresh trial starts from an empty checkpoint at time 0.0.
+ *
+ * A checkpoint can be saved along with the state of the trial's agents (including their random number generators) and
+ * the order of agents in its spatial index and neighbor lists, and a trial of a scenario with the same parameters restored from it then
+ * continues bit-identically to the original trial. The schedule of agent updates isn't saved, since schedulers poll
+ * agents in order of update time and ID, which the agents' state determines; nor is the room, which is rebuilt from
+ * the scenario. Metrics and movies of a restored trial start at the checkpoint.
+ *
+ * File format (big-endian):
+ *   magic (8 bytes), format version (int), parameters of the scenario that affect the trial (UTF)
+ *   simulation time (double), number of fixed time steps taken (long), time of the next progress update (double)
+ *   number of points of the fraction of agents in the room (int), followed by the points (x, then y, as doubles)
+ *   agents (see AgentStore.write()), then the spatial index of agents (see AgentGrid.write())
+ *   neighbor lists of agents, if the scenario uses them (see NeighborLists.write())
+ */
+class Checkpoint {
+
+  private static final long magic = 0x5357524D434B5054L; // "SWRMCKPT"
+  private static final int formatVersion = 2;
+
+  final double time;             // Simulation time of the last agent update (or fixed time step)
+  final long step;               // Number of time steps taken so far by the FIXED_STEP engine
+  final double nextProgressTime; // Simulation time of the next progress update and metrics dump
+  final XYSeries fractionInRoomOverTime; // Fraction of agents in the room each time an agent left, so far
+
+  Checkpoint(double time, long step, double nextProgressTime, XYSeries fractionInRoomOverTime) {
+    this.time = time;
+    this.step = step;
+    this.nextProgressTime = nextProgressTime;
+    this.fractionInRoomOverTime = fractionInRoomOverTime;
+  }
+
+  /**
+   * Saves the checkpoint, along with the state of the trial's agents
+   * @param filePath file to which to write the checkpoint
+   * @param scenario scenario of the trial
+   * @param agents state of all agents
+   * @param agentGrid spatial index of the agents
+   * @param neighborLists neighbor lists of the agents, or null if the scenario doesn't use them
+   */
+  void write(String filePath, Scenario scenario, AgentStore agents, AgentGrid agentGrid, NeighborLists neighborLists)
+      throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(Paths.get(filePath))))) {
+      out.writeLong(magic);
+      out.writeInt(formatVersion);
+      out.writeUTF(getParameters(scenario));
+      out.writeDouble(time);
+      out.writeLong(step);
+      out.writeDouble(nextProgressTime);
+      out.writeInt(fractionInRoomOverTime.getItemCount());
+      for (int i = 0; i < fractionInRoomOverTime.getItemCount(); i++) {
+        out.writeDouble(fractionInRoomOverTime.getX(i).doubleValue());
+        out.writeDouble(fractionInRoomOverTime.getY(i).doubleValue());
+      }
+      agents.write(out);
+      agentGrid.write(out);
+      if (neighborLists != null) { neighborLists.write(out); }
+    }
+  }
+
+  /**
+   * Loads a checkpoint saved by write(), restoring the state of the trial's agents
+   * @param filePath file from which to read the checkpoint
+   * @param scenario scenario of the trial, whose parameters must match those of the trial that saved the checkpoint
+   *                 (except for its duration and outputs)
+   * @param agents store of the trial's agents, into which their state is restored
+   * @param agentGrid empty spatial index of the agents, into which the saved index is restored
+   * @param neighborLists neighbor lists of the agents, into which the saved lists are restored, or null if the
+   *                      scenario doesn't use them
+   * @return the restored checkpoint
+   */
+  static Checkpoint read(String filePath, Scenario scenario, AgentStore agents, AgentGrid agentGrid,
+                         NeighborLists neighborLists) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(filePath))))) {
+      if (in.readLong() != magic || in.readInt() != formatVersion) {
+        throw new IOException(filePath + " isn't a checkpoint of this version");
+      }
+      String parameters = in.readUTF();
+      if (!parameters.equals(getParameters(scenario))) {
+        throw new IllegalArgumentException("Checkpoint " + filePath + " was saved by a different scenario: " + parameters);
+      }
+      double time = in.readDouble();
+      long step = in.readLong();
+      double nextProgressTime = in.readDouble();
+      XYSeries fractionInRoomOverTime = new XYSeries(scenario.getLabel());
+      int numPoints = in.readInt();
+      for (int i = 0; i < numPoints; i++) { fractionInRoomOverTime.add(in.readDouble(), in.readDouble()); }
+      agents.read(in);
+      agentGrid.read(in);
+      if (neighborLists != null) { neighborLists.read(in); }
+      return new Checkpoint(time, step, nextProgressTime, fractionInRoomOverTime);
+    }
+  }
+
+  /**
+   * @return the parameters of the scenario that affect how its trials evolve, which must match for a checkpoint to be
+   * restored (the seed doesn't matter, since the state of the random number generators is saved)
+   */
+  private static String getParameters(Scenario scenario) {
+    return "numAgents=" + scenario.numAgents + ", communication=" + scenario.communication
+        + ", asymmetricInitialAgentDistribution=" + scenario.asymmetricInitialAgentDistribution
+        + ", roomType=" + scenario.roomType + ", spatialResolution=" + scenario.spatialResolution
+        + ", leftDoorWidth=" + scenario.leftDoorWidth + ", hasObstacle=" + scenario.hasObstacle
+        + ", numLandmarks=" + scenario.numLandmarks + ", quadtreeLeafSize=" + scenario.quadtreeLeafSize
+        + ", maxMove=" + scenario.maxMove
+        + ", frameRate=" + scenario.frameRate + ", engine=" + scenario.engine
+        + ", fixedTimeStep=" + scenario.fixedTimeStep + ", numPartitions=" + scenario.numPartitions
+        + ", numTiles=" + scenario.numTiles
+        + ", neighborSkin=" + scenario.neighborSkin
+        + (scenario.wallChanges.isEmpty() ? "" : ", wallChanges=" + scenario.wallChanges);
+  }
+
+}
@@ -0,0 +1,182 @@
+package swarms;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of distance fields, keyed by the ID of the cell to which distances are measured.
+ * Each field is a single float array giving the distance from every cell (indexed by cell ID) to the target cell, or,
+ * in a room using a QuadtreeGraph, from every leaf of the quadtree.
+ *
+ * The number of fields held at once is limited by a memory budget; when the budget is exhausted, the least recently
+ * used field is evicted. Recency is tracked by an intrusive doubly-linked list over cell IDs, so lookups allocate
+ * nothing.
+ *
+ * The cache is safe to share between threads. Lookups don't block: a hit only updates the recency list if the lock is
+ * free, so under contention the eviction order is approximately, rather than exactly, least recently used.
+ */
+class DistanceFieldCache {
+
+  private final AtomicReferenceArray<float[]> fields; // Cached field for each target cell ID, or null if not cached
+  private final ReentrantLock lock = new ReentrantLock(); // Guards the recency list and numFields
+  private final int[] newer, older; // Neighbors of each cached target in the recency list, or -1
+  private int newest = -1, oldest = -1;
+  private final int maxFields;      // Maximum number of fields held at once
+  private int numFields = 0;
+
+  private final LongAdder hits, misses, evictions;
+
+  /**
+   * @param numCells number of cells in the room (i.e., length of each field)
+   * @param budgetBytes approximate maximum memory to use for cached fields; at least one field is always kept
+   * @param metrics registry in which to count hits, misses, and evictions (as "distanceCache.hits", etc.)
+   */
+  DistanceFieldCache(int numCells, long budgetBytes, MetricsRegistry metrics) {
+    this(numCells, numCells, budgetBytes, metrics, "distanceCache");
+  }
+
+  /**
+   * @param numCells number of cells in the room (i.e., number of possible targets)
+   * @param fieldLength length of each field, if fields don't give a distance for every cell (see QuadtreeGraph)
+   * @param budgetBytes approximate maximum memory to use for cached fields; at least one field is always kept
+   * @param metrics registry in which to count hits, misses, and evictions
+   * @param metricPrefix prefix of the names of the cache's metrics (e.g., "distanceCache", for "distanceCache.hits"),
+   *                     which must differ from that of any other cache in the same registry
+   */
+  DistanceFieldCache(int numCells, int fieldLength, long budgetBytes, MetricsRegistry metrics, String metricPrefix) {
+    fields = new AtomicReferenceArray<>(numCells);
+    newer = new int[numCells];
+    older = new int[numCells];
+    Arrays.fill(newer, -1);
+    Arrays.fill(older, -1);
+    maxFields = (int) Math.max(1, Math.min(numCells, budgetBytes / (4L * fieldLength)));
+    hits = metrics.counter(metricPrefix + ".hits");
+    misses = metrics.counter(metricPrefix + ".misses");
+    evictions = metrics.counter(metricPrefix + ".evictions");
+    metrics.gauge(metricPrefix + ".hitRate", () -> (double) getHits() / (getHits() + getMisses()));
+  }
+
+  /**
+   * @param targetID ID of the cell to which distances are measured
+   * @return the cached distance field to the target, or null if it is not cached
+   */
+  float[] get(int targetID) {
+    float[] field = fields.get(targetID);
+    if (field == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    if (lock.tryLock()) {
+      try {
+        // The field may have been evicted since it was read, in which case it is no longer in the recency list
+        if (newest != targetID && fields.get(targetID) == field) {
+          unlink(targetID);
+          pushNewest(targetID);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return field;
+  }
+
+  /**
+   * Adds a newly computed distance field, evicting the least recently used field if the cache is full.
+   * If another thread has already cached a field for the same target, that field is kept instead.
+   * @param targetID ID of the cell to which distances are measured
+   * @param field distance from each cell to the target
+   * @return the field now cached for the target
+   */
+  float[] put(int targetID, float[] field) {
+    lock.lock();
+    try {
+      float[] existing = fields.get(targetID);
+      if (existing != null) { return existing; }
+      while (numFields >= maxFields) {
+        int evicted = oldest;
+        unlink(evicted);
+        fields.set(evicted, null);
+        numFields--;
+        evictions.increment();
+      }
+      fields.set(targetID, field);
+      pushNewest(targetID);
+      numFields++;
+      return field;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops all cached fields (e.g., because the room's walls have changed), without counting them as evictions
+   */
+  void clear() {
+    lock.lock();
+    try {
+      while (oldest >= 0) {
+        int id = oldest;
+        unlink(id);
+        fields.set(id, null);
+      }
+      numFields = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void pushNewest(int id) {
+    older[id] = newest;
+    newer[id] = -1;
+    if (newest >= 0) { newer[newest] = id; }
+    newest = id;
+    if (oldest < 0) { oldest = id; }
+  }
+
+  private void unlink(int id) {
+    if (newer[id] >= 0) { older[newer[id]] = older[id]; } else { newest = older[id]; }
+    if (older[id] >= 0) { newer[older[id]] = newer[id]; } else { oldest = newer[id]; }
+    newer[id] = -1;
+    older[id] = -1;
+  }
+
+  /**
+   * @return the cached distance field to the target, or null if it is not cached, without counting as a use
+   */
+  float[] peek(int targetID) {
+    return fields.get(targetID);
+  }
+
+  /**
+   * @return IDs of the targets of all cached fields, from most to least recently used
+   */
+  int[] getTargets() {
+    lock.lock();
+    try {
+      int[] targets = new int[numFields];
+      int i = 0;
+      for (int id = newest; id >= 0; id = older[id]) { targets[i++] = id; }
+      return targets;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getMaxFields() { return maxFields; }
+
+  long getHits() { return hits.sum(); }
+
+  long getMisses() { return misses.sum(); }
+
+  long getEvictions() { return evictions.sum(); }
+
+  @Override
+  public String toString() {
+    return numFields + "/" + maxFields + " fields cached, "
+        + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions";
+  }
+
+}
@@ -0,0 +1,256 @@
+package swarms;
+
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+/**
+ * An 8-connected grid graph in compressed sparse row (CSR) form. Cells are identified by int IDs
+ * (cell (i, j) has ID i * nCellsY + j), and the edges leaving each cell occupy a contiguous range of "slots" in
+ * primitive arrays of neighbor IDs and edge lengths. Walls are modeled by marking edges as removed in a bitset, so
+ * neither the graph nor traversals of it allocate any per-cell or per-edge objects.
+ *
+ * A typical traversal looks like:
+ * <pre>
+ *   for (int slot = graph.getFirstSlot(cell); slot &lt; graph.getEndSlot(cell); slot++) {
+ *     if (graph.isRemoved(slot)) { continue; }
+ *     int neighbor = graph.getNeighbor(slot);
+ *     ...
+ *   }
+ * </pre>
+ */
+class GridGraph {
+
+  // Offsets to the (up to) 8 neighbors of a cell
+  private static final int[] neighborOffsetsX = {-1, -1, -1, 0, 0, 1, 1, 1};
+  private static final int[] neighborOffsetsY = {-1, 0, 1, -1, 1, -1, 0, 1};
+
+  private final double minX, minY, fineness;
+  private final int nCellsX, nCellsY;
+  private final int[] firstSlot;  // Edges leaving cell c occupy slots firstSlot[c] to firstSlot[c + 1] - 1
+  private final int[] neighbors;  // Cell at the other end of each edge
+  private final float[] lengths;  // Length of each edge
+  private final BitSet removed;   // Edges that have been removed (e.g., because they cross a wall)
+  private int numCellsInGraph = 0;
+
+  /**
+   * @param minX x-coordinate of cell (0, 0)
+   * @param minY y-coordinate of cell (0, 0)
+   * @param fineness distance between adjacent cells
+   * @param nCellsX number of columns of cells
+   * @param nCellsY number of rows of cells
+   * @param isInGraph which cell IDs are part of the graph; cells not in the graph have no edges
+   */
+  GridGraph(double minX, double minY, double fineness, int nCellsX, int nCellsY, IntPredicate isInGraph) {
+    this.minX = minX;
+    this.minY = minY;
+    this.fineness = fineness;
+    this.nCellsX = nCellsX;
+    this.nCellsY = nCellsY;
+
+    int numCells = nCellsX * nCellsY;
+    boolean[] inGraph = new boolean[numCells];
+    for (int cell = 0; cell < numCells; cell++) {
+      inGraph[cell] = isInGraph.test(cell);
+      if (inGraph[cell]) { numCellsInGraph++; }
+    }
+
+    // Count the edges leaving each cell, to lay out the slots
+    firstSlot = new int[numCells + 1];
+    for (int i = 0; i < nCellsX; i++) {
+      for (int j = 0; j < nCellsY; j++) {
+        int cell = getID(i, j);
+        firstSlot[cell + 1] = firstSlot[cell];
+        for (int k = 0; inGraph[cell] && k < neighborOffsetsX.length; k++) {
+          if (hasNeighbor(i, j, k, inGraph)) { firstSlot[cell + 1]++; }
+        }
+      }
+    }
+
+    // Fill in the edges
+    neighbors = new int[firstSlot[numCells]];
+    lengths = new float[firstSlot[numCells]];
+    removed = new BitSet(neighbors.length);
+    for (int i = 0; i < nCellsX; i++) {
+      for (int j = 0; j < nCellsY; j++) {
+        int cell = getID(i, j);
+        int slot = firstSlot[cell];
+        for (int k = 0; inGraph[cell] && k < neighborOffsetsX.length; k++) {
+          if (hasNeighbor(i, j, k, inGraph)) {
+            neighbors[slot] = getID(i + neighborOffsetsX[k], j + neighborOffsetsY[k]);
+            lengths[slot] = (float) (fineness * Math.hypot(neighborOffsetsX[k], neighborOffsetsY[k]));
+            slot++;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the k-th neighbor of cell (i, j) lies inside the grid and is in the graph
+   */
+  private boolean hasNeighbor(int i, int j, int k, boolean[] inGraph) {
+    int ni = i + neighborOffsetsX[k], nj = j + neighborOffsetsY[k];
+    return 0 <= ni && ni < nCellsX && 0 <= nj && nj < nCellsY && inGraph[getID(ni, nj)];
+  }
+
+  int getNumCells() {
+    return nCellsX * nCellsY;
+  }
+
+  int getNumCellsInGraph() {
+    return numCellsInGraph;
+  }
+
+  int getNCellsX() {
+    return nCellsX;
+  }
+
+  int getNCellsY() {
+    return nCellsY;
+  }
+
+  /**
+   * @return distance between adjacent cells
+   */
+  double getFineness() {
+    return fineness;
+  }
+
+  int getID(int i, int j) {
+    return i * nCellsY + j;
+  }
+
+  /**
+   * @return column index i of the cell with ID i * nCellsY + j
+   */
+  int getIndexX(int cell) {
+    return cell / nCellsY;
+  }
+
+  /**
+   * @return row index j of the cell with ID i * nCellsY + j
+   */
+  int getIndexY(int cell) {
+    return cell % nCellsY;
+  }
+
+  /**
+   * @return ID of the cell containing the given position, or -1 if the position lies outside of the grid
+   */
+  int getIDFromPosition(double x, double y) {
+    int i = (int) ((x - minX) / fineness);
+    int j = (int) ((y - minY) / fineness);
+    if (i < 0 || i >= nCellsX || j < 0 || j >= nCellsY) { return -1; }
+    return getID(i, j);
+  }
+
+  double getX(int cell) {
+    return minX + (cell / nCellsY) * fineness;
+  }
+
+  double getY(int cell) {
+    return minY + (cell % nCellsY) * fineness;
+  }
+
+  int getFirstSlot(int cell) {
+    return firstSlot[cell];
+  }
+
+  int getEndSlot(int cell) {
+    return firstSlot[cell + 1];
+  }
+
+  int getNeighbor(int slot) {
+    return neighbors[slot];
+  }
+
+  float getLength(int slot) {
+    return lengths[slot];
+  }
+
+  boolean isRemoved(int slot) {
+    return removed.get(slot);
+  }
+
+  /**
+   * @return true if there is a (non-removed) edge between the two cells
+   */
+  boolean hasEdge(int cell, int neighbor) {
+    for (int slot = firstSlot[cell]; slot < firstSlot[cell + 1]; slot++) {
+      if (neighbors[slot] == neighbor && !removed.get(slot)) { return true; }
+    }
+    return false;
+  }
+
+  /**
+   * @return number of (non-removed) edges leaving the cell
+   */
+  int getDegree(int cell) {
+    int degree = 0;
+    for (int slot = firstSlot[cell]; slot < firstSlot[cell + 1]; slot++) {
+      if (!removed.get(slot)) { degree++; }
+    }
+    return degree;
+  }
+
+  /**
+   * @return slot of the same edge as the given slot, in the opposite direction
+   */
+  int getReverseSlot(int cell, int slot) {
+    int neighbor = neighbors[slot];
+    for (int reverseSlot = firstSlot[neighbor]; reverseSlot < firstSlot[neighbor + 1]; reverseSlot++) {
+      if (neighbors[reverseSlot] == cell) { return reverseSlot; }
+    }
+    throw new IllegalStateException("Edge " + slot + " from cell " + cell + " has no reverse slot");
+  }
+
+  /**
+   * Removes the edge in the given slot, along with the slot for the same edge in the opposite direction
+   * @param cell cell that the edge leaves
+   * @param slot slot of the edge
+   */
+  void removeEdge(int cell, int slot) {
+    removed.set(slot);
+    int neighbor = neighbors[slot];
+    for (int reverseSlot = firstSlot[neighbor]; reverseSlot < firstSlot[neighbor + 1]; reverseSlot++) {
+      if (neighbors[reverseSlot] == cell) { removed.set(reverseSlot); }
+    }
+  }
+
+  /**
+   * Restores an edge removed by removeEdge(), in both directions
+   * @param cell cell that the edge leaves
+   * @param slot slot of the edge
+   */
+  void restoreEdge(int cell, int slot) {
+    removed.clear(slot);
+    int neighbor = neighbors[slot];
+    for (int reverseSlot = firstSlot[neighbor]; reverseSlot < firstSlot[neighbor + 1]; reverseSlot++) {
+      if (neighbors[reverseSlot] == cell) { removed.clear(reverseSlot); }
+    }
+  }
+
+  /**
+   * @return which edges have been removed, as a bitset over slots in the form of BitSet.toLongArray()
+   */
+  long[] getRemovedWords() {
+    return removed.toLongArray();
+  }
+
+  /**
+   * Replaces the set of removed edges
+   * @param words bitset over slots, as returned by getRemovedWords()
+   */
+  void setRemovedWords(long[] words) {
+    removed.clear();
+    removed.or(BitSet.valueOf(words));
+  }
+
+  /**
+   * @return number of (non-removed) undirected edges in the graph
+   */
+  int getNumEdges() {
+    return (neighbors.length - removed.cardinality()) / 2;
+  }
+
+}
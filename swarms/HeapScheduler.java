@@ -0,0 +1,41 @@
+package swarms;
+
+import java.util.PriorityQueue;
+
+/**
+ * An AgentScheduler backed by a binary heap (java.util.PriorityQueue) of agent views, costing O(log N) per operation.
+ */
+class HeapScheduler implements AgentScheduler {
+
+  private final Agent[] agents; // Views of all agents, sorted by ID
+  private final PriorityQueue<Agent> orderedAgents;
+
+  /**
+   * @param agents views of all agents, sorted by ID
+   */
+  HeapScheduler(Agent[] agents) {
+    this.agents = agents;
+    orderedAgents = new PriorityQueue<>(Math.max(agents.length, 1), new AgentComparator());
+  }
+
+  @Override
+  public void add(int agent) {
+    orderedAgents.add(agents[agent]);
+  }
+
+  @Override
+  public int poll() {
+    return orderedAgents.poll().getID();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return orderedAgents.isEmpty();
+  }
+
+  @Override
+  public int size() {
+    return orderedAgents.size();
+  }
+
+}
@@ -0,0 +1,97 @@
+package swarms;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap over integer IDs in [0, capacity), ordered by a double key per ID. Unlike
+ * java.util.PriorityQueue, the key of an ID already in the heap can be decreased in place, so shortest-path searches
+ * never hold stale duplicate entries, and no objects are allocated per operation.
+ */
+class IndexedMinHeap {
+
+  private final int[] heap;      // IDs, in heap order
+  private final int[] position;  // Index of each ID in heap, or -1 if the ID is not in the heap
+  private final double[] keys;   // Current key of each ID
+  private int size = 0;
+
+  IndexedMinHeap(int capacity) {
+    heap = new int[capacity];
+    position = new int[capacity];
+    Arrays.fill(position, -1);
+    keys = new double[capacity];
+  }
+
+  /**
+   * Removes all IDs from the heap, in time proportional to the number of IDs in it
+   */
+  void clear() {
+    for (int i = 0; i < size; i++) { position[heap[i]] = -1; }
+    size = 0;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Inserts the ID with the given key or, if the ID is already in the heap with a larger key, lowers its key.
+   * @param id ID to insert
+   * @param key priority of the ID; smaller keys are polled first
+   */
+  void insertOrDecrease(int id, double key) {
+    if (position[id] < 0) {
+      heap[size] = id;
+      position[id] = size;
+      size++;
+    } else if (key >= keys[id]) {
+      return;
+    }
+    keys[id] = key;
+    siftUp(position[id]);
+  }
+
+  /**
+   * Removes and returns the ID with the smallest key
+   * @return ID with the smallest key
+   */
+  int poll() {
+    int min = heap[0];
+    size--;
+    if (size > 0) {
+      heap[0] = heap[size];
+      position[heap[0]] = 0;
+      siftDown(0);
+    }
+    position[min] = -1;
+    return min;
+  }
+
+  private void siftUp(int idx) {
+    int id = heap[idx];
+    while (idx > 0) {
+      int parent = (idx - 1) / 2;
+      if (keys[heap[parent]] <= keys[id]) { break; }
+      heap[idx] = heap[parent];
+      position[heap[idx]] = idx;
+      idx = parent;
+    }
+    heap[idx] = id;
+    position[id] = idx;
+  }
+
+  private void siftDown(int idx) {
+    int id = heap[idx];
+    while (true) {
+      int child = 2 * idx + 1;
+      if (child >= size) { break; }
+      if (child + 1 < size && keys[heap[child + 1]] < keys[heap[child]]) { child++; }
+      if (keys[heap[child]] >= keys[id]) { break; }
+      heap[idx] = heap[child];
+      position[heap[idx]] = idx;
+      idx = child;
+    }
+    heap[idx] = id;
+    position[id] = idx;
+  }
+
+}
@@ -1,8 +1,5 @@
 package swarms;
 
-import math.geom2d.Point2D;
-import math.geom2d.Vector2D;
-
 /**
  * This class implements the details of each type of interaction (pushing, orientation, and speed-attraction)
  * between agents. This is static because the rules governing interaction depend only (graph) distances between
@@ -17,7 +14,7 @@ class Interactions {
   private static final double frictionStrength = 1.0; // Scalar weight of interpersonal friction term
 
   //    Orientation parameters
-  private static final double orientRange = 2.0; // Maximum distance between agents at which orientation applies
+  static final double orientRange = 2.0; // Maximum distance between agents at which orientation applies
   private static final double orientWeight = 3.0; // Multiplicative weight for orientation term
 
   //    Speed attraction parameters:
@@ -25,9 +22,9 @@ class Interactions {
   private static final double speedAttractWeight = 5.0; // Multiplicative weight for the speedAttraction term
 
   // Returns true if and only if agents a1 and a2 collide
-  static boolean collision(Agent a1, Agent a2) {
-    double dist = Point2D.distance(a1.getPos(), a2.getPos());
-    double totRadius = a1.getRadius() + a2.getRadius();
+  static boolean collision(AgentStore agents, int a1, int a2) {
+    double dist = Math.hypot(agents.posX[a1] - agents.posX[a2], agents.posY[a1] - agents.posY[a2]);
+    double totRadius = agents.radius[a1] + agents.radius[a2];
     return dist < totRadius;
   }
 
@@ -39,60 +36,101 @@ class Interactions {
    *
    *  Note that, due to Newton's third law of motion, equal but opposite forces are exerted on the pusher.
    *
-   * @param pusher agent doing the pushing
-   * @param pushee agent being pushed by the pusher
+   * @param agents state of all agents
+   * @param pusher ID of agent doing the pushing
+   * @param pushee ID of agent being pushed by the pusher
+   * @param forceX array, indexed by agent ID, to which to add the x-components of the resulting forces
+   * @param forceY array, indexed by agent ID, to which to add the y-components of the resulting forces
    */
-  static void push(Agent pusher, Agent pushee) {
+  static void push(AgentStore agents, int pusher, int pushee, double[] forceX, double[] forceY) {
+    push(agents, pusher, pushee, 1.0, 1.0, forceX, forceY);
+  }
 
-    double distance = Point2D.distance(pusher.getPos(), pushee.getPos()); // distance between centers of agents
-    double compression = pusher.getRadius() + pushee.getRadius() - distance; // distance that agents are being compressed
+  /**
+   * Adds the forces on the agent of pushing the other agent and of being pushed by it, as push(agent, other) and
+   * push(other, agent) together would, but without adding anything to the other agent's forces. By symmetry, the agent
+   * bears the same force either way, so it is just twice the force of being pushed. This lets each agent's forces be
+   * computed by the tile owning it (see AgentTiles), without writing to agents of other tiles.
+   */
+  static void pushBothWays(AgentStore agents, int agent, int other, double[] forceX, double[] forceY) {
+    push(agents, other, agent, 2.0, 0.0, forceX, forceY);
+  }
+
+  /**
+   * Computes the force of the pusher on the pushee (and the opposite force on the pusher), and adds each, scaled by the
+   * given weight, to its agent's forces; forces with zero weight aren't added at all
+   */
+  private static void push(AgentStore agents, int pusher, int pushee, double pusheeWeight, double pusherWeight,
+                           double[] forceX, double[] forceY) {
+
+    double dx = agents.posX[pushee] - agents.posX[pusher], dy = agents.posY[pushee] - agents.posY[pusher];
+    double distance = Math.hypot(dx, dy); // distance between centers of agents
+    double compression = agents.radius[pusher] + agents.radius[pushee] - distance; // distance that agents are being compressed
 
     // Compute normal and tangent vectors of agents' interaction
-    Vector2D normalVec = new Vector2D(pusher.getPos(), pushee.getPos()).normalize();
-    Vector2D tangentVec = new Vector2D(normalVec.y(), - normalVec.x()); // orthogonal to normalVec
+    double normalX = dx / distance, normalY = dy / distance;
+    double tangentX = normalY, tangentY = -normalX; // orthogonal to normal
 
     // Compute repulsion component
     double repulsionMagnitude = repulsionStrength * Math.exp(compression/compressiveTolerance);
-    Vector2D repulsionForce = normalVec.times(repulsionMagnitude);
 
     // Compute friction component
-    Vector2D velDiff = pusher.getVel().minus(pushee.getVel());
-    double frictionMagnitude = frictionStrength * compression * Vector2D.dot(velDiff, tangentVec);
-    Vector2D frictionForce = tangentVec.times(frictionMagnitude);
+    double velDiffX = agents.velX[pusher] - agents.velX[pushee], velDiffY = agents.velY[pusher] - agents.velY[pushee];
+    double frictionMagnitude = frictionStrength * compression * (velDiffX * tangentX + velDiffY * tangentY);
 
     // Compute total force and apply it to each agent
-    Vector2D totalForce = repulsionForce.plus(frictionForce);
-    pushee.addForce(totalForce);
-    pusher.addForce(totalForce.opposite());
+    double totalX = normalX * repulsionMagnitude + tangentX * frictionMagnitude;
+    double totalY = normalY * repulsionMagnitude + tangentY * frictionMagnitude;
+    if (pusheeWeight != 0.0) { addForce(agents, pushee, totalX * pusheeWeight, totalY * pusheeWeight, forceX, forceY); }
+    if (pusherWeight != 0.0) { addForce(agents, pusher, -totalX * pusherWeight, -totalY * pusherWeight, forceX, forceY); }
 
   }
 
-  static void orient(Agent orientor, Agent orientee, Room room) {
-    if (Point2D.distance(orientor.getPos(), orientee.getPos()) > orientRange) {
+  static void orient(AgentStore agents, int orientor, int orientee, Room room, double[] forceX, double[] forceY) {
+    if (Math.hypot(agents.posX[orientor] - agents.posX[orientee], agents.posY[orientor] - agents.posY[orientee]) > orientRange) {
       // Since Euclidean distance is much faster to compute than graph distance and is always shorter than graph
       // distance, check this first
       return;
     }
-    if (room.getDistanceBetween(orientee.getPos(), orientee.getPos()) < orientRange
-        && orientor.getSpeed() - orientee.getSpeed() > 0.0) {
-      orientee.addForce(orientor.getVel().times(orientWeight));
+    if (room.getDistanceBetween(agents.posX[orientee], agents.posY[orientee], agents.posX[orientee], agents.posY[orientee]) < orientRange
+        && agents.getSpeed(orientor) - agents.getSpeed(orientee) > 0.0) {
+      addForce(agents, orientee, agents.velX[orientor] * orientWeight, agents.velY[orientor] * orientWeight, forceX, forceY);
     }
   }
 
   /**
    * Agents (attractees) are attracted to other faster-moving agents (attractors)
-   * @param attractor (slow) agent being attracted to attractor
-   * @param attractee (fast) agent attracting attractee
+   * @param agents state of all agents
+   * @param attractor ID of (fast) agent attracting attractee
+   * @param attractee ID of (slow) agent being attracted to attractor
    * @param room Room object encoding ambient geometry of the room
+   * @param forceX array, indexed by agent ID, to which to add the x-component of the resulting force
+   * @param forceY array, indexed by agent ID, to which to add the y-component of the resulting force
+   * @param direction length-2 scratch array, owned by the calling thread
    */
-  static void speedAttract(Agent attractor, Agent attractee, Room room) {
-    double magnitude = attractor.getSpeed() - attractee.getSpeed() - speedPenalty;
+  static void speedAttract(AgentStore agents, int attractor, int attractee, Room room,
+                           double[] forceX, double[] forceY, double[] direction) {
+    double magnitude = agents.getSpeed(attractor) - agents.getSpeed(attractee) - speedPenalty;
     if (magnitude > Double.MIN_VALUE) {
-      Vector2D direction = room.getGradientBetween(attractee.getPos(), attractor.getPos()).normalize();
-      if (!Double.isNaN(direction.norm())) {
-        attractee.addForce(direction.times(speedAttractWeight * magnitude));
+      room.getGradientBetween(agents.posX[attractee], agents.posY[attractee],
+                              agents.posX[attractor], agents.posY[attractor], direction);
+      double norm = Math.hypot(direction[0], direction[1]);
+      if (norm > 0.0) { // a zero (or NaN) gradient has no direction
+        double scale = speedAttractWeight * magnitude / norm;
+        addForce(agents, attractee, direction[0] * scale, direction[1] * scale, forceX, forceY);
       }
     }
   }
 
+  /**
+   * Adds a new social force (fx, fy) acting upon the agent (e.g., due to a new collision). Forces are accumulated in
+   * caller-supplied arrays (usually the AgentStore's social forces) so that parallel engines can give each thread its
+   * own arrays.
+   */
+  private static void addForce(AgentStore agents, int agent, double fx, double fy, double[] forceX, double[] forceY) {
+    assert !agents.exited[agent]; // Shouldn't be adding social forces to agents who have already exited
+    forceX[agent] += fx;
+    forceY[agent] += fy;
+  }
+
 }
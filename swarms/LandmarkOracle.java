@@ -0,0 +1,347 @@
+package swarms;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers queries for graph distances between cells from a few landmark cells, rather than from a distance field per
+ * target cell (the "ALT" technique: A*, landmarks, and the triangle inequality). The distance from each landmark to
+ * every cell is precomputed, and, for any cells s and t, bounds their distance:
+ * <pre>
+ *   max over landmarks l of |d(l, s) - d(l, t)|  &lt;=  d(s, t)  &lt;=  min over landmarks l of d(l, s) + d(l, t)
+ * </pre>
+ * If the bounds are within maxSlack of each other, their midpoint is returned; otherwise, the exact distance is found
+ * by an A* search, guided by the larger of the lower bound and the distance on the grid without walls. Memory is
+ * O(numLandmarks * numCells) rather than O(numCells^2), and no query ever searches the whole graph unless the cells
+ * are (nearly) disconnected. Since agents move much less than a cell per update, each thread also keeps the results of
+ * its recent searches.
+ *
+ * Distances are those of shortest paths along the graph's edges, so they are slightly longer than the distances of
+ * Room's distance fields, which follow straight lines wherever cells see each other.
+ * Once constructed, an oracle can be queried from multiple threads; each thread searches in its own scratch space.
+ */
+class LandmarkOracle {
+
+  private final GridGraph graph;
+  private final int numLandmarks;
+  private final float[] distances;  // Distance from landmark l to cell c at index c * numLandmarks + l, so that the
+                                    // distances of a cell to all landmarks share a cache line or two
+  private final double fineness;    // Distance between adjacent cells
+  private final double maxSlack;    // Largest gap between the bounds at which they are used instead of searching
+  private final ThreadLocal<Search> searches;
+
+  // Weight of the lower bound in the keys of a search. On a grid, many paths are equally short, so many cells tie; a
+  // slightly larger weight breaks ties toward the target, so searches settle about one path of them instead of all of
+  // them, while paths found are no more than this factor longer than the shortest
+  private static final double tieBreak = 1.0 + 1e-6;
+  // Number of landmarks that bound distances during a search: those giving the best bound between its start and target,
+  // which usually give the best bounds along the way too, at a fraction of the cost of using all of the landmarks
+  private static final int numActiveLandmarks = 4;
+  private static final int cachedResultBits = 14;
+  private static final int numCachedResults = 1 << cachedResultBits; // Per thread
+
+  private final LongAdder numBoundedQueries; // queries answered from the bounds alone
+  private final LongAdder numCachedQueries;  // queries answered from a recent search of the same thread
+  private final LongAdder numSearches;       // queries that needed a search
+  private final LongAdder numSearchedCells;  // cells settled by those searches
+
+  /**
+   * Scratch space of a search, reused by all searches on one thread. Entries are only valid for the current search,
+   * as marked by its stamp, so nothing needs to be cleared between searches.
+   */
+  private class Search {
+    final IndexedMinHeap frontier = new IndexedMinHeap(graph.getNumCells());
+    final double[] pathLengths = new double[graph.getNumCells()]; // Length of the shortest path found to each cell
+    final int[] reachedStamps = new int[graph.getNumCells()];
+    final int[] settledStamps = new int[graph.getNumCells()];
+    final int[] goalStamps = new int[graph.getNumCells()];
+    final int[] goals = new int[9];        // Cells that a search must settle (a cell and its up to 8 neighbors)
+    final double[] around = new double[9]; // Result of getDistancesAround()
+    final int[] activeLandmarks = new int[numActiveLandmarks]; // Landmarks bounding distances to the search's target
+    final float[] activeFromTarget = new float[numActiveLandmarks]; // Distances from them to the target
+    final double[] activeBounds = new double[numActiveLandmarks];   // Their bounds between the start and the target
+    // Results of recent searches of getDistancesAround(), in a direct-mapped cache: the entry of (source, target) is
+    // at index (hash of the pair) % numCachedResults, and holds 9 distances (as in getDistancesAround()) from index
+    // 9 * entry on. Agents move much less than a cell per update, so the same pairs of cells recur for a while.
+    final long[] cachedPairs = new long[numCachedResults];
+    final double[] cachedResults = new double[9 * numCachedResults];
+    int stamp = 0;
+
+    Search() {
+      Arrays.fill(cachedPairs, -1L);
+    }
+
+    void begin() {
+      frontier.clear();
+      if (stamp == Integer.MAX_VALUE) { // Stamps would wrap around, so clear them instead
+        Arrays.fill(reachedStamps, 0);
+        Arrays.fill(settledStamps, 0);
+        Arrays.fill(goalStamps, 0);
+        stamp = 0;
+      }
+      stamp++;
+    }
+
+    double getPathLength(int cell) {
+      return (settledStamps[cell] == stamp) ? pathLengths[cell] : Double.POSITIVE_INFINITY;
+    }
+  }
+
+  /**
+   * Chooses the landmarks and computes their distances to every cell. Landmarks are chosen by farthest-point
+   * sampling (each is the cell farthest from all landmarks chosen before it), which spreads them around the edges of
+   * the room, where they give the tightest bounds.
+   * @param graph graph of the room, with all of its walls added
+   * @param numLandmarks number of landmarks; more landmarks give tighter bounds, at the cost of memory and query time
+   * @param maxSlack largest gap between the bounds on a distance at which their midpoint is used instead of searching
+   * @param metrics registry in which to count queries and searches
+   */
+  LandmarkOracle(GridGraph graph, int numLandmarks, double maxSlack, MetricsRegistry metrics) {
+    if (numLandmarks < 1) { throw new IllegalArgumentException("Need at least one landmark: " + numLandmarks); }
+    this.graph = graph;
+    this.numLandmarks = numLandmarks;
+    this.maxSlack = maxSlack;
+    fineness = graph.getFineness();
+    searches = ThreadLocal.withInitial(Search::new);
+    numBoundedQueries = metrics.counter("landmarks.boundedQueries");
+    numCachedQueries = metrics.counter("landmarks.cachedQueries");
+    numSearches = metrics.counter("landmarks.searches");
+    numSearchedCells = metrics.counter("landmarks.searchedCells");
+
+    int numCells = graph.getNumCells();
+    int start = 0;
+    while (start < numCells && graph.getDegree(start) == 0) { start++; }
+    if (start == numCells) { throw new IllegalArgumentException("Can't place landmarks in a graph without edges"); }
+
+    distances = new float[numCells * numLandmarks];
+    double[] fromNearestLandmark = computeDistancesFrom(start); // From the start cell, until a landmark is chosen
+    for (int landmark = 0; landmark < numLandmarks; landmark++) {
+      // Cells that no landmark reaches (e.g., in a part of the room cut off by walls) are infinitely far, so they
+      // are chosen first
+      int farthest = start;
+      for (int cell = 0; cell < numCells; cell++) {
+        if (fromNearestLandmark[cell] > fromNearestLandmark[farthest] && graph.getDegree(cell) > 0) { farthest = cell; }
+      }
+      double[] fromLandmark = computeDistancesFrom(farthest);
+      for (int cell = 0; cell < numCells; cell++) {
+        distances[cell * numLandmarks + landmark] = (float) fromLandmark[cell];
+        fromNearestLandmark[cell] = (landmark == 0) ? fromLandmark[cell]
+                                                    : Math.min(fromNearestLandmark[cell], fromLandmark[cell]);
+      }
+    }
+  }
+
+  int getNumLandmarks() {
+    return numLandmarks;
+  }
+
+  /**
+   * @return graph distance between the cells (approximate within maxSlack / 2), or infinity if they aren't connected
+   */
+  double getDistance(int source, int target) {
+    double distance = getBoundedDistance(source, target);
+    if (!Double.isNaN(distance)) {
+      numBoundedQueries.increment();
+      return distance;
+    }
+    Search search = searches.get();
+    search.goals[0] = source;
+    search(search, target, source, 1);
+    return search.getPathLength(source);
+  }
+
+  /**
+   * Finds the graph distances to the target from the source cell and each of its neighbors, as needed to compute a
+   * gradient at the source; a single search (if any) finds all of them
+   * @return array (owned by the calling thread, and overwritten by its next call) in which element 0 is the distance
+   * from the source, and element 1 + k is the distance from the neighbor in the source's k-th slot of the graph (see
+   * GridGraph.getFirstSlot()); elements of removed slots are undefined
+   */
+  double[] getDistancesAround(int source, int target) {
+    Search search = searches.get();
+    double[] around = search.around;
+    int firstSlot = graph.getFirstSlot(source), endSlot = graph.getEndSlot(source);
+
+    long pair = ((long) source << 32) | target;
+    int entry = (int) ((pair * 0x9E3779B97F4A7C15L) >>> (64 - cachedResultBits)); // Fibonacci hashing
+    if (search.cachedPairs[entry] == pair) {
+      numCachedQueries.increment();
+      System.arraycopy(search.cachedResults, 9 * entry, around, 0, 9);
+      return around;
+    }
+
+    boolean bounded = true;
+    int numGoals = 0;
+    for (int k = 0; k <= endSlot - firstSlot; k++) {
+      if (k > 0 && graph.isRemoved(firstSlot + k - 1)) { continue; }
+      int cell = (k == 0) ? source : graph.getNeighbor(firstSlot + k - 1);
+      around[k] = getBoundedDistance(cell, target);
+      bounded &= !Double.isNaN(around[k]);
+      search.goals[numGoals++] = cell;
+    }
+    if (bounded) {
+      numBoundedQueries.increment();
+      return around;
+    }
+
+    search(search, target, source, numGoals);
+    around[0] = search.getPathLength(source);
+    for (int slot = firstSlot; slot < endSlot; slot++) {
+      if (!graph.isRemoved(slot)) { around[1 + slot - firstSlot] = search.getPathLength(graph.getNeighbor(slot)); }
+    }
+    search.cachedPairs[entry] = pair;
+    System.arraycopy(around, 0, search.cachedResults, 9 * entry, 9);
+    return around;
+  }
+
+  /**
+   * Runs an A* search from the start cell, guided by a lower bound on the distance to the target cell, until all of
+   * the goal cells in search.goals (the target and any cells near it) are settled. Since the lower bound is consistent,
+   * every settled cell's path length is exact (up to tieBreak).
+   */
+  private void search(Search search, int start, int target, int numGoals) {
+    numSearches.increment();
+    search.begin();
+    int stamp = search.stamp;
+    for (int i = 0; i < numGoals; i++) { search.goalStamps[search.goals[i]] = stamp; }
+    int numGoalsLeft = numGoals; // Goals are distinct cells
+    chooseActiveLandmarks(search, start, target);
+
+    search.pathLengths[start] = 0.0;
+    search.reachedStamps[start] = stamp;
+    search.frontier.insertOrDecrease(start, tieBreak * getSearchLowerBound(search, start, target));
+    long numSettled = 0;
+    while (numGoalsLeft > 0 && !search.frontier.isEmpty()) {
+      int cell = search.frontier.poll();
+      search.settledStamps[cell] = stamp;
+      numSettled++;
+      if (search.goalStamps[cell] == stamp) { numGoalsLeft--; }
+      for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+        int neighbor = graph.getNeighbor(slot);
+        if (graph.isRemoved(slot) || search.settledStamps[neighbor] == stamp) { continue; }
+        double pathLength = search.pathLengths[cell] + graph.getLength(slot);
+        if (search.reachedStamps[neighbor] != stamp || pathLength < search.pathLengths[neighbor]) {
+          search.reachedStamps[neighbor] = stamp;
+          search.pathLengths[neighbor] = pathLength;
+          search.frontier.insertOrDecrease(neighbor, pathLength + tieBreak * getSearchLowerBound(search, neighbor, target));
+        }
+      }
+    }
+    numSearchedCells.add(numSettled);
+  }
+
+  /**
+   * Chooses the landmarks that give the best lower bounds on the distance between the start and target of a search
+   */
+  private void chooseActiveLandmarks(Search search, int start, int target) {
+    int numActive = Math.min(numActiveLandmarks, numLandmarks);
+    double[] bounds = search.activeBounds;
+    Arrays.fill(bounds, -1.0);
+    for (int landmark = 0; landmark < numLandmarks; landmark++) {
+      float fromStart = distances[start * numLandmarks + landmark];
+      float fromTarget = distances[target * numLandmarks + landmark];
+      double bound = (fromStart == fromTarget) ? 0.0 : Math.abs(fromStart - fromTarget);
+      // Insertion sort into the best bounds so far, in decreasing order
+      int i = numActive;
+      while (i > 0 && bound > bounds[i - 1]) {
+        if (i < numActive) {
+          bounds[i] = bounds[i - 1];
+          search.activeLandmarks[i] = search.activeLandmarks[i - 1];
+        }
+        i--;
+      }
+      if (i < numActive) {
+        bounds[i] = bound;
+        search.activeLandmarks[i] = landmark;
+      }
+    }
+    for (int i = 0; i < numActive; i++) {
+      search.activeFromTarget[i] = distances[target * numLandmarks + search.activeLandmarks[i]];
+    }
+  }
+
+  /**
+   * @return lower bound on the distance from the cell to the target of the search, from its active landmarks; like
+   * getLowerBound(), but cheaper
+   */
+  private double getSearchLowerBound(Search search, int cell, int target) {
+    double bound = getGridDistance(cell, target);
+    int offset = cell * numLandmarks;
+    for (int i = 0; i < search.activeLandmarks.length && i < numLandmarks; i++) {
+      float fromCell = distances[offset + search.activeLandmarks[i]], fromTarget = search.activeFromTarget[i];
+      if (fromCell != fromTarget) { bound = Math.max(bound, Math.abs(fromCell - fromTarget)); }
+    }
+    return bound;
+  }
+
+  /**
+   * @return distance between the cells, if its bounds are within maxSlack of each other (or show that the cells aren't
+   * connected), and NaN otherwise
+   */
+  private double getBoundedDistance(int a, int b) {
+    double lowerBound = getLowerBound(a, b);
+    if (lowerBound == Double.POSITIVE_INFINITY) { return lowerBound; }
+    double upperBound = getUpperBound(a, b);
+    return (upperBound - lowerBound <= maxSlack) ? 0.5 * (lowerBound + upperBound) : Double.NaN;
+  }
+
+  /**
+   * @return lower bound on the distance between the cells, which is infinite if some landmark reaches only one of them
+   */
+  private double getLowerBound(int a, int b) {
+    double bound = getGridDistance(a, b);
+    int offsetA = a * numLandmarks, offsetB = b * numLandmarks;
+    for (int landmark = 0; landmark < numLandmarks; landmark++) {
+      float fromA = distances[offsetA + landmark], fromB = distances[offsetB + landmark];
+      if (fromA != fromB) { bound = Math.max(bound, Math.abs(fromA - fromB)); } // Skips pairs of infinities
+    }
+    return bound;
+  }
+
+  /**
+   * @return distance between the cells on the grid without any walls (the "octile" distance), which no path between
+   * them can be shorter than; this is much the tightest lower bound in open parts of the room. It is shrunk slightly,
+   * to stay below the (float) lengths of edges despite round-off.
+   */
+  private double getGridDistance(int a, int b) {
+    int dx = Math.abs(graph.getIndexX(a) - graph.getIndexX(b)), dy = Math.abs(graph.getIndexY(a) - graph.getIndexY(b));
+    return fineness * (Math.max(dx, dy) + (Math.sqrt(2.0) - 1.0) * Math.min(dx, dy)) * (1.0 - 1e-6);
+  }
+
+  /**
+   * @return upper bound on the distance between the cells, which is infinite if no landmark reaches both of them
+   */
+  private double getUpperBound(int a, int b) {
+    int offsetA = a * numLandmarks, offsetB = b * numLandmarks;
+    double bound = Double.POSITIVE_INFINITY;
+    for (int landmark = 0; landmark < numLandmarks; landmark++) {
+      bound = Math.min(bound, (double) distances[offsetA + landmark] + distances[offsetB + landmark]);
+    }
+    return bound;
+  }
+
+  /**
+   * @return graph distance from the cell to every cell (infinite for cells it doesn't reach), by Dijkstra's algorithm
+   */
+  private double[] computeDistancesFrom(int source) {
+    double[] fromSource = new double[graph.getNumCells()];
+    Arrays.fill(fromSource, Double.POSITIVE_INFINITY);
+    IndexedMinHeap frontier = new IndexedMinHeap(graph.getNumCells());
+    fromSource[source] = 0.0;
+    frontier.insertOrDecrease(source, 0.0);
+    while (!frontier.isEmpty()) {
+      int cell = frontier.poll();
+      for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+        if (graph.isRemoved(slot)) { continue; }
+        int neighbor = graph.getNeighbor(slot);
+        double distanceThroughCell = fromSource[cell] + graph.getLength(slot);
+        if (distanceThroughCell < fromSource[neighbor]) {
+          fromSource[neighbor] = distanceThroughCell;
+          frontier.insertOrDecrease(neighbor, distanceThroughCell);
+        }
+      }
+    }
+    return fromSource;
+  }
+
+}
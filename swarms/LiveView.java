@@ -0,0 +1,356 @@
+package swarms;
+
+import math.geom2d.Point2D;
+import org.jfree.ui.ApplicationFrame;
+
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.GraphicsEnvironment;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * A window showing a trial as it runs: the agents in the room, over the walls and the field of shortest distances to
+ * the exits (shaded from dark, near the exits, to light, with arrows down its gradient, as agents follow it).
+ *
+ * The simulation thread offers its agents after every update; if the window has drawn the last snapshot, their
+ * positions are copied into a new snapshot, which is published through a TripleBuffer. The window draws the latest
+ * snapshot about 60 times per second on the Swing event thread, into a raster of its own. So the simulation never
+ * waits for the window, and copies agents no more often than the window draws them. The room is sampled by the
+ * simulation thread when the window is opened, and again whenever walls change during the trial (see roomChanged()),
+ * so the window never reads the room while the simulation runs.
+ *
+ * Closing the window only stops the view; the trial goes on. When the trial ends, its last state stays on screen
+ * until the window is closed.
+ */
+class LiveView extends ApplicationFrame {
+
+  private static final long serialVersionUID = 1L;
+  private static final int frameMillis = 16; // Time between redraws (about 60 frames per second)
+
+  private final Canvas canvas;
+  private final Timer timer;
+  private volatile boolean closed = false;
+
+  /**
+   * Opens a view of a trial, unless the JVM is headless
+   * @param title title of the window (e.g., the condition and trial)
+   * @param time simulation time at which the view starts (e.g., 0.0, or the time of a restored Checkpoint)
+   * @param room room in which the agents move
+   * @param agents agents of the trial, which have been initialized
+   * @return the view, or null if there is no display on which to show it
+   */
+  static LiveView open(String title, double time, Room room, AgentStore agents) {
+    if (GraphicsEnvironment.isHeadless()) {
+      System.err.println("Not showing the live view of " + title + ", since there is no display");
+      return null;
+    }
+    LiveView view = new LiveView(title, new Canvas(time, room, agents));
+    SwingUtilities.invokeLater(() -> {
+      view.pack();
+      view.setVisible(true);
+      view.timer.start();
+    });
+    return view;
+  }
+
+  private LiveView(String title, Canvas canvas) {
+    super(title);
+    this.canvas = canvas;
+    setContentPane(canvas);
+    timer = new Timer(frameMillis, event -> canvas.repaint());
+  }
+
+  /**
+   * Publishes the agents' current positions, unless the window hasn't drawn the last ones yet or has been closed;
+   * never blocks (only called by the simulation thread)
+   * @param time current simulation time
+   * @param agents agents of the trial
+   */
+  void offer(double time, AgentStore agents) {
+    if (!closed) { canvas.offer(time, agents); }
+  }
+
+  /**
+   * Resamples the room after its walls changed (e.g., a door was closed), so that the window draws the new walls and
+   * exit distances from its next frame on (only called by the simulation thread, while no agent is using the room)
+   */
+  void roomChanged(Room room) {
+    if (!closed) { canvas.roomChanged(room); }
+  }
+
+  /**
+   * Publishes the agents' final positions, and stops redrawing once they are drawn
+   * @param time final simulation time
+   */
+  void finish(double time, AgentStore agents) {
+    canvas.publish(time, agents);
+    SwingUtilities.invokeLater(() -> {
+      setTitle(getTitle() + " (finished at " + String.format("%.1f", time) + " s)");
+      canvas.repaint();
+      timer.stop();
+    });
+  }
+
+  /**
+   * Stops the view when its window is closed, rather than exiting, as ApplicationFrame does
+   */
+  @Override
+  public void windowClosing(WindowEvent event) {
+    closed = true;
+    timer.stop();
+    dispose();
+  }
+
+  /**
+   * The panel of a LiveView, which draws the latest snapshot of the agents into a raster the size of the panel, over a
+   * background of the room drawn at that size. Unlike the window, it can be created (and drawn into an image) in a
+   * headless JVM.
+   */
+  static class Canvas extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+    private static final double fieldResolution = 0.25; // Spacing (in meters) of the samples of the distance field
+    private static final double arrowSpacing = 2.5;     // Spacing (in meters) of the arrows down the gradient
+    private static final int agentColor = 0xFFD700, slowAgentColor = 0xFF3030; // Of agents at full speed, and at rest
+    private static final int nearColor = 0x203060, farColor = 0xE8ECF4; // Of places near to and far from exits
+    private static final int outsideColor = 0x808080, arrowColor = 0x6070A0, wallColor = 0x000000;
+
+    // A copy of the agents in the room at some time
+    private static class Snapshot {
+      double time;
+      int numInRoom;
+      final float[] x, y;
+      final float[] speed; // Speed, as a fraction of the agent's maximum speed
+      final int[] id;
+
+      Snapshot(int numAgents) {
+        x = new float[numAgents];
+        y = new float[numAgents];
+        speed = new float[numAgents];
+        id = new int[numAgents];
+      }
+    }
+
+    // Samples of the room's walls and exit distances at some time, which aren't changed once taken
+    private static class RoomSamples {
+      final float[] exitDistances; // Distance to the nearest exit at each sample, or NaN outside the room's graph
+      final float maxExitDistance;
+      final double[][] arrows;     // Segments (x1, y1, x2, y2) down the gradient of the distances to exits
+      final double[][] walls;
+
+      RoomSamples(float[] exitDistances, float maxExitDistance, double[][] arrows, double[][] walls) {
+        this.exitDistances = exitDistances;
+        this.maxExitDistance = maxExitDistance;
+        this.arrows = arrows;
+        this.walls = walls;
+      }
+    }
+
+    private final int numAgents;
+    private final TripleBuffer<Snapshot> snapshots;
+
+    // Extent of the room, which walls changing during the trial don't change
+    private final double minX, minY, maxX, maxY;
+    private final int numSamplesX, numSamplesY;
+    private volatile RoomSamples roomSamples; // Latest samples of the room, replaced by the simulation thread
+    private final float[] radii;
+
+    // Only used by the event thread
+    private RoomSamples drawnSamples = null; // Samples from which background was drawn
+    private BufferedImage image = null;
+    private int[] pixels;
+    private int[] background;
+    private double scale, offsetX, offsetY; // Pixel (px, py) shows (offsetX + px / scale, offsetY - py / scale)
+    private long lastDrawTime = System.nanoTime();
+    private double framesPerSecond = 0.0;
+
+    /**
+     * Samples the room, and publishes the agents' current positions
+     * @param time current simulation time
+     */
+    Canvas(double time, Room room, AgentStore agents) {
+      numAgents = agents.size();
+      snapshots = new TripleBuffer<>(() -> new Snapshot(numAgents));
+      radii = new float[numAgents];
+      for (int id = 0; id < numAgents; id++) { radii[id] = (float) agents.radius[id]; }
+
+      Point2D min = room.getBoundaryMin(), max = room.getBoundaryMax();
+      minX = min.x();
+      minY = min.y();
+      maxX = max.x();
+      maxY = max.y();
+      numSamplesX = (int) Math.ceil((maxX - minX) / fieldResolution) + 1;
+      numSamplesY = (int) Math.ceil((maxY - minY) / fieldResolution) + 1;
+      roomChanged(room);
+
+      setPreferredSize(new Dimension(800, (int) Math.round(800 * (maxY - minY) / (maxX - minX))));
+      publish(time, agents);
+    }
+
+    /**
+     * Samples the room's walls and exit distances, for the event thread to draw from its next frame on
+     */
+    void roomChanged(Room room) {
+      float[] exitDistances = new float[numSamplesX * numSamplesY];
+      float maxDistance = 0.0f;
+      for (int i = 0; i < numSamplesX; i++) {
+        for (int j = 0; j < numSamplesY; j++) {
+          float distance = (float) room.getExitPathLength(minX + i * fieldResolution, minY + j * fieldResolution);
+          exitDistances[i * numSamplesY + j] = distance;
+          if (Float.isFinite(distance)) { maxDistance = Math.max(maxDistance, distance); }
+        }
+      }
+      float maxExitDistance = Math.max(maxDistance, 1.0f);
+
+      int numArrowsX = (int) ((maxX - minX) / arrowSpacing), numArrowsY = (int) ((maxY - minY) / arrowSpacing);
+      double[][] allArrows = new double[numArrowsX * numArrowsY][];
+      double[] gradient = new double[2];
+      int numArrows = 0;
+      for (int i = 0; i < numArrowsX; i++) {
+        for (int j = 0; j < numArrowsY; j++) {
+          double x = minX + (i + 0.5) * arrowSpacing, y = minY + (j + 0.5) * arrowSpacing;
+          if (!Double.isFinite(room.getExitPathLength(x, y))) { continue; }
+          room.getGradient(x, y, gradient);
+          double norm = Math.hypot(gradient[0], gradient[1]);
+          if (!(norm > 0.0)) { continue; }
+          double length = 0.4 * arrowSpacing / norm;
+          allArrows[numArrows++] = new double[]{ x, y, x - length * gradient[0], y - length * gradient[1] };
+        }
+      }
+      roomSamples = new RoomSamples(exitDistances, maxExitDistance, Arrays.copyOf(allArrows, numArrows),
+                                    room.getWallsAsArray());
+    }
+
+    /**
+     * Publishes the agents' current positions, unless the last ones haven't been drawn yet
+     */
+    void offer(double time, AgentStore agents) {
+      if (snapshots.isTaken()) { publish(time, agents); }
+    }
+
+    /**
+     * Copies the positions of the agents in the room into a snapshot, and publishes it
+     */
+    void publish(double time, AgentStore agents) {
+      Snapshot snapshot = snapshots.getBack();
+      int numInRoom = 0;
+      for (int id = 0; id < numAgents; id++) {
+        if (agents.exited[id]) { continue; }
+        snapshot.x[numInRoom] = (float) agents.posX[id];
+        snapshot.y[numInRoom] = (float) agents.posY[id];
+        snapshot.speed[numInRoom] = (float) (Math.hypot(agents.velX[id], agents.velY[id]) / agents.maxSpeed[id]);
+        snapshot.id[numInRoom++] = id;
+      }
+      snapshot.numInRoom = numInRoom;
+      snapshot.time = time;
+      snapshots.publish();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+      int width = Math.max(getWidth(), 1), height = Math.max(getHeight(), 1);
+      RoomSamples samples = roomSamples;
+      if (image == null || image.getWidth() != width || image.getHeight() != height || samples != drawnSamples) {
+        drawBackground(width, height, samples);
+      }
+      snapshots.update();
+      Snapshot snapshot = snapshots.getFront();
+
+      System.arraycopy(background, 0, pixels, 0, pixels.length);
+      for (int i = 0; i < snapshot.numInRoom; i++) {
+        int color = blend(slowAgentColor, agentColor, Math.min(1.0f, snapshot.speed[i]));
+        fillDisc(snapshot.x[i], snapshot.y[i], radii[snapshot.id[i]], color, width, height);
+      }
+      g.drawImage(image, 0, 0, null);
+
+      long now = System.nanoTime();
+      framesPerSecond = 0.9 * framesPerSecond + 0.1 * 1e9 / Math.max(now - lastDrawTime, 1);
+      lastDrawTime = now;
+      g.setColor(Color.BLACK);
+      g.drawString(String.format("t = %.1f s, %d agents in room, %.0f fps", snapshot.time, snapshot.numInRoom,
+                                 framesPerSecond), 8, 16);
+    }
+
+    /**
+     * Draws the sampled distance field, its arrows, and the walls at the given size, scaled to fit the room
+     */
+    private void drawBackground(int width, int height, RoomSamples samples) {
+      drawnSamples = samples;
+      image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+      scale = Math.min(width / (maxX - minX), height / (maxY - minY));
+      offsetX = minX;
+      offsetY = minY + height / scale;
+
+      for (int py = 0; py < height; py++) {
+        for (int px = 0; px < width; px++) {
+          int i = (int) Math.round((offsetX + px / scale - minX) / fieldResolution);
+          int j = (int) Math.round((offsetY - py / scale - minY) / fieldResolution);
+          float distance = (i >= 0 && i < numSamplesX && j >= 0 && j < numSamplesY)
+                           ? samples.exitDistances[i * numSamplesY + j] : Float.NaN;
+          pixels[py * width + px] = Float.isFinite(distance)
+                                    ? blend(nearColor, farColor, distance / samples.maxExitDistance) : outsideColor;
+        }
+      }
+      Graphics g = image.getGraphics();
+      g.setColor(new Color(arrowColor));
+      for (double[] arrow : samples.arrows) {
+        g.drawLine(toPixelX(arrow[0]), toPixelY(arrow[1]), toPixelX(arrow[2]), toPixelY(arrow[3]));
+        g.fillRect(toPixelX(arrow[2]) - 1, toPixelY(arrow[3]) - 1, 3, 3);
+      }
+      g.setColor(new Color(wallColor));
+      for (double[] wall : samples.walls) {
+        g.drawLine(toPixelX(wall[0]), toPixelY(wall[1]), toPixelX(wall[2]), toPixelY(wall[3]));
+      }
+      g.dispose();
+      background = Arrays.copyOf(pixels, pixels.length);
+    }
+
+    private int toPixelX(double x) {
+      return (int) Math.round((x - offsetX) * scale);
+    }
+
+    private int toPixelY(double y) {
+      return (int) Math.round((offsetY - y) * scale);
+    }
+
+    /**
+     * Fills a disc of at least one pixel directly in the raster, one span of pixel centers per row, which is much
+     * faster than Graphics.fillOval() for thousands of agents
+     */
+    private void fillDisc(double x, double y, double radius, int color, int width, int height) {
+      double centerX = (x - offsetX) * scale, centerY = (offsetY - y) * scale, r = Math.max(radius * scale, 0.5);
+      int loY = Math.max(0, (int) Math.ceil(centerY - r - 0.5));
+      int hiY = Math.min(height - 1, (int) Math.floor(centerY + r - 0.5));
+      if (loY > hiY && centerY >= 0.0 && centerY < height) { loY = hiY = (int) centerY; } // Smaller than a pixel
+      for (int py = loY; py <= hiY; py++) {
+        double dy = py + 0.5 - centerY, halfSpan = Math.sqrt(Math.max(r * r - dy * dy, 0.0));
+        int loX = Math.max(0, (int) Math.ceil(centerX - halfSpan - 0.5));
+        int hiX = Math.min(width - 1, (int) Math.floor(centerX + halfSpan - 0.5));
+        if (loX > hiX && centerX >= 0.0 && centerX < width) { loX = hiX = (int) centerX; }
+        if (loX <= hiX) { Arrays.fill(pixels, py * width + loX, py * width + hiX + 1, color); }
+      }
+    }
+
+    /**
+     * @return the color a fraction of the way from color0 to color1, channel by channel
+     */
+    private static int blend(int color0, int color1, float fraction) {
+      int blended = 0;
+      for (int shift = 0; shift < 24; shift += 8) {
+        int c0 = (color0 >> shift) & 0xFF, c1 = (color1 >> shift) & 0xFF;
+        blended |= Math.round(c0 + fraction * (c1 - c0)) << shift;
+      }
+      return blended;
+    }
+
+  }
+
+}
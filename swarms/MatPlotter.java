@@ -1,56 +1,123 @@
 package swarms;
 
-import com.jmatio.io.MatFileWriter;
-import com.jmatio.types.MLArray;
-import com.jmatio.types.MLDouble;
-import math.geom2d.Point2D;
-
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
- * This class records agent positions at regular time increments for plotting later.
- * Eventually, it should also save these in .mat format.
+ * This class records agent positions at regular time increments for plotting later, and saves them in .mat format.
+ *
+ * Frames are streamed to a temporary file on disk as they are recorded: saveFrame() copies positions into a chunk
+ * buffer, and full chunks are appended to the file by a background writer thread. Only a few chunks exist at once, so
+ * memory use doesn't depend on the number of frames. writeToMAT() then transposes the frames into a MAT-file.
  *
  * Created by sss1 on 7/27/16.
  */
 class MatPlotter {
 
-  private ArrayList<Point2D[]> positions;
-  private double[][] room;
-  private double[][] walls;
+  private static final int chunkBytes = 1 << 20; // Approximate size of each chunk of frames passed to the writer
+  private static final int numChunks = 3;        // Number of chunk buffers; saveFrame() blocks if all are queued
+  private static final int transposeBlock = 512; // Side length of the blocks of frames and agents transposed at once
+
+  private final double[][] room;
+  private final double[][] walls;
   private final double[] radii;
   private final double frameRate;
   private double nextFrameTime;
+  private final AgentStore agents;
+  private final int numAgents;
+  private int numFrames = 0;
 
-  MatPlotter(double frameRate, Agent[] agents, Room room) {
+  // Streaming state
+  private final File frameFile;           // Temporary file of frames; frame i holds x-coordinates, then y-coordinates
+  private final FileChannel frameChannel;
+  private final BlockingQueue<ByteBuffer> freeChunks = new ArrayBlockingQueue<>(numChunks);
+  private final BlockingQueue<ByteBuffer> fullChunks = new ArrayBlockingQueue<>(numChunks + 1);
+  private final ByteBuffer endOfFrames = ByteBuffer.allocate(0); // Tells the writer that no more chunks will come
+  private final Thread writer;
+  private volatile IOException writeError = null;
+  private ByteBuffer chunk; // Chunk currently being filled by saveFrame()
+
+  /**
+   * @param frameRate simulation time between frames
+   * @param startTime simulation time at which the movie starts (e.g., 0.0, or the time of a restored Checkpoint); the
+   *                  first frame is saved now, at the last multiple of frameRate before it
+   * @param agents agents whose positions to record
+   * @param room room in which the agents move
+   */
+  MatPlotter(double frameRate, double startTime, AgentStore agents, Room room) {
     this.frameRate = frameRate;
-    radii = new double[agents.length];
-    for (int i = 0; i < agents.length; i++) {
-      radii[i] = agents[i].getRadius();
-    }
-    positions = new ArrayList<>();
-    nextFrameTime = 0.0;
+    this.agents = agents;
+    numAgents = agents.size();
+    radii = Arrays.copyOf(agents.radius, numAgents);
+    nextFrameTime = Math.floor(startTime / frameRate) * frameRate;
     this.room = room.getAsArray();
     this.walls = room.getWallsAsArray();
-    saveFrame(agents);
+
+    int frameBytes = 16 * numAgents;
+    int chunkCapacity = Math.max(1, chunkBytes / Math.max(frameBytes, 1)) * frameBytes;
+    for (int i = 0; i < numChunks; i++) {
+      freeChunks.add(ByteBuffer.allocateDirect(chunkCapacity).order(ByteOrder.LITTLE_ENDIAN));
+    }
+    try {
+      frameFile = File.createTempFile("swarms-frames", ".bin");
+      frameFile.deleteOnExit();
+      frameChannel = FileChannel.open(frameFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      throw new RuntimeException("Couldn't create temporary file for movie frames", e);
+    }
+    writer = new Thread(this::writeChunks, "MatPlotter writer");
+    writer.setDaemon(true);
+    writer.start();
+
+    saveFrame();
   }
 
   /**
    * Saves a frame of the simulation at the next frame time.
-   *
-   * @param agents array of all agents
    */
-  void saveFrame(Agent[] agents) {
-    Point2D[] newPositions = new Point2D[agents.length];
-    for (int i = 0; i < agents.length; i++) {
-      newPositions[i] = agents[i].getPos();
-    }
-    positions.add(newPositions);
-    // System.out.println("Saved frame " + positions.size() + " at time " + nextFrameTime + ".");
+  void saveFrame() {
+    if (chunk == null) { chunk = takeUninterruptibly(freeChunks); }
+    for (int i = 0; i < numAgents; i++) { chunk.putDouble(agents.posX[i]); }
+    for (int i = 0; i < numAgents; i++) { chunk.putDouble(agents.posY[i]); }
+    if (!chunk.hasRemaining()) { flushChunk(); }
+    numFrames++;
+    // System.out.println("Saved frame " + numFrames + " at time " + nextFrameTime + ".");
     nextFrameTime = nextFrameTime + frameRate;
   }
 
+  // Hands the current chunk to the writer thread
+  private void flushChunk() {
+    if (chunk != null) {
+      chunk.flip();
+      putUninterruptibly(fullChunks, chunk);
+      chunk = null;
+    }
+  }
+
+  // Body of the writer thread: appends full chunks to the frame file until it receives endOfFrames
+  private void writeChunks() {
+    while (true) {
+      ByteBuffer fullChunk = takeUninterruptibly(fullChunks);
+      if (fullChunk == endOfFrames) { return; }
+      try {
+        while (fullChunk.hasRemaining() && writeError == null) { frameChannel.write(fullChunk); }
+      } catch (IOException e) {
+        writeError = e;
+      }
+      fullChunk.clear();
+      putUninterruptibly(freeChunks, fullChunk);
+    }
+  }
+
   /**
    * Saves the necessary information to create a frame-by-frame MATLAB movie in a .mat file. Contents:
    * - Agents' x and y positions are stored over time in two
@@ -59,43 +126,225 @@ class MatPlotter {
    * - The room is stored as an edge list of pairs of vertex coordinates between which there is an edge
    *   (e.g., an edge between vertices u and v is encoded as [u.x u.y v.x v.y])
    *
+   * The file is written in (uncompressed, little-endian) Level 5 MAT-file format. Since MAT-files store arrays in
+   * column-major order, the frames are transposed block by block, so this also takes memory independent of the number
+   * of frames.
+   *
    * @param filepath to which to save the .mat file (including the .mat suffix)
    */
   void writeToMAT(String filepath) {
 
-    ArrayList<MLArray> variableList = new ArrayList<>(2);
-
-    // reformat the positions to two numTimeSteps X numAgents double arrays, one each for x and y coordinates
-    int numTimeSteps = positions.size();
-    int numAgents = positions.get(0).length;
-    double[][] positionsXAsArray = new double[numTimeSteps][numAgents];
-    double[][] positionsYAsArray = new double[numTimeSteps][numAgents];
-    for (int i = 0; i < numTimeSteps; i++) {
-      for (int j = 0; j < numAgents; j++) {
-        positionsXAsArray[i][j] = positions.get(i)[j].x();
-        positionsYAsArray[i][j] = positions.get(i)[j].y();
-      }
+    flushChunk();
+    putUninterruptibly(fullChunks, endOfFrames);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
     }
-    variableList.add(new MLDouble("positionsX", positionsXAsArray));
-    variableList.add(new MLDouble("positionsY", positionsYAsArray));
-
-    variableList.add(new MLDouble("room", room));
-    variableList.add(new MLDouble("walls", walls));
-    variableList.add(new MLDouble("radii", radii, radii.length));
 
-    try {
-      new MatFileWriter(filepath, variableList);
+    try (FileChannel out = FileChannel.open(new File(filepath).toPath(), StandardOpenOption.CREATE,
+                                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      if (writeError != null) { throw writeError; }
+      Level5Writer mat = new Level5Writer(out);
+      mat.writeHeader();
+      for (int coordinate = 0; coordinate < 2; coordinate++) {
+        long dataStart = mat.writeMatrixStart((coordinate == 0) ? "positionsX" : "positionsY", numFrames, numAgents);
+        writeTransposedPositions(out, coordinate, dataStart);
+        mat.skipData(numFrames, numAgents);
+      }
+      mat.writeMatrix("room", room);
+      mat.writeMatrix("walls", walls);
+      mat.writeMatrix("radii", new double[][] {radii}, true);
       System.out.println("Saved movie data to file: " + filepath);
     } catch (IOException e) {
       e.printStackTrace();
+    } finally {
+      try {
+        frameChannel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      frameFile.delete();
     }
 
   }
 
+  /**
+   * Copies one coordinate of every frame into the output in column-major order (i.e., all frames of agent 0, then all
+   * frames of agent 1, ...), transposing one transposeBlock X transposeBlock block of frames and agents at a time
+   * @param coordinate 0 for x-coordinates, 1 for y-coordinates
+   * @param dataStart position in out at which the numFrames X numAgents matrix starts
+   */
+  private void writeTransposedPositions(FileChannel out, int coordinate, long dataStart) throws IOException {
+    ByteBuffer rows = ByteBuffer.allocateDirect(8 * transposeBlock * transposeBlock).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer column = ByteBuffer.allocateDirect(8 * transposeBlock).order(ByteOrder.LITTLE_ENDIAN);
+    for (int firstAgent = 0; firstAgent < numAgents; firstAgent += transposeBlock) {
+      int blockAgents = Math.min(transposeBlock, numAgents - firstAgent);
+      for (int firstFrame = 0; firstFrame < numFrames; firstFrame += transposeBlock) {
+        int blockFrames = Math.min(transposeBlock, numFrames - firstFrame);
+
+        // Read the block's part of each frame, one frame after another
+        rows.clear();
+        for (int frame = firstFrame; frame < firstFrame + blockFrames; frame++) {
+          long position = 8L * ((long) frame * 2 * numAgents + (long) coordinate * numAgents + firstAgent);
+          rows.limit(rows.position() + 8 * blockAgents);
+          while (rows.hasRemaining()) {
+            int read = frameChannel.read(rows, position);
+            if (read < 0) { throw new IOException("Unexpected end of temporary frame file"); }
+            position += read;
+          }
+        }
+
+        // Write the block's part of each agent's column
+        for (int agent = 0; agent < blockAgents; agent++) {
+          column.clear();
+          for (int frame = 0; frame < blockFrames; frame++) {
+            column.putDouble(rows.getDouble(8 * (frame * blockAgents + agent)));
+          }
+          column.flip();
+          long position = dataStart + 8L * ((long) (firstAgent + agent) * numFrames + firstFrame);
+          while (column.hasRemaining()) { position += out.write(column, position); }
+        }
+      }
+    }
+  }
+
   /**
    * @return The simulation time at which saveFrame should next be called.
    */
   double getNextFrameTime() {
     return nextFrameTime;
   }
-}
\ No newline at end of file
+
+  private static ByteBuffer takeUninterruptibly(BlockingQueue<ByteBuffer> queue) {
+    while (true) {
+      try {
+        return queue.take();
+      } catch (InterruptedException e) {
+        // Frames must not be lost; keep waiting
+      }
+    }
+  }
+
+  private static void putUninterruptibly(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer) {
+    while (true) {
+      try {
+        queue.put(buffer);
+        return;
+      } catch (InterruptedException e) {
+        // Frames must not be lost; keep waiting
+      }
+    }
+  }
+
+  /**
+   * Writes double matrices to a Level 5 MAT-file (uncompressed, little-endian), sequentially from the start of a
+   * FileChannel. The data of large matrices can instead be written by the caller, between writeMatrixStart() and
+   * skipData().
+   */
+  private static class Level5Writer {
+
+    // Data types and array classes of the MAT-file format
+    private static final int miINT8 = 1, miINT32 = 5, miUINT32 = 6, miDOUBLE = 9, miMATRIX = 14;
+    private static final int mxDOUBLE_CLASS = 6;
+
+    private final FileChannel out;
+    private long position = 0;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    Level5Writer(FileChannel out) {
+      this.out = out;
+    }
+
+    // Writes the 128-byte header: descriptive text, (unused) subsystem data offset, version, and endianness indicator
+    void writeHeader() throws IOException {
+      byte[] text = Arrays.copyOf(("MATLAB 5.0 MAT-file, Platform: Java, Created on: " + new Date())
+                                      .getBytes(StandardCharsets.US_ASCII), 116);
+      for (int i = 0; i < text.length; i++) {
+        if (text[i] == 0) { text[i] = ' '; }
+      }
+      buffer.clear();
+      buffer.put(text);
+      buffer.putLong(0L);
+      buffer.putShort((short) 0x0100);
+      buffer.put((byte) 'I').put((byte) 'M');
+      flush();
+    }
+
+    /**
+     * Writes a complete matrix
+     * @param values matrix, as an array of rows
+     * @param transposed if true, the matrix written is the transpose of values (e.g., a row becomes a column vector)
+     */
+    void writeMatrix(String name, double[][] values, boolean transposed) throws IOException {
+      int numRows = values.length, numColumns = (numRows > 0) ? values[0].length : 0;
+      if (transposed) {
+        writeMatrixStart(name, numColumns, numRows);
+        for (double[] row : values) {
+          for (double value : row) { putDouble(value); }
+        }
+      } else {
+        writeMatrixStart(name, numRows, numColumns);
+        for (int j = 0; j < numColumns; j++) {
+          for (double[] row : values) { putDouble(row[j]); }
+        }
+      }
+      flush();
+    }
+
+    void writeMatrix(String name, double[][] values) throws IOException {
+      writeMatrix(name, values, false);
+    }
+
+    /**
+     * Writes everything in a matrix element up to the start of its data
+     * @return position in the file at which the numRows * numColumns doubles of data, in column-major order, start
+     */
+    long writeMatrixStart(String name, int numRows, int numColumns) throws IOException {
+      byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+      long dataBytes = 8L * numRows * numColumns;
+      long matrixBytes = 16 + 16 + 8 + padded(nameBytes.length) + 8 + dataBytes;
+      if (matrixBytes > 0xFFFFFFFFL) { throw new IOException("Matrix " + name + " is too large for a MAT-file"); }
+
+      buffer.clear();
+      putTag(miMATRIX, matrixBytes);
+      putTag(miUINT32, 8); // Array flags
+      buffer.putInt(mxDOUBLE_CLASS).putInt(0);
+      putTag(miINT32, 8);  // Dimensions
+      buffer.putInt(numRows).putInt(numColumns);
+      putTag(miINT8, nameBytes.length);
+      buffer.put(nameBytes);
+      for (int i = nameBytes.length; i < padded(nameBytes.length); i++) { buffer.put((byte) 0); }
+      putTag(miDOUBLE, dataBytes);
+      flush();
+      return position;
+    }
+
+    // Moves past the data of a matrix written by the caller
+    void skipData(int numRows, int numColumns) {
+      position += 8L * numRows * numColumns;
+    }
+
+    private void putTag(int type, long numBytes) {
+      buffer.putInt(type).putInt((int) numBytes);
+    }
+
+    private void putDouble(double value) throws IOException {
+      if (buffer.remaining() < 8) { flush(); }
+      buffer.putDouble(value);
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) { position += out.write(buffer, position); }
+      buffer.clear();
+    }
+
+    private static long padded(long numBytes) {
+      return (numBytes + 7) / 8 * 8;
+    }
+
+  }
+
+}
@@ -0,0 +1,143 @@
+package swarms;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Periodically dumps the metrics of a trial to a CSV file, with one row per dump, and writes the final values of the
+ * metrics to a JSON file (with the same name, but a .json extension) when the trial ends.
+ * Each row also records the simulation time and the real (wall-clock) time since the log was created.
+ *
+ * A room's metrics are shared by all trials that run in it at the same time, so they aren't logged with any one
+ * trial; saveRoomMetrics() writes them, once no trial is using the room.
+ */
+class MetricsLog {
+
+  private final String label;
+  private final int trial;
+  private final String jsonFilePath;
+  private final MetricsRegistry[] registries;
+  private final long startTime = System.nanoTime();
+  private PrintWriter csv; // null if the file couldn't be opened, or once it has been closed
+  private boolean hasHeader = false;
+  private double lastRecordedTime = Double.NaN;
+
+  /**
+   * @param csvFilePath file to which to write the periodic dumps
+   * @param label name of the condition (only used for labeling output)
+   * @param trial index of the trial within its condition (only used for labeling output)
+   * @param registries registries whose metrics to log, in the order in which to write them
+   */
+  MetricsLog(String csvFilePath, String label, int trial, MetricsRegistry... registries) {
+    this.label = label;
+    this.trial = trial;
+    this.registries = registries;
+    jsonFilePath = getJSONFilePath(csvFilePath);
+    try {
+      csv = new PrintWriter(Files.newBufferedWriter(Paths.get(csvFilePath), StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Appends the current values of the metrics to the CSV file
+   * @param t current simulation time
+   */
+  void record(double t) {
+    if (csv == null || t == lastRecordedTime) { return; }
+    lastRecordedTime = t;
+    Map<String, Number> values = snapshot();
+    if (!hasHeader) {
+      csv.println("simTime,realSeconds," + String.join(",", values.keySet()));
+      hasHeader = true;
+    }
+    StringBuilder row = new StringBuilder().append(t).append(',').append(getRealSeconds());
+    for (Number value : values.values()) { row.append(',').append(value); }
+    csv.println(row);
+    csv.flush(); // So that the dumps of a long (or crashed) trial can be inspected while it runs
+  }
+
+  /**
+   * Records the final values of the metrics, in both the CSV and the JSON file, and closes the CSV file
+   * @param t final simulation time
+   */
+  void close(double t) {
+    record(t);
+    if (csv != null) {
+      if (csv.checkError()) { System.err.println("Error while writing metrics for " + label + ", trial " + trial); }
+      csv.close();
+      csv = null;
+    }
+
+    try (PrintWriter json = new PrintWriter(Files.newBufferedWriter(Paths.get(jsonFilePath), StandardCharsets.UTF_8))) {
+      json.println("{");
+      json.println("  \"label\": \"" + label.replace("\\", "\\\\").replace("\"", "\\\"") + "\",");
+      json.println("  \"trial\": " + trial + ",");
+      json.println("  \"simTime\": " + t + ",");
+      json.println("  \"realSeconds\": " + getRealSeconds() + ",");
+      writeMetrics(json, snapshot());
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Writes the current values of a room's metrics, accumulated over all trials that used it (and while it was built),
+   * to a JSON file
+   * @param filePath file path of the metrics, whose extension is replaced by .json
+   * @param room description of the room (e.g., its Scenario.getRoomKey())
+   * @param metrics metrics of the room (see Room.getMetrics())
+   */
+  static void saveRoomMetrics(String filePath, String room, MetricsRegistry metrics) {
+    String jsonFilePath = getJSONFilePath(filePath);
+    try (PrintWriter json = new PrintWriter(Files.newBufferedWriter(Paths.get(jsonFilePath), StandardCharsets.UTF_8))) {
+      json.println("{");
+      json.println("  \"room\": \"" + room.replace("\\", "\\\\").replace("\"", "\\\"") + "\",");
+      Map<String, Number> values = new LinkedHashMap<>();
+      metrics.snapshot(values);
+      writeMetrics(json, values);
+      System.out.println("Saved the metrics of room " + room + " to " + jsonFilePath);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Writes the metrics as the last member of a JSON object, and closes the object
+   */
+  private static void writeMetrics(PrintWriter json, Map<String, Number> values) {
+    json.println("  \"metrics\": {");
+    int i = 0;
+    for (Map.Entry<String, Number> value : values.entrySet()) {
+      json.println("    \"" + value.getKey() + "\": " + toJSON(value.getValue()) + (++i < values.size() ? "," : ""));
+    }
+    json.println("  }");
+    json.println("}");
+  }
+
+  private static String getJSONFilePath(String filePath) {
+    int extension = filePath.lastIndexOf('.');
+    return ((extension <= filePath.lastIndexOf('/')) ? filePath : filePath.substring(0, extension)) + ".json";
+  }
+
+  private Map<String, Number> snapshot() {
+    Map<String, Number> values = new LinkedHashMap<>();
+    for (MetricsRegistry registry : registries) { registry.snapshot(values); }
+    return values;
+  }
+
+  private double getRealSeconds() {
+    return (System.nanoTime() - startTime) / 1e9;
+  }
+
+  private static String toJSON(Number value) {
+    return (value instanceof Double && !Double.isFinite(value.doubleValue())) ? "null" : value.toString();
+  }
+
+}
@@ -0,0 +1,64 @@
+package swarms;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A named set of metrics: counters, which code on the hot path increments, and gauges, which are computed from other
+ * state only when the metrics are read.
+ *
+ * Counters are LongAdders, so incrementing them is cheap even when many threads share them (e.g., a room's counters,
+ * which are shared by all trials of a condition). Components register their metrics once, when they are constructed,
+ * and keep the returned counters in fields, so the map of names is never touched on the hot path.
+ */
+class MetricsRegistry {
+
+  private final Map<String, LongAdder> counters = new LinkedHashMap<>();
+  private final Map<String, DoubleSupplier> gauges = new LinkedHashMap<>();
+
+  /**
+   * @param name name of the counter, e.g. "room.distanceFields"
+   * @return the counter with the given name, which is created if it doesn't exist yet
+   */
+  synchronized LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, unused -> new LongAdder());
+  }
+
+  /**
+   * Registers a gauge, replacing any existing gauge with the same name
+   * @param name name of the gauge, e.g. "distanceCache.hitRate"
+   * @param value computes the current value of the gauge
+   */
+  synchronized void gauge(String name, DoubleSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /**
+   * Adds the current value of every metric (counters first, in the order they were registered, then gauges) to values
+   * @param values map to which to add the metrics, by name
+   */
+  synchronized void snapshot(Map<String, Number> values) {
+    for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+      values.put(counter.getKey(), counter.getValue().sum());
+    }
+    for (Map.Entry<String, DoubleSupplier> gauge : gauges.entrySet()) {
+      values.put(gauge.getKey(), gauge.getValue().getAsDouble());
+    }
+  }
+
+  /**
+   * Adds how much every counter has grown since an earlier snapshot (e.g., over one trial) to values. Gauges are left
+   * out, since they can't be split up in the same way (e.g., a hit rate).
+   * @param start earlier snapshot of the metrics (see snapshot()), which lacks counters registered since
+   * @param values map to which to add the counters, by name
+   */
+  synchronized void snapshotCountersSince(Map<String, Number> start, Map<String, Number> values) {
+    for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+      Number startValue = start.get(counter.getKey());
+      values.put(counter.getKey(), counter.getValue().sum() - ((startValue == null) ? 0L : startValue.longValue()));
+    }
+  }
+
+}
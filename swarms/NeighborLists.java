@@ -0,0 +1,143 @@
+package swarms;
+
+import math.geom2d.Point2D;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Cached lists of each agent's neighbors (Verlet lists), so that agents interacting by pushing and orientation don't
+ * search for each other at every update. Each agent has a reference position, where it was when its list was last
+ * rebuilt, and two agents are in each other's lists whenever their reference positions are within range + skin. Since
+ * an agent's list is rebuilt (and its reference position moved) as soon as it has moved more than skin / 2 from its
+ * reference position, agents within range of each other are always in each other's lists. As with a query of the
+ * AgentGrid, lists may also include agents farther away than range, so callers must still check distances themselves.
+ *
+ * Rebuilding an agent's list only updates the pairs that include the agent: it is removed from the lists of its old
+ * neighbors, and added to those of its new ones, which are found in a grid over reference positions. So, unlike
+ * rebuilding all lists whenever any agent has moved too far, rebuilds don't depend on how fast the fastest agent moves,
+ * which suits the event-driven engine, in which agents are updated one at a time.
+ */
+class NeighborLists {
+
+  private final double radius;          // Distance between reference positions within which agents are listed
+  private final double maxDisplacement; // Half the skin: how far an agent may move before its list is rebuilt
+  private final AgentGrid referenceGrid; // Spatial index of the reference positions of listed agents
+  private final double[] referenceX, referenceY; // Reference position of each agent, or NaN if it isn't listed
+  private final int[][] lists;          // Neighbors of each agent, in the first sizes[i] entries of lists[i]
+  private final int[] sizes;
+  private final int[] buffer;           // Scratch space for queries of referenceGrid
+
+  /**
+   * @param min bottom left corner of the region in which agents move
+   * @param max top right corner of the region in which agents move
+   * @param numAgents number of agents, whose IDs must lie in [0, numAgents)
+   * @param range distance within which all interacting agents must be listed
+   * @param skin margin added to range, trading longer lists for less frequent rebuilds; must be positive
+   */
+  NeighborLists(Point2D min, Point2D max, int numAgents, double range, double skin) {
+    this.radius = range + skin;
+    this.maxDisplacement = skin / 2.0;
+    referenceGrid = new AgentGrid(min, max, radius, numAgents);
+    referenceX = new double[numAgents];
+    referenceY = new double[numAgents];
+    Arrays.fill(referenceX, Double.NaN);
+    Arrays.fill(referenceY, Double.NaN);
+    lists = new int[numAgents][0];
+    sizes = new int[numAgents];
+    buffer = new int[numAgents];
+  }
+
+  /**
+   * Lists the agent, or rebuilds its list if it has moved too far from its reference position. This should be called
+   * whenever an agent in the room moves, before any list is used.
+   * @param id ID of the agent that moved
+   * @param x current x-coordinate of the agent
+   * @param y current y-coordinate of the agent
+   * @return true if the agent's list was rebuilt
+   */
+  boolean update(int id, double x, double y) {
+    double dx = x - referenceX[id], dy = y - referenceY[id];
+    if (dx * dx + dy * dy <= maxDisplacement * maxDisplacement) { return false; } // Also false if the agent isn't listed
+    remove(id);
+    referenceX[id] = x;
+    referenceY[id] = y;
+    int numFound = referenceGrid.getNeighbors(x, y, radius, buffer);
+    for (int i = 0; i < numFound; i++) {
+      int neighbor = buffer[i];
+      dx = referenceX[neighbor] - x;
+      dy = referenceY[neighbor] - y;
+      if (dx * dx + dy * dy <= radius * radius) {
+        add(id, neighbor);
+        add(neighbor, id);
+      }
+    }
+    referenceGrid.update(id, x, y);
+    return true;
+  }
+
+  /**
+   * Removes the agent from all lists (e.g., because it has left the room); does nothing if the agent isn't listed
+   * @param id ID of the agent to remove
+   */
+  void remove(int id) {
+    for (int i = 0; i < sizes[id]; i++) {
+      int neighbor = lists[id][i];
+      int[] list = lists[neighbor];
+      int index = 0;
+      while (list[index] != id) { index++; }
+      list[index] = list[--sizes[neighbor]];
+    }
+    sizes[id] = 0;
+    referenceGrid.remove(id);
+    referenceX[id] = Double.NaN;
+    referenceY[id] = Double.NaN;
+  }
+
+  private void add(int id, int neighbor) {
+    if (sizes[id] == lists[id].length) { lists[id] = Arrays.copyOf(lists[id], Math.max(8, 2 * sizes[id])); }
+    lists[id][sizes[id]++] = neighbor;
+  }
+
+  /**
+   * @return array whose first getNumNeighbors(id) entries are the IDs of the agent's neighbors; the array is only
+   * valid until the next update() or remove()
+   */
+  int[] getNeighbors(int id) {
+    return lists[id];
+  }
+
+  int getNumNeighbors(int id) {
+    return sizes[id];
+  }
+
+  /**
+   * Writes the lists, for a Checkpoint; they are saved as they are, since interactions are summed in their order
+   */
+  void write(DataOutputStream out) throws IOException {
+    for (int id = 0; id < sizes.length; id++) {
+      out.writeDouble(referenceX[id]);
+      out.writeDouble(referenceY[id]);
+      out.writeInt(sizes[id]);
+      for (int i = 0; i < sizes[id]; i++) { out.writeInt(lists[id][i]); }
+    }
+    referenceGrid.write(out);
+  }
+
+  /**
+   * Restores the lists written by write(), into empty lists with the same agents, region, range, and skin
+   */
+  void read(DataInputStream in) throws IOException {
+    for (int id = 0; id < sizes.length; id++) {
+      referenceX[id] = in.readDouble();
+      referenceY[id] = in.readDouble();
+      sizes[id] = in.readInt();
+      lists[id] = new int[sizes[id]];
+      for (int i = 0; i < sizes[id]; i++) { lists[id][i] = in.readInt(); }
+    }
+    referenceGrid.read(in);
+  }
+
+}
@@ -9,15 +9,15 @@ import org.jfree.chart.axis.ValueAxis;
 import org.jfree.chart.plot.DatasetRenderingOrder;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYErrorRenderer;
-import org.jfree.data.xy.XIntervalSeries;
-import org.jfree.data.xy.XIntervalSeriesCollection;
-import org.jfree.data.xy.XYSeries;
+import org.jfree.data.xy.IntervalXYDataset;
+import org.jfree.data.xy.YIntervalSeries;
+import org.jfree.data.xy.YIntervalSeriesCollection;
 import org.jfree.ui.ApplicationFrame;
 
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Stores necessary information over time and produces plots.
@@ -33,7 +33,7 @@ class Plotter extends ApplicationFrame {
     this.simDuration = simDuration;
   }
 
-  void plotMultiple(ArrayList<XIntervalSeriesCollection> allSeries, String plotFilePath) {
+  void plotMultiple(List<? extends IntervalXYDataset> allSeries, String plotFilePath) {
     final NumberAxis domainAxis = new NumberAxis("Time");
     final ValueAxis rangeAxis = new NumberAxis("Fraction of Agents");
     final XYErrorRenderer renderer0 = new XYErrorRenderer();
@@ -76,49 +76,40 @@ class Plotter extends ApplicationFrame {
     // TODO: If plotFilePath is null, just display plot!
   }
 
-  static XIntervalSeriesCollection averageTrials(ArrayList<XYSeries> results, String label) {
-    int maxLen = 0;
-    XIntervalSeries averagedSeries = new XIntervalSeries(label);
-    System.out.println("Plotting condition " + label + ", with " + results.size() + " values:");
-    for(XYSeries series : results) {
-      maxLen = Math.max(maxLen, series.getItemCount());
+  /**
+   * Averages the fraction of agents in the room over the trials of a condition, in each time bin, with a 95% confidence
+   * interval of the mean; also prints the mean time by which each quantile of the agents left, over the trials in
+   * which they did, for the quantiles reached by more than half of the trials
+   * @param trials statistics of all trials of the condition
+   * @param label name of the condition
+   */
+  static YIntervalSeriesCollection averageTrials(TrialAggregator trials, String label) {
+    double zScore95 = 1.96; // Number of standard errors away from mean for a two-sided 95% normal confidence interval
+    YIntervalSeries averagedSeries = new YIntervalSeries(label);
+    System.out.println("Plotting condition " + label + ", with " + trials.getNumTrials() + " trials:");
+    if (trials.getNumTrials() > 0) { averagedSeries.add(0.0, 1.0, 1.0, 1.0); } // Every trial starts with all agents
+    for (int bin = 0; bin < trials.getNumBins(); bin++) {
+      if (trials.getBinCount(bin) == 0) { continue; }
+      double yMean = trials.getBinMean(bin);
+      double CIRadius = zScore95 * Math.sqrt(trials.getBinVariance(bin) / trials.getBinCount(bin));
+      averagedSeries.add(trials.getBinTime(bin), yMean,
+          yMean - CIRadius, // lower 95% confidence bound
+          yMean + CIRadius); // upper 95% confidence bound
     }
-    for (int i = 0; i < maxLen; i++) {
-      int numSamples = 0;
-      double xSum = 0.0;
-      double ySum = 0.0;
-      for (XYSeries series : results) { // compute pointwise means
-        if (series.getItemCount() > i) {
-          xSum += (double) series.getX(i);
-          ySum += (double) series.getY(i);
-          numSamples++;
-        }
-      }
-
-      if (numSamples <= results.size() / 2) { break; }
-
-      double xMean = xSum / numSamples;
-      double yMean = ySum / numSamples;
-      double sumSquaredDeviations = 0.0;
-      for (XYSeries series : results) { // compute pointwise standard deviations
-        if (series.getItemCount() > i) {
-          sumSquaredDeviations += Math.pow(((double) series.getX(i)) - xMean, 2.0);
-        }
-      }
-      double standardDeviation = Math.sqrt(sumSquaredDeviations / numSamples);
-      double zScore95 = 1.96; // Number of standard deviations away from mean for a two-sided 95% normal confidence interval
-      double CIRadius = standardDeviation * zScore95;
 
-      if (i > 0) { yMean = Math.min(yMean, averagedSeries.getYValue(i - 1)); } // make sure the curve is monotonic
-      averagedSeries.add(xMean,
-          xMean - CIRadius, // lower 95% confidence bound
-          xMean + CIRadius, // upper 95% confidence bound
-          yMean);
+    StringBuilder times = new StringBuilder();
+    for (int quantile = 0; quantile < TrialAggregator.numQuantiles; quantile++) {
+      long count = trials.getQuantileCount(quantile);
+      if (count <= trials.getNumTrials() / 2) { break; }
+      double CIRadius = zScore95 * Math.sqrt(trials.getQuantileVariance(quantile) / count);
+      times.append(String.format("%n  %3.0f%% of agents left by %.2f s (+/- %.2f s, in %d trials)",
+          100.0 * (quantile + 1) / TrialAggregator.numQuantiles, trials.getQuantileMean(quantile), CIRadius, count));
     }
-    XIntervalSeriesCollection averagedSeriesAsCollection = new XIntervalSeriesCollection();
+    System.out.println("Mean time by which agents left:" + times);
+
+    YIntervalSeriesCollection averagedSeriesAsCollection = new YIntervalSeriesCollection();
     averagedSeriesAsCollection.addSeries(averagedSeries);
     return averagedSeriesAsCollection;
   }
 
-
 }
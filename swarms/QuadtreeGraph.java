@@ -0,0 +1,231 @@
+package swarms;
+
+import java.util.Arrays;
+
+/**
+ * A coarser graph over the cells of a GridGraph, on which Room computes distance fields between cells in large rooms.
+ * Squares of open cells (cells whose edges to all 8 neighbors are present) are merged into single nodes, or leaves, of
+ * a quadtree, up to maxLeafSize cells on a side, while cells near walls remain leaves of their own; so do cells near
+ * exits, which lie in gaps in walls. Adjacent leaves, whatever their sizes, are joined by portal edges, whose length is
+ * the Euclidean distance between the leaves' representative cells (at their centers).
+ *
+ * A distance field over the leaves has one entry per leaf rather than per cell, so in open rooms it is several times
+ * cheaper to compute and to cache. The distance from a cell is then refined locally (see getDistance()): nothing inside
+ * an open leaf blocks the way to its representative, or to those of its neighbors.
+ *
+ * Like a GridGraph, a quadtree describes the walls at the time it was built, and must be rebuilt after they change.
+ * Once built, it can be queried from multiple threads.
+ */
+class QuadtreeGraph {
+
+  private final GridGraph graph;
+  private final int maxLeafSize;
+  private final int[] leafOf;          // Leaf containing each cell
+  private int numLeaves = 0;
+  private int[] representatives;       // Cell at the center of each leaf
+  private int[] leafSizes;             // Side length (in cells) of each leaf
+  private final int[] firstEdge;       // Portal edges leaving leaf l are at indices [firstEdge[l], firstEdge[l + 1])
+  private int[] edgeTargets;           // Leaf at the other end of each portal edge
+  private float[] edgeLengths;         // Distance between the representatives of the leaves joined by each portal edge
+  private final ThreadLocal<double[]> around = ThreadLocal.withInitial(() -> new double[9]);
+
+  /**
+   * @param graph graph of the room, with all of its walls added
+   * @param maxLeafSize largest side length (in cells) of a leaf; must be a power of two, of at least 2
+   */
+  QuadtreeGraph(GridGraph graph, int maxLeafSize) {
+    if (maxLeafSize < 2 || Integer.bitCount(maxLeafSize) != 1) {
+      throw new IllegalArgumentException("maxLeafSize must be a power of two, of at least 2: " + maxLeafSize);
+    }
+    this.graph = graph;
+    this.maxLeafSize = maxLeafSize;
+    int numCells = graph.getNumCells();
+    int nCellsX = graph.getNCellsX(), nCellsY = graph.getNCellsY();
+
+    // Count the cells that aren't open in every rectangle [0, i) x [0, j), so that any square can be checked in O(1)
+    int[] numClosed = new int[(nCellsX + 1) * (nCellsY + 1)];
+    for (int i = 0; i < nCellsX; i++) {
+      for (int j = 0; j < nCellsY; j++) {
+        int closed = isOpen(graph.getID(i, j)) ? 0 : 1;
+        numClosed[(i + 1) * (nCellsY + 1) + j + 1] = closed + numClosed[i * (nCellsY + 1) + j + 1]
+            + numClosed[(i + 1) * (nCellsY + 1) + j] - numClosed[i * (nCellsY + 1) + j];
+      }
+    }
+
+    leafOf = new int[numCells];
+    representatives = new int[numCells / 4 + 1];
+    leafSizes = new int[representatives.length];
+    for (int i = 0; i < nCellsX; i += maxLeafSize) {
+      for (int j = 0; j < nCellsY; j += maxLeafSize) {
+        addLeaves(i, j, maxLeafSize, numClosed);
+      }
+    }
+    representatives = Arrays.copyOf(representatives, numLeaves);
+    leafSizes = Arrays.copyOf(leafSizes, numLeaves);
+
+    // Join adjacent leaves by portal edges; an edge from leaf l is recorded once, however many cells it joins
+    firstEdge = new int[numLeaves + 1];
+    edgeTargets = new int[4 * numLeaves];
+    int[] lastSource = new int[numLeaves]; // Last leaf from which an edge to each leaf was recorded
+    Arrays.fill(lastSource, -1);
+    int[] cellsOfLeaves = getCellsByLeaf();
+    int numEdges = 0;
+    for (int leaf = 0, index = 0; leaf < numLeaves; leaf++) {
+      firstEdge[leaf] = numEdges;
+      for (int end = index + leafSizes[leaf] * leafSizes[leaf]; index < end; index++) {
+        int cell = cellsOfLeaves[index];
+        for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+          int neighborLeaf = leafOf[graph.getNeighbor(slot)];
+          if (graph.isRemoved(slot) || neighborLeaf == leaf || lastSource[neighborLeaf] == leaf) { continue; }
+          lastSource[neighborLeaf] = leaf;
+          if (numEdges == edgeTargets.length) { edgeTargets = Arrays.copyOf(edgeTargets, 2 * numEdges); }
+          edgeTargets[numEdges++] = neighborLeaf;
+        }
+      }
+    }
+    firstEdge[numLeaves] = numEdges;
+    edgeTargets = Arrays.copyOf(edgeTargets, numEdges);
+    edgeLengths = new float[numEdges];
+    for (int leaf = 0; leaf < numLeaves; leaf++) {
+      for (int edge = firstEdge[leaf]; edge < firstEdge[leaf + 1]; edge++) {
+        edgeLengths[edge] = (float) getEuclideanDistance(representatives[leaf], representatives[edgeTargets[edge]]);
+      }
+    }
+  }
+
+  /**
+   * @return true if the cell has all 8 neighbors, and none of its edges has been removed
+   */
+  private boolean isOpen(int cell) {
+    return graph.getEndSlot(cell) - graph.getFirstSlot(cell) == 8 && graph.getDegree(cell) == 8;
+  }
+
+  /**
+   * Adds the square of cells [i, i + size) x [j, j + size) as a leaf if it is open and inside the grid, and otherwise
+   * adds the leaves of its quadrants that lie inside the grid
+   */
+  private void addLeaves(int i, int j, int size, int[] numClosed) {
+    if (i >= graph.getNCellsX() || j >= graph.getNCellsY()) { return; }
+    if (size > 1 && !isOpenSquare(i, j, size, numClosed)) {
+      int half = size / 2;
+      addLeaves(i, j, half, numClosed);
+      addLeaves(i, j + half, half, numClosed);
+      addLeaves(i + half, j, half, numClosed);
+      addLeaves(i + half, j + half, half, numClosed);
+      return;
+    }
+    if (numLeaves == representatives.length) {
+      representatives = Arrays.copyOf(representatives, 2 * numLeaves);
+      leafSizes = Arrays.copyOf(leafSizes, 2 * numLeaves);
+    }
+    representatives[numLeaves] = graph.getID(i + size / 2, j + size / 2);
+    leafSizes[numLeaves] = size;
+    for (int di = 0; di < size; di++) {
+      for (int dj = 0; dj < size; dj++) { leafOf[graph.getID(i + di, j + dj)] = numLeaves; }
+    }
+    numLeaves++;
+  }
+
+  /**
+   * @return true if the square of cells [i, i + size) x [j, j + size) lies inside the grid, and all of its cells are open
+   */
+  private boolean isOpenSquare(int i, int j, int size, int[] numClosed) {
+    int nCellsY = graph.getNCellsY();
+    if (i + size > graph.getNCellsX() || j + size > nCellsY) { return false; }
+    return numClosed[(i + size) * (nCellsY + 1) + j + size] - numClosed[i * (nCellsY + 1) + j + size]
+        - numClosed[(i + size) * (nCellsY + 1) + j] + numClosed[i * (nCellsY + 1) + j] == 0;
+  }
+
+  /**
+   * @return IDs of all cells, grouped by leaf, in order of leaf
+   */
+  private int[] getCellsByLeaf() {
+    int[] start = new int[numLeaves + 1];
+    for (int leaf = 0; leaf < numLeaves; leaf++) { start[leaf + 1] = start[leaf] + leafSizes[leaf] * leafSizes[leaf]; }
+    int[] cells = new int[leafOf.length];
+    for (int cell = 0; cell < leafOf.length; cell++) { cells[start[leafOf[cell]]++] = cell; }
+    return cells;
+  }
+
+  /**
+   * Refines the distance from a cell to the target of a field over the leaves: a cell in a leaf of its own takes the
+   * leaf's distance, and a cell in a larger leaf takes the shortest of the paths via the representatives of its leaf
+   * and of the leaves adjacent to it
+   * @param field distance from each leaf to the target (see Room)
+   * @param cell ID of the cell from which to measure the distance
+   * @return distance from the cell to the target, or infinity if the cell doesn't reach it
+   */
+  double getDistance(float[] field, int cell) {
+    int leaf = leafOf[cell];
+    if (leafSizes[leaf] == 1) { return field[leaf]; }
+    double distance = field[leaf] + getEuclideanDistance(cell, representatives[leaf]);
+    for (int edge = firstEdge[leaf]; edge < firstEdge[leaf + 1]; edge++) {
+      int neighbor = edgeTargets[edge];
+      distance = Math.min(distance, field[neighbor] + getEuclideanDistance(cell, representatives[neighbor]));
+    }
+    return distance;
+  }
+
+  /**
+   * Refines the distances to the target of a field from the source cell and each of its neighbors, as needed to compute
+   * a gradient at the source (see getDistance())
+   * @return array (owned by the calling thread, and overwritten by its next call) in which element 0 is the distance
+   * from the source, and element 1 + k is the distance from the neighbor in the source's k-th slot of the graph (see
+   * GridGraph.getFirstSlot()); elements of removed slots are undefined
+   */
+  double[] getDistancesAround(float[] field, int source) {
+    double[] distances = around.get();
+    distances[0] = getDistance(field, source);
+    int firstSlot = graph.getFirstSlot(source);
+    for (int slot = firstSlot; slot < graph.getEndSlot(source); slot++) {
+      if (!graph.isRemoved(slot)) { distances[1 + slot - firstSlot] = getDistance(field, graph.getNeighbor(slot)); }
+    }
+    return distances;
+  }
+
+  private double getEuclideanDistance(int c1, int c2) {
+    return Math.hypot(graph.getX(c1) - graph.getX(c2), graph.getY(c1) - graph.getY(c2));
+  }
+
+  int getMaxLeafSize() {
+    return maxLeafSize;
+  }
+
+  int getNumLeaves() {
+    return numLeaves;
+  }
+
+  /**
+   * @return ID of the leaf containing the cell
+   */
+  int getLeaf(int cell) {
+    return leafOf[cell];
+  }
+
+  /**
+   * @return ID of the cell at the center of the leaf, from which its distances are measured
+   */
+  int getRepresentative(int leaf) {
+    return representatives[leaf];
+  }
+
+  /**
+   * @return index of the first portal edge leaving the leaf; the edges leaving leaf l are [getFirstEdge(l), getEndEdge(l))
+   */
+  int getFirstEdge(int leaf) {
+    return firstEdge[leaf];
+  }
+
+  int getEndEdge(int leaf) {
+    return firstEdge[leaf + 1];
+  }
+
+  int getEdgeTarget(int edge) {
+    return edgeTargets[edge];
+  }
+
+  float getEdgeLength(int edge) {
+    return edgeLengths[edge];
+  }
+
+}
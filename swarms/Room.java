@@ -3,42 +3,84 @@ package swarms;
 import math.geom2d.Point2D;
 import math.geom2d.Vector2D;
 import math.geom2d.line.LineSegment2D;
-import org.jgrapht.Graph;
-import org.jgrapht.Graphs;
-import org.jgrapht.UndirectedGraph;
-import org.jgrapht.alg.ConnectivityInspector;
-import org.jgrapht.event.TraversalListenerAdapter;
-import org.jgrapht.event.VertexTraversalEvent;
-import org.jgrapht.graph.SimpleGraph;
-import org.jgrapht.traverse.BreadthFirstIterator;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A room is modeled as a grid-shaped graph. Walls can be simulated by removing edges.
  * This allows distances and directions to be computed with respect to very general
  * non-Euclidean topologies, such as non-convex spaces.
+ * Once it has been built (i.e., walls and exits have been added and exit distances computed), a room can be shared by
+ * simulations running concurrently on different threads. Walls can also be added to or removed from a built room (see
+ * addWallAtRuntime()), as long as no other thread is using it at the time.
  * Created by sss1 on 7/28/16.
  */
 class Room {
 
-  private Graph<Cell, CellEdge> roomGraph;
+  private final GridGraph graph;
   private ArrayList<LineSegment2D> walls;
-  private ArrayList<Cell> exits;
-  private ArrayList<Point2D> exactExitPositions; // the Cell versions of the exits loose some precision
+  private final WallIndex wallIndex; // Spatial index over walls, shared with all agents
+  private final BlockVisibility visibility; // Line of sight between blocks of cells, kept up to date as walls are added
+  private ArrayList<Integer> exits; // IDs of the cells containing exits
+  private ArrayList<Point2D> exactExitPositions; // the cell versions of the exits loose some precision
   private final double fineness;
   private final Point2D min;
-  private final Cell[][] grid;
+  private Point2D boundaryMin, boundaryMax; // Outer boundary of the room; agents beyond it have left the room
   private final SwarmSim.RoomType roomType;
+  private final double[] exitPathLengths; // Length of the shortest path (that agents know of) from each cell to an exit
+  // Straight-line distance from each cell to the nearest exit it can see (past the walls agents know of), or infinity
+  // if it sees none; a cell's exit path length is at most this, so cells that see an exit go straight to it
+  private final double[] exitSightLengths;
+  private final double[] exitDistances; // Distance from each cell to the nearest exit, as used by agents
+  private boolean exitDistancesComputed = false;
+  private final Set<LineSegment2D> wallsUnknownToAgents; // Walls added after exit distances were computed
+  private final BitSet unknownWallIDs = new BitSet(); // IDs of wallsUnknownToAgents in wallIndex
+  // Removed edges (both slots of each) that only walls unknown to agents cross; exit distances treat them as present
+  private final BitSet edgesUnknownToAgents = new BitSet();
+  private boolean changedAtRuntime = false; // Whether walls were added or removed after the room was built
+  private final double[] exitGradientX, exitGradientY; // Gradient of exitDistances at each cell
+  // For each cell (i, j), bits 0, 1, and 2 are set if cells (i + 1, j), (i, j + 1), and (i + 1, j + 1), respectively,
+  // can be used when interpolating the gradient between them and cell (i, j)
+  private final byte[] interpolationMasks;
+  private final DistanceFieldCache distanceCache; // Distance fields to individual cells, computed on demand
+  private RoomCache.StoredFields storedFields; // Distance fields saved by a previous run, if any; read on cache misses
+  private LandmarkOracle landmarks; // If set, answers distance queries between cells instead of distance fields
+  private QuadtreeGraph quadtree; // If set, distance fields between cells are computed over its leaves instead of cells
+  private DistanceFieldCache leafDistanceCache; // Distance fields over the leaves of quadtree, to individual cells
+  private final long distanceCacheBytes;
+
+  // Metrics of the room, accumulated over all simulations that share it
+  private final MetricsRegistry metrics = new MetricsRegistry();
+  private final LongAdder numDistanceFields = metrics.counter("room.distanceFields"); // distance fields computed
+  private final LongAdder distanceFieldNanos = metrics.counter("room.distanceFieldNanos"); // time spent computing them
+  private final LongAdder numLineOfSightTests = metrics.counter("room.lineOfSightTests");
+  // line-of-sight tests that visibility couldn't answer, so were tested against the walls
+  private final LongAdder numExactLineOfSightTests = metrics.counter("room.exactLineOfSightTests");
+  private final LongAdder numStoredFieldsRead = metrics.counter("room.storedFieldsRead"); // instead of being computed
+  private final LongAdder numLeafDistanceFields = metrics.counter("room.leafDistanceFields"); // over quadtree leaves
+  private final LongAdder leafDistanceFieldNanos = metrics.counter("room.leafDistanceFieldNanos");
+
+  private static final double wallIndexCellSize = 2.0; // Side length of the buckets of the wall index
+  private static final double landmarkSlack = 0.05; // Largest gap (in cells) between landmark bounds that is used as is
 
-  int numDestsComputed = 0; // TODO: This is a temporary variable for printing; remove it.
 
-
-  Room(Point2D min, Point2D max, double fineness, SwarmSim.RoomType roomType) {
+  /**
+   * @param min bottom left corner of the room
+   * @param max top right corner of the room
+   * @param fineness distance between adjacent grid cells
+   * @param roomType type of room being modeled
+   * @param distanceCacheBytes approximate memory budget for cached distance fields between cells
+   */
+  Room(Point2D min, Point2D max, double fineness, SwarmSim.RoomType roomType, long distanceCacheBytes) {
 
     this.min = min;
     this.fineness = fineness;
@@ -47,62 +89,39 @@ class Room {
     int nCellsX = 1 + ((int) ((max.x() - min.x()) / fineness));
     int nCellsY = 1 + ((int) ((max.y() - min.y()) / fineness));
 
-    roomGraph = new SimpleGraph<>(CellEdge.class);
-
-    grid = new Cell[nCellsX][nCellsY]; // Temporary organization for easily adding grid edges
-
-    for (int i = 0; i < nCellsX; i++) {
-      for (int j = 0; j < nCellsY; j++) {
-
-        double x = min.x() + i * fineness;
-        double y = min.y() + j * fineness;
-        Cell here = new Cell(x, y);
-        grid[i][j] = here;
-        if (cellIsInGraph(here, roomType)) {
-          roomGraph.addVertex(grid[i][j]);
-          if (i > 0 && j > 0) {
-            Cell topLeft = grid[i - 1][j - 1];
-            if (cellIsInGraph(topLeft, roomType)) {
-              roomGraph.addEdge(here, topLeft, new CellEdge(here, topLeft)); // add edge to top-left
-            }
-          }
-          if (i > 0) {
-            Cell left = grid[i - 1][j];
-            if (cellIsInGraph(left, roomType)) {
-              roomGraph.addEdge(here, left, new CellEdge(here, left)); // add edge to left
-            }
-          }
-          if (i > 0 && j < nCellsY - 2) {
-            Cell bottomLeft = grid[i - 1][j + 1];
-            if (cellIsInGraph(bottomLeft, roomType)) {
-              roomGraph.addEdge(here, bottomLeft, new CellEdge(here, bottomLeft)); // add edge to bottom-left
-            }
-          }
-          if (j > 0) {
-            Cell top = grid[i][j - 1];
-            if (cellIsInGraph(top, roomType)) {
-              roomGraph.addEdge(here, top, new CellEdge(here, top)); // add edge to top
-            }
-          }
-        }
-      }
-    }
-
-    // The current implementation is not guaranteed to support disconnected graphs.
-    assert (new ConnectivityInspector((UndirectedGraph) roomGraph)).isGraphConnected();
+    graph = new GridGraph(min.x(), min.y(), fineness, nCellsX, nCellsY,
+        cell -> cellIsInGraph(new Point2D(min.x() + (cell / nCellsY) * fineness, min.y() + (cell % nCellsY) * fineness),
+                              roomType));
 
-    System.out.println("Total number of nodes: " + roomGraph.vertexSet().size());
+    System.out.println("Total number of nodes: " + graph.getNumCellsInGraph());
 
     exits = new ArrayList<>();
     exactExitPositions = new ArrayList<>();
     walls = new ArrayList<>();
+    wallIndex = new WallIndex(min.x(), min.y(), max.x(), max.y(), wallIndexCellSize);
+    visibility = new BlockVisibility(graph);
+
+    int numCells = graph.getNumCells();
+    exitPathLengths = new double[numCells];
+    Arrays.fill(exitPathLengths, Double.POSITIVE_INFINITY);
+    exitSightLengths = new double[numCells];
+    Arrays.fill(exitSightLengths, Double.POSITIVE_INFINITY);
+    exitDistances = new double[numCells];
+    Arrays.fill(exitDistances, Double.POSITIVE_INFINITY);
+    wallsUnknownToAgents = Collections.newSetFromMap(new IdentityHashMap<>());
+    exitGradientX = new double[numCells];
+    exitGradientY = new double[numCells];
+    interpolationMasks = new byte[numCells];
+    distanceCache = new DistanceFieldCache(numCells, distanceCacheBytes, metrics);
+    this.distanceCacheBytes = distanceCacheBytes;
+    boundaryMin = min;
+    boundaryMax = max;
 
   }
 
-  private boolean cellIsInGraph(Cell cell, SwarmSim.RoomType roomType) {
+  private boolean cellIsInGraph(Point2D position, SwarmSim.RoomType roomType) {
     if (roomType == SwarmSim.RoomType.BASIC) { return true; }
 
-//    Point2D position = cell.getCoordinates();
 //    if (position.y() < 29.0 &&
 //        position.x() > 40.0 &&
 //        (new LineSegment2D(32.0, 7.0, 55.0, 1.0).isInside(position)) &&
@@ -121,7 +140,7 @@ class Room {
   }
 
   void addExit(Point2D exitLocation) {
-    Cell cell;
+    int cell;
     try {
       cell = getCellFromPosition(exitLocation);
     } catch (IllegalArgumentException e) {
@@ -132,31 +151,225 @@ class Room {
   }
 
   /**
-   * Simulates a wall by removing any edges that cross the input line segment
+   * Simulates a wall by removing any edges that cross the input line segment. If exit distances have already been
+   * computed, agents don't know about the wall (e.g., an obstacle), so their exit distances don't account for it.
    */
   void addWall(LineSegment2D wall) {
 
     walls.add(wall);
+    int id = wallIndex.add(wall);
+    visibility.addWall(wall.firstPoint().x(), wall.firstPoint().y(), wall.lastPoint().x(), wall.lastPoint().y());
+    if (exitDistancesComputed) {
+      wallsUnknownToAgents.add(wall);
+      unknownWallIDs.set(id);
+    }
+
+    int[] crossingEdges = findEdgesCrossing(wall);
+    for (int k = 0; k < crossingEdges.length; k += 2) {
+      int cell = crossingEdges[k], slot = crossingEdges[k + 1];
+      if (graph.isRemoved(slot)) { continue; }
+      graph.removeEdge(cell, slot);
+      if (exitDistancesComputed) { setUnknownToAgents(cell, slot, true); }
+    }
 
-    // Extend the length of the wall by fineness for the purpose of determining which graph edges to remove;
-    // this helps prevent agents from getting stuck on the ends of walls
+  }
+
+  /**
+   * Adds a wall without removing the graph edges that cross it or updating visibility, for restoring a room whose
+   * edges and visibility were already computed (see RoomLayout.createUnbuilt())
+   * @param knownToAgents false if the wall was added after exit distances were computed
+   */
+  void addWallWithoutEdges(LineSegment2D wall, boolean knownToAgents) {
+    walls.add(wall);
+    int id = wallIndex.add(wall);
+    if (!knownToAgents) {
+      wallsUnknownToAgents.add(wall);
+      unknownWallIDs.set(id);
+    }
+  }
+
+  /**
+   * Adds a wall to a built room, e.g., to close a door during a run. Unlike addWall(), which is for building the room,
+   * this keeps everything computed from the walls up to date: agents know about the wall, so the exit distances of
+   * the cells whose shortest paths to an exit crossed it are repaired, and the cached distance fields between cells
+   * (and landmarks, if used), which a new wall could change anywhere, are dropped to be recomputed on demand.
+   * Must not be called while other threads are using the room.
+   */
+  void addWallAtRuntime(LineSegment2D wall) {
+    walls.add(wall);
+    wallIndex.add(wall);
+    visibility.addWall(wall.firstPoint().x(), wall.firstPoint().y(), wall.lastPoint().x(), wall.lastPoint().y());
+
+    int[] crossingEdges = findEdgesCrossing(wall);
+    CellSet changedCells = new CellSet(graph.getNumCells());
+    int[] closedEdges = new int[crossingEdges.length]; // Edges that agents could use before, as cell and slot pairs
+    int numClosed = 0;
+    for (int k = 0; k < crossingEdges.length; k += 2) {
+      int cell = crossingEdges[k], slot = crossingEdges[k + 1];
+      if (isOpenToAgents(slot)) {
+        closedEdges[numClosed++] = cell;
+        closedEdges[numClosed++] = slot;
+        changedCells.add(cell);
+        changedCells.add(graph.getNeighbor(slot));
+      }
+      if (!graph.isRemoved(slot)) { graph.removeEdge(cell, slot); }
+      setUnknownToAgents(cell, slot, false);
+    }
+
+    if (exitDistancesComputed) {
+      repairAfterClosing(closedEdges, numClosed, updateExitSightLengths(wall), changedCells);
+      updateExitGradients(changedCells);
+    }
+    dropDistanceFields();
+  }
+
+  /**
+   * Removes a wall from a built room, e.g., to open a door during a run, keeping everything computed from the walls up
+   * to date, as addWallAtRuntime() does. Edges that the wall crossed are restored unless another wall crosses them.
+   * Must not be called while other threads are using the room.
+   * @param wall wall to remove, matched by its endpoints
+   */
+  void removeWallAtRuntime(LineSegment2D wall) {
+    int index = -1;
+    for (int i = 0; i < walls.size() && index < 0; i++) {
+      LineSegment2D other = walls.get(i);
+      if (other.firstPoint().x() == wall.firstPoint().x() && other.firstPoint().y() == wall.firstPoint().y()
+          && other.lastPoint().x() == wall.lastPoint().x() && other.lastPoint().y() == wall.lastPoint().y()) {
+        index = i;
+      }
+    }
+    if (index < 0) { throw new IllegalArgumentException("Tried to remove a wall that isn't in the room: " + wall); }
+    LineSegment2D removedWall = walls.remove(index);
+    unknownWallIDs.clear(wallIndex.remove(removedWall));
+    wallsUnknownToAgents.remove(removedWall);
+    visibility.removeWall(removedWall.firstPoint().x(), removedWall.firstPoint().y(),
+                          removedWall.lastPoint().x(), removedWall.lastPoint().y());
+
+    double[][] otherWalls = new double[walls.size()][];
+    for (int i = 0; i < walls.size(); i++) { otherWalls[i] = getExtendedWall(walls.get(i)); }
+
+    int[] crossingEdges = findEdgesCrossing(removedWall);
+    CellSet changedCells = new CellSet(graph.getNumCells());
+    int[] openedEdges = new int[crossingEdges.length]; // Edges that agents can use now, as cell and slot pairs
+    int numOpened = 0;
+    for (int k = 0; k < crossingEdges.length; k += 2) {
+      int cell = crossingEdges[k], slot = crossingEdges[k + 1], neighbor = graph.getNeighbor(slot);
+      if (!graph.isRemoved(slot)) { continue; }
+      boolean wasOpen = isOpenToAgents(slot);
+      boolean crossedByKnownWall = false, crossedByUnknownWall = false;
+      for (int i = 0; i < walls.size(); i++) {
+        if (crosses(otherWalls[i], cell, neighbor)) {
+          if (wallsUnknownToAgents.contains(walls.get(i))) {
+            crossedByUnknownWall = true;
+          } else {
+            crossedByKnownWall = true;
+          }
+        }
+      }
+      if (!crossedByKnownWall && !crossedByUnknownWall) { graph.restoreEdge(cell, slot); }
+      setUnknownToAgents(cell, slot, !crossedByKnownWall && crossedByUnknownWall);
+      if (!wasOpen && isOpenToAgents(slot)) {
+        openedEdges[numOpened++] = cell;
+        openedEdges[numOpened++] = slot;
+        changedCells.add(cell);
+        changedCells.add(neighbor);
+      }
+    }
+
+    if (exitDistancesComputed) {
+      repairAfterOpening(openedEdges, numOpened, updateExitSightLengths(removedWall), changedCells);
+      updateExitGradients(changedCells);
+    }
+    dropDistanceFields();
+  }
+
+  /**
+   * Finds the graph edges (removed or not) that cross the wall, extended by fineness at each end. Since each edge is
+   * at most one cell long in each direction, only edges leaving cells within a cell of the extended wall's bounding box
+   * need to be tested.
+   * @return the cell and slot of each crossing edge, from its lower-ID end, as consecutive pairs
+   */
+  private int[] findEdgesCrossing(LineSegment2D wall) {
+    double[] extendedWall = getExtendedWall(wall);
+    int minI = Math.max(0, (int) Math.floor((Math.min(extendedWall[0], extendedWall[2]) - min.x()) / fineness) - 1);
+    int maxI = Math.min(graph.getNCellsX() - 1,
+                        (int) Math.ceil((Math.max(extendedWall[0], extendedWall[2]) - min.x()) / fineness) + 1);
+    int minJ = Math.max(0, (int) Math.floor((Math.min(extendedWall[1], extendedWall[3]) - min.y()) / fineness) - 1);
+    int maxJ = Math.min(graph.getNCellsY() - 1,
+                        (int) Math.ceil((Math.max(extendedWall[1], extendedWall[3]) - min.y()) / fineness) + 1);
+
+    int[] edges = new int[64];
+    int numEdges = 0;
+    for (int i = minI; i <= maxI; i++) {
+      for (int j = minJ; j <= maxJ; j++) {
+        int cell = graph.getID(i, j);
+        for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+          // Each edge appears once in each direction; only test it from its lower-ID end
+          if (graph.getNeighbor(slot) < cell || !crosses(extendedWall, cell, graph.getNeighbor(slot))) { continue; }
+          if (numEdges == edges.length) { edges = Arrays.copyOf(edges, 2 * numEdges); }
+          edges[numEdges++] = cell;
+          edges[numEdges++] = slot;
+        }
+      }
+    }
+    return Arrays.copyOf(edges, numEdges);
+  }
+
+  /**
+   * Extends the wall by fineness at each end, for the purpose of determining which graph edges to remove; this helps
+   * prevent agents from getting stuck on the ends of walls
+   * @return endpoints (x1, y1, x2, y2) of the extended wall
+   */
+  private double[] getExtendedWall(LineSegment2D wall) {
     Vector2D extendedWallVector = new Vector2D(wall.firstPoint(), wall.lastPoint()).times(1 + fineness/wall.length());
     Point2D extendedFirstPoint = new Point2D(wall.lastPoint().minus(extendedWallVector));
     Point2D extendedLastPoint = new Point2D(wall.firstPoint().plus(extendedWallVector));
-    LineSegment2D extendedWall = new LineSegment2D(extendedFirstPoint, extendedLastPoint);
+    return new double[] {extendedFirstPoint.x(), extendedFirstPoint.y(), extendedLastPoint.x(), extendedLastPoint.y()};
+  }
 
-    Set<CellEdge> toRemove = roomGraph.edgeSet()
-                                      .stream()
-                                      .filter(e -> LineSegment2D.intersects(extendedWall, e.asLineSegment()))
-                                      .collect(Collectors.toSet());
+  private boolean crosses(double[] extendedWall, int cell, int neighbor) {
+    return WallIndex.segmentsIntersect(extendedWall[0], extendedWall[1], extendedWall[2], extendedWall[3],
+                                      graph.getX(cell), graph.getY(cell), graph.getX(neighbor), graph.getY(neighbor));
+  }
 
-    roomGraph.removeAllEdges(toRemove);
+  private void setUnknownToAgents(int cell, int slot, boolean unknown) {
+    edgesUnknownToAgents.set(slot, unknown);
+    edgesUnknownToAgents.set(graph.getReverseSlot(cell, slot), unknown);
+  }
 
+  /**
+   * @return true if agents can use the edge in the slot, i.e., it is present or only walls unknown to agents cross it
+   */
+  private boolean isOpenToAgents(int slot) {
+    return !graph.isRemoved(slot) || edgesUnknownToAgents.get(slot);
+  }
+
+  /**
+   * Drops everything computed from the walls on demand, after the walls have changed
+   */
+  private void dropDistanceFields() {
+    changedAtRuntime = true;
+    distanceCache.clear();
+    storedFields = null;
+    if (landmarks != null) { useLandmarks(landmarks.getNumLandmarks()); }
+    if (quadtree != null) { useQuadtree(quadtree.getMaxLeafSize()); }
+  }
+
+  /**
+   * @return true if walls have been added or removed since the room was built, so that it no longer matches its layout
+   */
+  boolean isChangedAtRuntime() {
+    return changedAtRuntime;
   }
+
   ArrayList<LineSegment2D> getWalls() {
     return walls;
   }
 
+  WallIndex getWallIndex() {
+    return wallIndex;
+  }
+
 
   /**
    * Encodes the graph of the room as a 2D array of size numEdges X 4, for saving in a .mat file.
@@ -164,330 +377,826 @@ class Room {
    * @return a 2D array encoding of the walls in the room
    */
   double[][] getAsArray() {
-    Set<CellEdge> edgeSet = roomGraph.edgeSet();
-    double[][] asArray = new double[edgeSet.size()][4];
+    double[][] asArray = new double[graph.getNumEdges()][];
     int nextIdx = 0;
-    for (CellEdge e : edgeSet ) {
-      asArray[nextIdx] = e.getAsArray();
-      nextIdx++;
+    for (int cell = 0; cell < graph.getNumCells(); cell++) {
+      for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+        int neighbor = graph.getNeighbor(slot);
+        if (neighbor < cell || graph.isRemoved(slot)) { continue; }
+        asArray[nextIdx] = new double[]{ graph.getX(cell), graph.getY(cell), graph.getX(neighbor), graph.getY(neighbor) };
+        nextIdx++;
+      }
     }
     return asArray;
   }
 
-  Vector2D getGradient(Point2D position) { return getCellFromPosition(position).getGradient(); }
-
   /**
-   * Returns a vector pointing (according to the graph) from the source to the sink
-   * @param source point from which the gradient should start
-   * @param sink point where the gradient should lead
-   * @return graph gradient from source to sink
+   * @return length of the shortest path (that agents know of) to an exit from the cell containing the position, which
+   * is infinite if no exit can be reached from it, or NaN if the position lies outside the room's graph
    */
-  Vector2D getGradientBetween(Point2D source, Point2D sink) {
-    return getCellFromPosition(source).getGradientToCell(getCellFromPosition(sink));
+  double getExitPathLength(double x, double y) {
+    int cell = graph.getIDFromPosition(x, y);
+    return (cell < 0) ? Double.NaN : exitPathLengths[cell];
   }
 
-
   /**
-   * Returns the graph-based distance from the source to the sink
-   * @param source point from which the distance should be measured
-   * @param sink point to which the distance should be measured
-   * @return graph distance from source to sink
+   * Computes the gradient of the distance to the nearest exit at the given position, bilinearly interpolated between
+   * the surrounding cells. Cells that aren't connected to the cell containing the position (e.g., because they are on
+   * the other side of a wall) are left out of the interpolation.
+   * @param x x-coordinate of the position
+   * @param y y-coordinate of the position
+   * @param gradient length-2 array into which the x and y components of the gradient are written
    */
-  double getDistanceBetween(Point2D source, Point2D sink) {
-
-    Cell sourceCell = getCellFromPosition(source);
-    Cell sinkCell = getCellFromPosition(sink);
+  void getGradient(double x, double y, double[] gradient) {
+    int cell = getCellFromPosition(x, y);
+    // Position of (x, y) within the cell, from 0.0 (at this cell) to 1.0 (at the next cell over)
+    double fracX = Math.max(0.0, Math.min(1.0, (x - graph.getX(cell)) / fineness));
+    double fracY = Math.max(0.0, Math.min(1.0, (y - graph.getY(cell)) / fineness));
+    int mask = interpolationMasks[cell];
+    double weightRight = ((mask & 1) != 0) ? fracX * (1.0 - fracY) : 0.0;
+    double weightUp = ((mask & 2) != 0) ? (1.0 - fracX) * fracY : 0.0;
+    double weightUpRight = ((mask & 4) != 0) ? fracX * fracY : 0.0;
+    double weightHere = (1.0 - fracX) * (1.0 - fracY);
+    double totalWeight = weightHere + weightRight + weightUp + weightUpRight;
+    if (totalWeight <= 0.0) { // Position is exactly on a corner that isn't connected to this cell
+      weightHere = 1.0;
+      totalWeight = 1.0;
+    }
 
-    // if cells have line of sight, it's much faster to use Euclidean distance
-    if (hasLineOfSight(sourceCell, sinkCell)) { return Point2D.distance(source, sink); }
+    int right = cell + graph.getNCellsY(), up = cell + 1, upRight = right + 1;
+    double gradientX = weightHere * exitGradientX[cell], gradientY = weightHere * exitGradientY[cell];
+    if (weightRight > 0.0) {
+      gradientX += weightRight * exitGradientX[right];
+      gradientY += weightRight * exitGradientY[right];
+    }
+    if (weightUp > 0.0) {
+      gradientX += weightUp * exitGradientX[up];
+      gradientY += weightUp * exitGradientY[up];
+    }
+    if (weightUpRight > 0.0) {
+      gradientX += weightUpRight * exitGradientX[upRight];
+      gradientY += weightUpRight * exitGradientY[upRight];
+    }
+    gradient[0] = gradientX / totalWeight;
+    gradient[1] = gradientY / totalWeight;
+  }
 
-    // Compute all distances to this cell, if we haven't already done so
-    if (Double.isInfinite(sourceCell.getDistToCell(sinkCell))) { computeDistancesToCell(sinkCell); }
+  /**
+   * Computes the gradient of exitDistances at every cell, along with which neighboring cells each cell's gradient can
+   * be interpolated with
+   */
+  private void updateExitGradients() {
+    for (int cell = 0; cell < graph.getNumCells(); cell++) { updateExitGradient(cell); }
+    for (int cell = 0; cell < graph.getNumCells(); cell++) { updateInterpolationMask(cell); }
+  }
 
-    double distance = sourceCell.getDistToCell(sinkCell);
-    assert distance >= Point2D.distance(source, sink); // By triangle inequality, graph distance is always longer than Euclidean distance
-    return distance;
+  /**
+   * Updates exitDistances, the gradients, and the interpolation masks that depend on the given cells, i.e., on their
+   * exit path lengths or on which of their edges are present
+   * @param changedCells cells whose exit path lengths or edges changed
+   */
+  private void updateExitGradients(CellSet changedCells) {
+    CellSet gradientCells = new CellSet(graph.getNumCells()); // The changed cells and their neighbors
+    for (int k = 0; k < changedCells.size; k++) {
+      int cell = changedCells.cells[k];
+      exitDistances[cell] = Math.pow(exitPathLengths[cell], 0.75);
+      gradientCells.add(cell);
+      for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+        gradientCells.add(graph.getNeighbor(slot));
+      }
+    }
+    CellSet maskCells = new CellSet(graph.getNumCells()); // Cells that interpolate with any of gradientCells
+    for (int k = 0; k < gradientCells.size; k++) {
+      int cell = gradientCells.cells[k];
+      updateExitGradient(cell);
+      int i = graph.getIndexX(cell), j = graph.getIndexY(cell);
+      for (int di = Math.max(i - 1, 0); di <= i; di++) {
+        for (int dj = Math.max(j - 1, 0); dj <= j; dj++) { maskCells.add(graph.getID(di, dj)); }
+      }
+    }
+    for (int k = 0; k < maskCells.size; k++) { updateInterpolationMask(maskCells.cells[k]); }
   }
 
   /**
-   * Labels each cell with its distance to the nearest exit
+   * Computes the gradient of exitDistances at the cell, over the edges that agents know of
    */
-  void updateExitDistances() {
-    // For each exit, do a BFS. Upon traversing a vertex, set its distance to the minimum distance through each of its
-    // neighboring vertices.
-    for (Cell exit : exits) {
-      BreadthFirstIterator<Cell, CellEdge>  iterator = new BreadthFirstIterator<>(roomGraph, exit);
-      iterator.addTraversalListener(new ExitSearchListener());
-      while (iterator.hasNext()) { iterator.next(); }
+  private void updateExitGradient(int cell) {
+    double gradientX = 0.0, gradientY = 0.0;
+    int degree = 0;
+    for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+      if (!isOpenToAgents(slot)) { continue; }
+      int neighbor = graph.getNeighbor(slot);
+      // diffDistance is positive if the neighbor is closer to the exit than the current cell, and negative otherwise
+      double diffDistance = exitDistances[cell] - exitDistances[neighbor];
+      gradientX += (graph.getX(neighbor) - graph.getX(cell)) * diffDistance;
+      gradientY += (graph.getY(neighbor) - graph.getY(cell)) * diffDistance;
+      degree++;
     }
-    rootDistance();
+    exitGradientX[cell] = gradientX / degree; // Divide by number of neighbors, to average
+    exitGradientY[cell] = gradientY / degree;
   }
 
-  private void computeDistancesToCell(Cell targetCell) {
-    assert !targetCell.alreadyComputed;
-    targetCell.alreadyComputed = true;
-    // Compute distance from all cells to the target cell by running a
-    // BFS originating from the target cell
-    BreadthFirstIterator<Cell, CellEdge> iterator = new BreadthFirstIterator<>(roomGraph, targetCell);
-    iterator.addTraversalListener(new NodeSearchListener(targetCell));
-    while (iterator.hasNext()) { iterator.next(); }
-    numDestsComputed++;
+  private void updateInterpolationMask(int cell) {
+    int i = graph.getIndexX(cell), j = graph.getIndexY(cell);
+    int mask = 0;
+    if (i + 1 < graph.getNCellsX() && isInterpolable(cell, graph.getID(i + 1, j))) { mask |= 1; }
+    if (j + 1 < graph.getNCellsY() && isInterpolable(cell, graph.getID(i, j + 1))) { mask |= 2; }
+    if (i + 1 < graph.getNCellsX() && j + 1 < graph.getNCellsY() && isInterpolable(cell, graph.getID(i + 1, j + 1))) {
+      mask |= 4;
+    }
+    interpolationMasks[cell] = (byte) mask;
   }
 
-  private void rootDistance() {
-    for (Cell cell : roomGraph.vertexSet()) {
-      cell.setDistToExit(Math.pow(cell.getDistToExit(), 0.75));
+  private boolean isInterpolable(int cell, int neighbor) {
+    if (!Double.isFinite(exitGradientX[neighbor]) || !Double.isFinite(exitGradientY[neighbor])) { return false; }
+    for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+      if (graph.getNeighbor(slot) == neighbor) { return isOpenToAgents(slot); }
     }
+    return false;
   }
 
-  private Cell getCellFromPosition(Point2D position) {
-    int idxX = (int) ((position.x() - min.x()) / fineness);
-    if (idxX < 0 || idxX >= grid.length) {
-      throw new IllegalArgumentException("Tried to get cell outside of map at coordinates: " + position);
+  /**
+   * Computes a vector pointing (according to the graph) from the source (sourceX, sourceY) to the sink (sinkX, sinkY)
+   * @param gradient length-2 array into which the x and y components of the graph gradient are written
+   */
+  void getGradientBetween(double sourceX, double sourceY, double sinkX, double sinkY, double[] gradient) {
+    int sourceCell = getCellFromPosition(sourceX, sourceY);
+    int sinkCell = getCellFromPosition(sinkX, sinkY);
+    if (landmarks != null || quadtree != null) {
+      getGradientFromDistancesAround(sourceCell, sinkCell, gradient);
+      return;
     }
-    int idxY = (int) ((position.y() - min.y()) / fineness);
-    if (idxY < 0 || idxY >= grid[0].length) {
-      throw new IllegalArgumentException("Tried to get cell outside of map at coordinates: " + position);
+    float[] field = getDistanceField(sinkCell);
+
+    double gradientX = 0.0, gradientY = 0.0;
+    for (int slot = graph.getFirstSlot(sourceCell); slot < graph.getEndSlot(sourceCell); slot++) {
+      if (graph.isRemoved(slot)) { continue; }
+      int neighbor = graph.getNeighbor(slot);
+      // diffDistance is positive if the neighbor is closer to the sink than the current cell, and negative otherwise
+      double diffDistance = field[sourceCell] - field[neighbor];
+      gradientX += (graph.getX(neighbor) - graph.getX(sourceCell)) * diffDistance;
+      gradientY += (graph.getY(neighbor) - graph.getY(sourceCell)) * diffDistance;
     }
-    return grid[idxX][idxY];
+    int degree = graph.getDegree(sourceCell); // Divide by number of neighbors, to average
+    gradient[0] = gradientX / degree;
+    gradient[1] = gradientY / degree;
   }
 
-  boolean atExit(Point2D position, double tolerance) {
-    for (Point2D exitPosition : exactExitPositions) {
-      if (Point2D.distance(position, exitPosition) < tolerance) { return true; }
+
+  /**
+   * Returns the graph-based distance from the source (sourceX, sourceY) to the sink (sinkX, sinkY)
+   * @return graph distance from source to sink
+   */
+  double getDistanceBetween(double sourceX, double sourceY, double sinkX, double sinkY) {
+
+    int sourceCell = getCellFromPosition(sourceX, sourceY);
+    int sinkCell = getCellFromPosition(sinkX, sinkY);
+
+    // if cells have line of sight, it's much faster to use Euclidean distance
+    double euclideanDistance = Math.hypot(sinkX - sourceX, sinkY - sourceY);
+    if (hasLineOfSight(sourceCell, sinkCell)) { return euclideanDistance; }
+
+    double distance;
+    if (landmarks != null) {
+      distance = landmarks.getDistance(sourceCell, sinkCell);
+    } else if (quadtree != null) {
+      distance = quadtree.getDistance(getLeafDistanceField(sinkCell), sourceCell);
+    } else {
+      distance = getDistanceField(sinkCell)[sourceCell];
     }
-    return false;
+    assert distance >= euclideanDistance; // By triangle inequality, graph distance is always longer than Euclidean distance
+    return distance;
   }
 
   /**
-   * Encodes the walls in the room as a 2D array of size numWalls X 4, for saving in a .mat file.
-   * Each row is a wall, and the columns correspond to (x1, y1, x2, y2).
-   * @return a 2D array encoding of the walls in the room
+   * Computes the same gradient as getGradientBetween() does from a distance field, but from the distances to the sink
+   * of just the source cell and its neighbors. As in the distance field, distances are Euclidean if the source cell
+   * sees the sink cell; otherwise, they come from the landmark oracle, or are refined from the quadtree's field.
    */
-  double[][] getWallsAsArray() {
-    double[][] wallsAsArray = new double[walls.size()][4];
-    for (int i = 0; i < walls.size(); i++) {
-      wallsAsArray[i] = new double[]{   walls.get(i).firstPoint().x(),
-                                        walls.get(i).firstPoint().y(),
-                                        walls.get(i).lastPoint().x(),
-                                        walls.get(i).lastPoint().y() };
+  private void getGradientFromDistancesAround(int sourceCell, int sinkCell, double[] gradient) {
+    double[] distances = null;
+    if (!hasLineOfSight(sourceCell, sinkCell)) {
+      distances = (landmarks != null) ? landmarks.getDistancesAround(sourceCell, sinkCell)
+                                      : quadtree.getDistancesAround(getLeafDistanceField(sinkCell), sourceCell);
     }
-    return wallsAsArray;
+    double sourceDistance = (distances == null) ? getEuclideanDistance(sourceCell, sinkCell) : distances[0];
+
+    double gradientX = 0.0, gradientY = 0.0;
+    int firstSlot = graph.getFirstSlot(sourceCell);
+    for (int slot = firstSlot; slot < graph.getEndSlot(sourceCell); slot++) {
+      if (graph.isRemoved(slot)) { continue; }
+      int neighbor = graph.getNeighbor(slot);
+      double neighborDistance = (distances == null) ? getEuclideanDistance(neighbor, sinkCell)
+                                                    : distances[1 + slot - firstSlot];
+      double diffDistance = sourceDistance - neighborDistance;
+      gradientX += (graph.getX(neighbor) - graph.getX(sourceCell)) * diffDistance;
+      gradientY += (graph.getY(neighbor) - graph.getY(sourceCell)) * diffDistance;
+    }
+    int degree = graph.getDegree(sourceCell); // Divide by number of neighbors, to average
+    gradient[0] = gradientX / degree;
+    gradient[1] = gradientY / degree;
+  }
+
+  private double getEuclideanDistance(int c1, int c2) {
+    return Math.hypot(graph.getX(c1) - graph.getX(c2), graph.getY(c1) - graph.getY(c2));
   }
 
   /**
-   * A single ``grid cell'' of the room
+   * Answers later queries of distances and directions between positions (getDistanceBetween() and
+   * getGradientBetween()) from a LandmarkOracle, rather than from a distance field to each sink. This bounds memory by
+   * O(numLandmarks * numCells), and the time of each query by a (usually short) search, at the cost of distances that
+   * follow the graph's edges, rather than straight lines, where cells don't see each other.
+   * Must be called once all walls have been added, and before the room is shared between threads.
+   * @param numLandmarks number of landmarks from which to bound distances
    */
-  private class Cell {
+  void useLandmarks(int numLandmarks) {
+    landmarks = new LandmarkOracle(graph, numLandmarks, landmarkSlack * fineness, metrics);
+  }
 
-    private final Point2D coordinates; // location of the cell
-    private double distToExit;
-    private Vector2D exitGradient;
-    private HashMap<Cell, Double> distMap; // Distance to each other cell
-    boolean alreadyComputed = false;
+  /**
+   * Computes later distance fields between cells (for getDistanceBetween() and getGradientBetween()) over the leaves
+   * of a QuadtreeGraph, rather than over all cells: open parts of the room are covered by a few large leaves, so fields
+   * are much cheaper to compute, and many more of them fit in the same memory budget. Distances from cells in large
+   * leaves are refined locally, so they are close to, but not exactly, those of fields over cells. Distances to exits
+   * are still computed over cells, since they take a single search.
+   * Must be called once all walls have been added, and before the room is shared between threads. The quadtree is
+   * rebuilt whenever walls change at runtime; the metrics of its cache ("leafDistanceCache.*") carry over.
+   * @param maxLeafSize largest side length (in cells) of a leaf; must be a power of two, of at least 2
+   */
+  void useQuadtree(int maxLeafSize) {
+    quadtree = new QuadtreeGraph(graph, maxLeafSize);
+    leafDistanceCache = new DistanceFieldCache(graph.getNumCells(), quadtree.getNumLeaves(), distanceCacheBytes,
+                                               metrics, "leafDistanceCache");
+  }
 
-    Cell(double x, double y) {
-      coordinates = new Point2D(x, y);
-      distToExit = Double.POSITIVE_INFINITY;
-      exitGradient = null;
-      distMap = new HashMap<>();
-    }
+  /**
+   * @return number of leaves of the quadtree over which distance fields between cells are computed, or 0 if none is
+   * used (see useQuadtree())
+   */
+  int getNumQuadtreeLeaves() {
+    return (quadtree != null) ? quadtree.getNumLeaves() : 0;
+  }
 
-    /**
-     * Two non-null Cells are equal if they occupy the same coordinate (i.e., if
-     * their distance is strictly less than fineness).
-     * @param obj Cell to which to test equality with this
-     * @return true if this and obj are both non-null cells and are equal
-     */
-    @Override
-    public boolean equals(Object obj) {
-      return obj != null &&
-          getClass() == obj.getClass() &&
-          euclideanDistFrom((Cell) obj) < fineness / 10.0;
+  /**
+   * Labels each cell with its distance to the nearest exit, and precomputes the gradient of that distance
+   */
+  void updateExitDistances() {
+    Arrays.fill(exitPathLengths, Double.POSITIVE_INFINITY);
+
+    // Run a single Dijkstra search seeded with the straight-line distance of every cell that sees an exit (so exits
+    // are seeded at 0.0). Measuring these cells' distances over the graph instead would bend their paths to the
+    // graph's 8 directions (aliasing), so that agents in sight of an exit would head up to 22.5 degrees away from it.
+    // Cells are settled in order of increasing distance, so each cell's distance is exact (with respect to the seeds
+    // and the graph, whose edges are weighted by length) once it is polled.
+    IndexedMinHeap frontier = new IndexedMinHeap(graph.getNumCells());
+    for (int cell = 0; cell < graph.getNumCells(); cell++) {
+      exitSightLengths[cell] = computeExitSightLength(cell);
+      if (exitSightLengths[cell] < Double.POSITIVE_INFINITY) {
+        exitPathLengths[cell] = exitSightLengths[cell];
+        frontier.insertOrDecrease(cell, exitSightLengths[cell]);
+      }
     }
+    searchExitPathLengths(frontier, null);
+    exitDistancesComputed = true;
+    rootDistance();
+    updateExitGradients();
+  }
 
-    @Override
-    public String toString() {
-      return coordinates.toString();
+  /**
+   * @return straight-line distance from the cell to the nearest exit that it can see past the walls agents know of, or
+   * infinity if it sees none
+   */
+  private double computeExitSightLength(int cell) {
+    double length = Double.POSITIVE_INFINITY;
+    for (int exit : exits) {
+      if (exit == cell) { return 0.0; }
+      if (hasLineOfSightKnownToAgents(cell, exit)) {
+        length = Math.min(length, Math.hypot(graph.getX(cell) - graph.getX(exit), graph.getY(cell) - graph.getY(exit)));
+      }
     }
+    return length;
+  }
 
-    double euclideanDistFrom(Cell targetCell) {
-      return Point2D.distance(this.getCoordinates(), targetCell.getCoordinates());
+  /**
+   * Recomputes exitSightLengths after a wall was added or removed, for the cells whose lines of sight to an exit the
+   * wall crosses (the only ones whose exit sight lengths it can change)
+   * @return the cells whose exit sight lengths changed
+   */
+  private CellSet updateExitSightLengths(LineSegment2D wall) {
+    double wx1 = wall.firstPoint().x(), wy1 = wall.firstPoint().y(), wx2 = wall.lastPoint().x(), wy2 = wall.lastPoint().y();
+    CellSet changed = new CellSet(graph.getNumCells());
+    for (int cell = 0; cell < graph.getNumCells(); cell++) {
+      boolean crossed = false;
+      for (int k = 0; k < exits.size() && !crossed; k++) {
+        int exit = exits.get(k);
+        crossed = WallIndex.segmentsIntersect(wx1, wy1, wx2, wy2,
+                                              graph.getX(cell), graph.getY(cell), graph.getX(exit), graph.getY(exit));
+      }
+      if (!crossed) { continue; }
+      double length = computeExitSightLength(cell);
+      if (length != exitSightLengths[cell]) {
+        exitSightLengths[cell] = length;
+        changed.add(cell);
+      }
     }
+    return changed;
+  }
 
-    Point2D getCoordinates() {
-      return coordinates;
+  /**
+   * Continues a Dijkstra search over the edges that agents know of, lowering exitPathLengths from the cells in the
+   * frontier (whose path lengths are final once they are polled)
+   * @param changedCells if not null, set to which cells' path lengths were lowered
+   */
+  private void searchExitPathLengths(IndexedMinHeap frontier, CellSet changedCells) {
+    while (!frontier.isEmpty()) {
+      int cell = frontier.poll();
+      for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+        if (!isOpenToAgents(slot)) { continue; }
+        int neighbor = graph.getNeighbor(slot);
+        double distanceThroughCell = exitPathLengths[cell] + graph.getLength(slot);
+        if (distanceThroughCell < exitPathLengths[neighbor]) {
+          exitPathLengths[neighbor] = distanceThroughCell;
+          frontier.insertOrDecrease(neighbor, distanceThroughCell);
+          if (changedCells != null) { changedCells.add(neighbor); }
+        }
+      }
     }
+  }
 
-    void setDistToCell(Cell targetCell, double distance) {
-      assert !Double.isInfinite(distance);
-      distMap.put(targetCell, distance);
+  /**
+   * Repairs exitPathLengths after edges, and lines of sight to exits, were closed to agents. Closing them can only
+   * lengthen paths, and only those of cells whose shortest paths used a closed edge or line of sight: these are found
+   * in order of their old path lengths, as the cells that a closed edge, or an affected neighbor, supported (i.e., it
+   * was on a shortest path of theirs), and that neither their (remaining) line of sight to an exit nor an unaffected
+   * neighbor supports. Only the affected cells' path lengths are then recomputed, by a search seeded from their exit
+   * sight lengths and their unaffected neighbors.
+   * @param closedEdges cell and slot of each closed edge, as consecutive pairs
+   * @param sightCells cells whose exit sight lengths increased
+   * @param changedCells set to which the affected cells are added
+   */
+  private void repairAfterClosing(int[] closedEdges, int length, CellSet sightCells, CellSet changedCells) {
+    IndexedMinHeap candidates = new IndexedMinHeap(graph.getNumCells());
+    for (int k = 0; k < sightCells.size; k++) {
+      int cell = sightCells.cells[k];
+      if (exitPathLengths[cell] < Double.POSITIVE_INFINITY) { candidates.insertOrDecrease(cell, exitPathLengths[cell]); }
+    }
+    for (int k = 0; k < length; k += 2) {
+      int cell = closedEdges[k], neighbor = graph.getNeighbor(closedEdges[k + 1]);
+      double edgeLength = graph.getLength(closedEdges[k + 1]);
+      // Path lengths are sums computed in the same order as here, so supporting edges are found by exact equality
+      if (exitPathLengths[neighbor] == exitPathLengths[cell] + edgeLength) {
+        candidates.insertOrDecrease(neighbor, exitPathLengths[neighbor]);
+      }
+      if (exitPathLengths[cell] == exitPathLengths[neighbor] + edgeLength) {
+        candidates.insertOrDecrease(cell, exitPathLengths[cell]);
+      }
     }
 
-    Vector2D getGradientToCell(Cell targetCell) {
-      Vector2D gradient = new Vector2D(0.0, 0.0);
-
-      // Compute all distances to this cell, if we haven't already done so
-      if (Double.isInfinite(getDistToCell(targetCell))) { computeDistancesToCell(targetCell); }
+    CellSet affected = new CellSet(graph.getNumCells());
+    while (!candidates.isEmpty()) {
+      int cell = candidates.poll();
+      // Cells that can't reach an exit can't lose their support
+      if (Double.isInfinite(exitPathLengths[cell])) { continue; }
+      boolean supported = exitPathLengths[cell] == exitSightLengths[cell]; // Including exits, which see themselves
+      for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell) && !supported; slot++) {
+        int neighbor = graph.getNeighbor(slot);
+        supported = isOpenToAgents(slot) && !affected.contains[neighbor]
+            && exitPathLengths[cell] == exitPathLengths[neighbor] + graph.getLength(slot);
+      }
+      if (supported) { continue; }
+      affected.add(cell);
+      for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+        int neighbor = graph.getNeighbor(slot);
+        if (isOpenToAgents(slot) && exitPathLengths[neighbor] == exitPathLengths[cell] + graph.getLength(slot)) {
+          candidates.insertOrDecrease(neighbor, exitPathLengths[neighbor]);
+        }
+      }
+    }
 
-      Collection<Cell> neighbors = Graphs.neighborListOf(roomGraph, this);
-      // Note that, since the BFS starts from the target cell and traverses the whole
-      // graph, at most one BFS call can occur per node; this could still be horribly slow, however
-      for (Cell neighbor : neighbors) {
-        // diffDistance is positive if the neighbor is closer to the exit than the current cell, and negative otherwise
-        double diffDistance = getDistToCell(targetCell) - neighbor.getDistToCell(targetCell);
-        gradient = gradient.plus((new Vector2D(coordinates, neighbor.getCoordinates())).times(diffDistance));
+    for (int k = 0; k < affected.size; k++) { exitPathLengths[affected.cells[k]] = Double.POSITIVE_INFINITY; }
+    IndexedMinHeap frontier = candidates; // Empty, so reused
+    for (int k = 0; k < affected.size; k++) {
+      int cell = affected.cells[k];
+      changedCells.add(cell);
+      if (exitSightLengths[cell] < exitPathLengths[cell]) {
+        exitPathLengths[cell] = exitSightLengths[cell];
+        frontier.insertOrDecrease(cell, exitSightLengths[cell]);
+      }
+      for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+        int neighbor = graph.getNeighbor(slot);
+        if (!isOpenToAgents(slot) || affected.contains[neighbor]) { continue; }
+        double distanceThroughNeighbor = exitPathLengths[neighbor] + graph.getLength(slot);
+        if (distanceThroughNeighbor < exitPathLengths[cell]) {
+          exitPathLengths[cell] = distanceThroughNeighbor;
+          frontier.insertOrDecrease(cell, distanceThroughNeighbor);
+        }
       }
-      return gradient.times(1.0/neighbors.size()); // Divide by number of neighbors, to average
     }
+    searchExitPathLengths(frontier, null);
+  }
 
-    double getDistToCell(Cell targetCell) {
-      return (distMap.containsKey(targetCell)) ? distMap.get(targetCell) : Double.POSITIVE_INFINITY;
+  /**
+   * Repairs exitPathLengths after edges, and lines of sight to exits, were opened to agents. Opening them can only
+   * shorten paths, so a search from the ends of the opened edges and from the cells with new lines of sight lowers
+   * just the path lengths that they shorten.
+   * @param openedEdges cell and slot of each opened edge, as consecutive pairs
+   * @param sightCells cells whose exit sight lengths decreased
+   * @param changedCells set to which the cells whose path lengths were lowered are added
+   */
+  private void repairAfterOpening(int[] openedEdges, int length, CellSet sightCells, CellSet changedCells) {
+    IndexedMinHeap frontier = new IndexedMinHeap(graph.getNumCells());
+    for (int k = 0; k < sightCells.size; k++) {
+      int cell = sightCells.cells[k];
+      if (exitSightLengths[cell] < exitPathLengths[cell]) {
+        exitPathLengths[cell] = exitSightLengths[cell];
+        frontier.insertOrDecrease(cell, exitPathLengths[cell]);
+        changedCells.add(cell);
+      }
     }
+    for (int k = 0; k < length; k += 2) {
+      int cell = openedEdges[k], neighbor = graph.getNeighbor(openedEdges[k + 1]);
+      double edgeLength = graph.getLength(openedEdges[k + 1]);
+      if (exitPathLengths[cell] + edgeLength < exitPathLengths[neighbor]) {
+        exitPathLengths[neighbor] = exitPathLengths[cell] + edgeLength;
+        frontier.insertOrDecrease(neighbor, exitPathLengths[neighbor]);
+        changedCells.add(neighbor);
+      } else if (exitPathLengths[neighbor] + edgeLength < exitPathLengths[cell]) {
+        exitPathLengths[cell] = exitPathLengths[neighbor] + edgeLength;
+        frontier.insertOrDecrease(cell, exitPathLengths[cell]);
+        changedCells.add(cell);
+      }
+    }
+    searchExitPathLengths(frontier, changedCells);
+  }
 
-    double getDistToExit() {
-      return distToExit;
+  /**
+   * A set of cells, which can be listed in the order they were added
+   */
+  private static class CellSet {
+    final boolean[] contains;
+    final int[] cells;
+    int size = 0;
+
+    CellSet(int numCells) {
+      contains = new boolean[numCells];
+      cells = new int[numCells];
     }
 
-    void setDistToExit(double distToExit) {
-      this.distToExit = distToExit;
+    void add(int cell) {
+      if (!contains[cell]) {
+        contains[cell] = true;
+        cells[size++] = cell;
+      }
     }
+  }
 
-    Vector2D getGradient() {
-      if (exitGradient == null) { setGradient(); }
-      return exitGradient;
+  /**
+   * Returns the distance from every cell to the target cell, computing it if it isn't already cached
+   * @param targetCell ID of the cell to which distances are measured
+   * @return array giving, for each cell ID, the distance from that cell to targetCell
+   */
+  private float[] getDistanceField(int targetCell) {
+    float[] field = distanceCache.get(targetCell);
+    if (field == null) {
+      // Computation happens outside of the cache's lock, so two threads may occasionally compute the same field; the
+      // cache then keeps just one of them
+      field = (storedFields == null) ? null : storedFields.get(targetCell);
+      if (field != null) {
+        numStoredFieldsRead.increment();
+      } else {
+        field = computeDistancesToCell(targetCell);
+      }
+      field = distanceCache.put(targetCell, field);
     }
+    return field;
+  }
 
-    void setGradient() {
-      if (Double.isInfinite(coordinates.x())) { // Gradient outside graph is zero
-        this.exitGradient = new Vector2D(0.0, 0.0);
-        return;
+  /**
+   * Computes the distance from all cells to the target cell by running a BFS originating from the target cell.
+   * If a cell has line of sight to the target cell (i.e., there are no walls directly between the two cells), its
+   * distance is the Euclidean distance. Otherwise, its distance is based on the neighboring cell that is closest to the
+   * target cell. Note that this works because we started the BFS at the target, so any strictly closer cells have
+   * already been visited.
+   *
+   * The search's scratch space is allocated per call, so that searches on different threads don't interfere; it is no
+   * larger than the field itself.
+   */
+  private float[] computeDistancesToCell(int targetCell) {
+    long startTime = System.nanoTime();
+    float[] field = new float[graph.getNumCells()];
+    Arrays.fill(field, Float.POSITIVE_INFINITY);
+
+    int[] searchQueue = new int[graph.getNumCells()];
+    boolean[] reached = new boolean[graph.getNumCells()];
+    int queueHead = 0, queueTail = 0;
+    searchQueue[queueTail++] = targetCell;
+    reached[targetCell] = true;
+    while (queueHead < queueTail) {
+      int cell = searchQueue[queueHead++];
+      if (cell == targetCell) { // Base Case: all cells are distance 0.0 from themselves.
+        field[cell] = 0.0f;
+      } else if (hasLineOfSight(cell, targetCell)) {
+        field[cell] = (float) Math.hypot(graph.getX(cell) - graph.getX(targetCell), graph.getY(cell) - graph.getY(targetCell));
+      } else {
+        double minDist = Double.MAX_VALUE;
+        for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+          if (graph.isRemoved(slot)) { continue; }
+          minDist = Math.min(minDist, field[graph.getNeighbor(slot)] + graph.getLength(slot));
+        }
+        field[cell] = (float) minDist;
+      }
+      assert !Float.isInfinite(field[cell]);
+
+      for (int slot = graph.getFirstSlot(cell); slot < graph.getEndSlot(cell); slot++) {
+        int neighbor = graph.getNeighbor(slot);
+        if (!graph.isRemoved(slot) && !reached[neighbor]) {
+          reached[neighbor] = true;
+          searchQueue[queueTail++] = neighbor;
+        }
       }
+    }
+    numDistanceFields.increment();
+    distanceFieldNanos.add(System.nanoTime() - startTime);
+    return field;
+  }
 
-      exitGradient = new Vector2D(0.0, 0.0);
+  /**
+   * Returns the distance from every leaf of the quadtree to the target cell, computing it if it isn't already cached
+   * (see getDistanceField())
+   * @param targetCell ID of the cell to which distances are measured
+   * @return array giving, for each leaf ID, the distance from that leaf to targetCell
+   */
+  private float[] getLeafDistanceField(int targetCell) {
+    float[] field = leafDistanceCache.get(targetCell);
+    if (field == null) { field = leafDistanceCache.put(targetCell, computeLeafDistancesToCell(targetCell)); }
+    return field;
+  }
 
-      Collection<Cell> neighbors = Graphs.neighborListOf(roomGraph, this);
-      for (Cell neighbor : neighbors) {
-        // diffDistance is positive if the neighbor is closer to the exit than the current cell, and negative otherwise
-        double diffDistance = distToExit - neighbor.getDistToExit();
-        exitGradient = exitGradient.plus((new Vector2D(coordinates, neighbor.getCoordinates())).times(diffDistance));
+  /**
+   * Computes the distance from all leaves of the quadtree to the target cell, much as computeDistancesToCell() does for
+   * cells: the distance of a leaf is measured from its representative cell, and is Euclidean if that cell sees the
+   * target cell; otherwise, it is based on the neighboring leaf that is closest to the target cell. Since portal edges
+   * vary in length, leaves are settled in order of distance (by Dijkstra's algorithm) rather than by a BFS, whose order
+   * only follows distance when all edges are about as long.
+   */
+  private float[] computeLeafDistancesToCell(int targetCell) {
+    long startTime = System.nanoTime();
+    int numLeaves = quadtree.getNumLeaves();
+    float[] field = new float[numLeaves];
+    Arrays.fill(field, Float.POSITIVE_INFINITY);
+
+    IndexedMinHeap frontier = new IndexedMinHeap(numLeaves);
+    byte[] sight = new byte[numLeaves]; // 0 if not tested yet, 1 if the leaf sees the target cell, and 2 if not
+    boolean[] settled = new boolean[numLeaves];
+    int targetLeaf = quadtree.getLeaf(targetCell);
+    // Nothing in the target's leaf blocks the way
+    field[targetLeaf] = (float) getEuclideanDistance(quadtree.getRepresentative(targetLeaf), targetCell);
+    frontier.insertOrDecrease(targetLeaf, field[targetLeaf]);
+    while (!frontier.isEmpty()) {
+      int leaf = frontier.poll();
+      settled[leaf] = true;
+      for (int edge = quadtree.getFirstEdge(leaf); edge < quadtree.getEndEdge(leaf); edge++) {
+        int neighbor = quadtree.getEdgeTarget(edge);
+        if (settled[neighbor]) { continue; }
+        int cell = quadtree.getRepresentative(neighbor);
+        if (sight[neighbor] == 0) { sight[neighbor] = (byte) (hasLineOfSight(cell, targetCell) ? 1 : 2); }
+        float distance = (sight[neighbor] == 1) ? (float) getEuclideanDistance(cell, targetCell)
+                                                : field[leaf] + quadtree.getEdgeLength(edge);
+        if (distance < field[neighbor]) {
+          field[neighbor] = distance;
+          frontier.insertOrDecrease(neighbor, distance);
+        }
       }
-      exitGradient = exitGradient.times(1.0/neighbors.size()); // Divide by number of neighbors, to average
     }
+    numLeafDistanceFields.increment();
+    leafDistanceFieldNanos.add(System.nanoTime() - startTime);
+    return field;
+  }
 
-    void resetGradient() {
-      exitGradient = null;
+  /**
+   * @return the distance field to the target cell if it is cached in memory or stored, without computing it (and
+   * without counting as a use of the cache), or null if it isn't available
+   */
+  float[] getKnownDistanceField(int targetCell) {
+    float[] field = distanceCache.peek(targetCell);
+    if (field == null && storedFields != null) { field = storedFields.get(targetCell); }
+    return field;
+  }
+
+  /**
+   * @return target cells of all distance fields cached in memory (most recently used first), followed by those of any
+   * other stored fields, up to the number of fields the memory budget of the cache allows
+   */
+  int[] getKnownDistanceFieldTargets() {
+    int[] cached = distanceCache.getTargets();
+    int[] stored = (storedFields == null) ? new int[0] : storedFields.getTargets();
+    int[] targets = Arrays.copyOf(cached, Math.min(cached.length + stored.length, distanceCache.getMaxFields()));
+    int numTargets = Math.min(cached.length, targets.length);
+    for (int i = 0; i < stored.length && numTargets < targets.length; i++) {
+      if (distanceCache.peek(stored[i]) == null) { targets[numTargets++] = stored[i]; }
     }
+    return Arrays.copyOf(targets, numTargets);
   }
 
-  private class CellEdge {
+  /**
+   * @param storedFields distance fields saved by a previous run, to read instead of computing them
+   */
+  void setStoredDistanceFields(RoomCache.StoredFields storedFields) {
+    this.storedFields = storedFields;
+  }
 
-    private final LineSegment2D lineSegment; // We store this to check intersections with any walls that we add
-    private final Cell c1, c2;
+  /**
+   * @return number of distance fields computed (rather than read from memory or storage) so far
+   */
+  long getNumDistanceFieldsComputed() {
+    return numDistanceFields.sum();
+  }
 
-    CellEdge(Cell c1, Cell c2) {
-      this.c1 = c1;
-      this.c2 = c2;
-      this.lineSegment = new LineSegment2D(c1.getCoordinates(), c2.getCoordinates());
-    }
+  int getNumCells() {
+    return graph.getNumCells();
+  }
 
-    LineSegment2D asLineSegment() {
-      return lineSegment;
-    }
+  /**
+   * Writes the state computed while building the room (which graph edges were removed, and which of those agents know
+   * about, exit distances, sight lengths, and gradients, and visibility), for a RoomCache to store
+   */
+  void writeBuiltState(DataOutputStream out) throws IOException {
+    long[] removedWords = graph.getRemovedWords();
+    out.writeInt(removedWords.length);
+    for (long word : removedWords) { out.writeLong(word); }
+    long[] unknownWords = edgesUnknownToAgents.toLongArray();
+    out.writeInt(unknownWords.length);
+    for (long word : unknownWords) { out.writeLong(word); }
+    out.writeBoolean(exitDistancesComputed);
+    for (double pathLength : exitPathLengths) { out.writeDouble(pathLength); }
+    for (double sightLength : exitSightLengths) { out.writeDouble(sightLength); }
+    for (double gradientX : exitGradientX) { out.writeDouble(gradientX); }
+    for (double gradientY : exitGradientY) { out.writeDouble(gradientY); }
+    out.write(interpolationMasks);
+    visibility.write(out);
+  }
 
-    /**
-     * @return length-4 array with coordinates of c1 and c2
-     */
-    double[] getAsArray() {
-      return new double[]{  c1.getCoordinates().x(),
-                            c1.getCoordinates().y(),
-                            c2.getCoordinates().x(),
-                            c2.getCoordinates().y() };
+  /**
+   * Restores the state written by writeBuiltState() into a room created by RoomLayout.createUnbuilt()
+   * @param in buffer positioned at the start of the state, which is advanced past it
+   */
+  void readBuiltState(ByteBuffer in) {
+    long[] removedWords = new long[in.getInt()];
+    in.asLongBuffer().get(removedWords);
+    in.position(in.position() + 8 * removedWords.length);
+    graph.setRemovedWords(removedWords);
+    long[] unknownWords = new long[in.getInt()];
+    in.asLongBuffer().get(unknownWords);
+    in.position(in.position() + 8 * unknownWords.length);
+    edgesUnknownToAgents.clear();
+    edgesUnknownToAgents.or(BitSet.valueOf(unknownWords));
+    exitDistancesComputed = in.get() != 0;
+    for (double[] array : new double[][] {exitPathLengths, exitSightLengths, exitGradientX, exitGradientY}) {
+      in.asDoubleBuffer().get(array);
+      in.position(in.position() + 8 * array.length);
     }
-
+    rootDistance();
+    in.get(interpolationMasks);
+    visibility.read(in);
   }
 
-  private boolean hasLineOfSight(Cell c1, Cell c2) {
-    LineSegment2D lineBetweenCells = new LineSegment2D(c1.getCoordinates(), c2.getCoordinates());
-    for (LineSegment2D wall : walls) {
-      if (LineSegment2D.intersects(wall, lineBetweenCells)) {
-        return false;
+  /**
+   * Compares the state computed from the walls (which graph edges are removed, and which of those agents know about,
+   * exit distances and gradients) with another room's, e.g., to check that a room changed at runtime matches one built
+   * from scratch with the same walls. Distances and gradients may differ by round-off, since paths of equal length can
+   * be summed in a different order. Visibility isn't compared: after a wall is removed at runtime, it is conservative.
+   * @return description of the first difference found, or null if there is none
+   */
+  String findDifference(Room other) {
+    if (!Arrays.equals(graph.getRemovedWords(), other.graph.getRemovedWords())) { return "removed edges differ"; }
+    if (!edgesUnknownToAgents.equals(other.edgesUnknownToAgents)) { return "edges unknown to agents differ"; }
+    if (exitDistancesComputed != other.exitDistancesComputed) { return "only one room has exit distances"; }
+    String[] names = {"exit path length", "exit sight length", "exit distance", "exit gradient x", "exit gradient y"};
+    double[][] arrays = {exitPathLengths, exitSightLengths, exitDistances, exitGradientX, exitGradientY};
+    double[][] otherArrays = {other.exitPathLengths, other.exitSightLengths, other.exitDistances, other.exitGradientX,
+                              other.exitGradientY};
+    for (int k = 0; k < arrays.length; k++) {
+      for (int cell = 0; cell < arrays[k].length; cell++) {
+        double a = arrays[k][cell], b = otherArrays[k][cell];
+        if (!(a == b || (Double.isNaN(a) && Double.isNaN(b)) || Math.abs(a - b) <= 1e-9 * Math.max(Math.abs(a), 1.0))) {
+          return names[k] + " of cell " + cell + " differs: " + a + " vs. " + b;
+        }
       }
     }
-    return true;
+    for (int cell = 0; cell < interpolationMasks.length; cell++) {
+      if (interpolationMasks[cell] != other.interpolationMasks[cell]) {
+        return "interpolation mask of cell " + cell + " differs: " + interpolationMasks[cell] + " vs. "
+            + other.interpolationMasks[cell];
+      }
+    }
+    return null;
   }
 
-  private class NodeSearchListener extends TraversalListenerAdapter<Cell, CellEdge> {
+  /**
+   * @return summary of the hit, miss, and eviction counts of the cache of distance fields between cells
+   */
+  String getDistanceCacheStats() {
+    return (quadtree != null) ? leafDistanceCache.toString() : distanceCache.toString();
+  }
 
-    private Cell targetCell;
-    public int numCellsReached = 0;
+  /**
+   * @return metrics of the room (distance fields computed, line-of-sight tests, and distance cache use), accumulated
+   * over all simulations that share it
+   */
+  MetricsRegistry getMetrics() {
+    return metrics;
+  }
 
-    NodeSearchListener(Cell targetCell) {
-      super();
-      if (targetCell == null) {
-        throw new IllegalArgumentException("Trying to search for null cell!");
-      }
-      this.targetCell = targetCell;
+  private void rootDistance() {
+    for (int cell = 0; cell < exitDistances.length; cell++) {
+      exitDistances[cell] = Math.pow(exitPathLengths[cell], 0.75);
     }
+  }
 
-    @Override
-    public void vertexTraversed(VertexTraversalEvent<Cell> e) {
-      Cell cell = e.getVertex();
-      numCellsReached++;
-      if (targetCell.equals(cell)) { // Base Case: all cells are distance 0.0 from themselves.
-        cell.setDistToCell(targetCell, 0.0);
-      } else {
+  /**
+   * @return ID of the cell containing the position
+   */
+  private int getCellFromPosition(Point2D position) {
+    return getCellFromPosition(position.x(), position.y());
+  }
 
-        /* First check if the cell has line of sight (i.e., there are no walls directly between the two cells).
-         In this case, the shortest distance is the Euclidean distance. Otherwise, we compute distance based
-         on the nearest neighbor of the current cell to the targetCell
-         */
-        if (hasLineOfSight(cell, targetCell)) {
-          cell.setDistToCell(targetCell, cell.euclideanDistFrom(targetCell));
-        } else {
-
-          // In this case, distance is based on the neighboring cell that is closest to target cell.
-          // Note that this works because we started the BFS at the target, so any strictly closer
-          // cells have already been visited
-          double minDist = Double.MAX_VALUE;
-          for (Cell neighbor : Graphs.neighborListOf(roomGraph, cell)) {
-            double distanceThroughNeighbor = neighbor.getDistToCell(targetCell) + cell.euclideanDistFrom(neighbor);
-            minDist = Math.min(minDist, distanceThroughNeighbor);
-          }
-          cell.setDistToCell(targetCell, minDist);
-        }
-      }
-      assert !Double.isInfinite(cell.getDistToCell(targetCell));
+  private int getCellFromPosition(double x, double y) {
+    int cell = graph.getIDFromPosition(x, y);
+    if (cell < 0) {
+      throw new IllegalArgumentException("Tried to get cell outside of map at coordinates: " + new Point2D(x, y));
     }
+    return cell;
+  }
 
+  /**
+   * Sets the outer boundary of the room, which defaults to the region covered by the graph
+   * @param bottomLeft bottom left corner of the boundary
+   * @param topRight top right corner of the boundary
+   */
+  void setBoundary(Point2D bottomLeft, Point2D topRight) {
+    boundaryMin = bottomLeft;
+    boundaryMax = topRight;
   }
 
-  private class ExitSearchListener extends TraversalListenerAdapter<Cell, CellEdge> {
+  Point2D getBoundaryMin() {
+    return boundaryMin;
+  }
 
-    @Override
-    public void vertexTraversed(VertexTraversalEvent<Cell> e) {
-      Cell cell = e.getVertex();
-      if (exits.contains(cell)) { // base case: all exists are distance 0.0 from exit
-        cell.setDistToExit(0.0);
-      } else {// otherwise, distance is based on the neighboring cell that is closest to an exit
+  Point2D getBoundaryMax() {
+    return boundaryMax;
+  }
 
-        // First measure simple Euclidean distance; when the cell has line of sight to an exit, this is more accurate
-        // than the graph distance, which suffers aliasing
-        for (Cell exit : exits) {
-          if (hasLineOfSight(cell, exit)) {
-            cell.setDistToExit(Math.min(cell.getDistToExit(), cell.euclideanDistFrom(exit)));
-          }
-        }
+  /**
+   * @return true if and only if (x, y) lies within the outer boundary of the room
+   */
+  boolean isInsideBoundary(double x, double y) {
+    return boundaryMin.x() <= x && x <= boundaryMax.x() && boundaryMin.y() <= y && y <= boundaryMax.y();
+  }
 
-        for (Cell neighbor : Graphs.neighborListOf(roomGraph, cell)) {
-          double distanceThroughNeighbor = neighbor.getDistToExit() + cell.euclideanDistFrom(neighbor);
-          cell.setDistToExit(Math.min(cell.getDistToExit(), distanceThroughNeighbor));
-          cell.resetGradient(); // Erases any cached gradient, forcing it to update next time getGradient() is called
-        }
+  boolean atExit(double x, double y, double tolerance) {
+    for (Point2D exitPosition : exactExitPositions) {
+      if (Math.hypot(x - exitPosition.x(), y - exitPosition.y()) < tolerance) { return true; }
+    }
+    return false;
+  }
 
-      }
+  /**
+   * Encodes the walls in the room as a 2D array of size numWalls X 4, for saving in a .mat file.
+   * Each row is a wall, and the columns correspond to (x1, y1, x2, y2).
+   * @return a 2D array encoding of the walls in the room
+   */
+  double[][] getWallsAsArray() {
+    double[][] wallsAsArray = new double[walls.size()][4];
+    for (int i = 0; i < walls.size(); i++) {
+      wallsAsArray[i] = new double[]{   walls.get(i).firstPoint().x(),
+                                        walls.get(i).firstPoint().y(),
+                                        walls.get(i).lastPoint().x(),
+                                        walls.get(i).lastPoint().y() };
     }
+    return wallsAsArray;
+  }
+
+  /**
+   * Tests line of sight between cells past just the walls that agents know of, as hasLineOfSight() does past all walls.
+   * Blocks that visibility marks visible see each other past any walls, but a hidden pair may be hidden by a wall that
+   * agents don't know of, so it is tested exactly unless there are no such walls.
+   */
+  private boolean hasLineOfSightKnownToAgents(int c1, int c2) {
+    numLineOfSightTests.increment();
+    int pair = visibility.getPair(c1, c2);
+    if (visibility.isVisible(pair)) { return true; }
+    if (visibility.isHidden(pair) && unknownWallIDs.isEmpty()) { return false; }
+    numExactLineOfSightTests.increment();
+    return !wallIndex.intersectsAny(graph.getX(c1), graph.getY(c1), graph.getX(c2), graph.getY(c2), unknownWallIDs);
+  }
 
+  private boolean hasLineOfSight(int c1, int c2) {
+    numLineOfSightTests.increment();
+    int pair = visibility.getPair(c1, c2);
+    if (visibility.isVisible(pair)) { return true; }
+    if (visibility.isHidden(pair)) { return false; }
+    numExactLineOfSightTests.increment();
+    return !wallIndex.intersectsAny(graph.getX(c1), graph.getY(c1), graph.getX(c2), graph.getY(c2));
   }
 
-}
\ No newline at end of file
+}
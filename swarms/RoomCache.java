@@ -0,0 +1,204 @@
+package swarms;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A directory of built rooms, stored on disk, so that runs (and concurrent processes) using the same room don't each
+ * rebuild its graph, remove edges crossing its walls, and compute its exit distances.
+ *
+ * Each room is stored in its own file, named by the hash of its RoomLayout (which covers its geometry and spatial
+ * resolution), along with any distance fields between cells that were computed by the runs that used it. Files are
+ * read through a read-only memory map: the built state is copied out when the room is loaded, but distance fields are
+ * only read (and paged in) when a run first needs them.
+ *
+ * File format (big-endian):
+ *   magic (8 bytes), format version (int), layout hash (32 bytes), number of cells (int), number of stored fields (int)
+ *   built state of the room (see Room.writeBuiltState())
+ *   target cell of each stored field (int[number of stored fields]), padded to a multiple of 8 bytes
+ *   stored fields (float[number of cells] each)
+ * The format version must be incremented whenever the format, or the way rooms are built, changes; files of other
+ * versions are ignored (and replaced).
+ */
+class RoomCache {
+
+  private static final long magic = 0x5357524D524F4F4DL; // "SWRMROOM"
+  private static final int formatVersion = 4;
+
+  private final Path directory;
+
+  /**
+   * Distance fields stored in a room file, read on demand from its memory map
+   */
+  static class StoredFields {
+    private final ByteBuffer buffer; // Memory map of the whole file
+    private final int[] targets;     // Target cell of each stored field
+    private final int[] indices;     // Index of the stored field to each target cell, or -1
+    private final int numCells;
+    private final long dataStart;    // Offset of the first stored field in the file
+
+    private StoredFields(ByteBuffer buffer, int[] targets, int numCells, long dataStart) {
+      this.buffer = buffer;
+      this.targets = targets;
+      this.numCells = numCells;
+      this.dataStart = dataStart;
+      indices = new int[numCells];
+      Arrays.fill(indices, -1);
+      for (int i = 0; i < targets.length; i++) { indices[targets[i]] = i; }
+    }
+
+    /**
+     * @return a copy of the stored distance field to the target cell, or null if there is none; safe to call from
+     * multiple threads
+     */
+    float[] get(int targetCell) {
+      int index = indices[targetCell];
+      if (index < 0) { return null; }
+      float[] field = new float[numCells];
+      ByteBuffer view = buffer.duplicate(); // Each reader needs its own position
+      view.position((int) (dataStart + 4L * numCells * index));
+      view.asFloatBuffer().get(field);
+      return field;
+    }
+
+    int[] getTargets() {
+      return targets;
+    }
+  }
+
+  /**
+   * @param directory directory in which to store rooms; it is created if it doesn't exist
+   */
+  RoomCache(String directory) {
+    this.directory = Paths.get(directory);
+  }
+
+  /**
+   * Loads the room with the given layout, if it is stored, and otherwise builds (and stores) it
+   * @param layout layout of the room
+   * @param distanceCacheBytes approximate memory budget for cached distance fields between cells
+   * @return the built room
+   */
+  Room getOrBuild(RoomLayout layout, long distanceCacheBytes) {
+    byte[] hash = layout.getHash(formatVersion);
+    Path file = getFile(hash);
+    if (Files.exists(file)) {
+      try {
+        Room room = load(file, layout, hash, distanceCacheBytes);
+        if (room != null) {
+          System.out.println("Loaded room from " + file);
+          return room;
+        }
+        System.out.println("Ignoring out-of-date room file " + file);
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Couldn't load room from " + file + "; rebuilding it");
+        e.printStackTrace();
+      }
+    }
+    Room room = layout.build(distanceCacheBytes);
+    save(layout, room);
+    return room;
+  }
+
+  /**
+   * Stores a built room, along with its known distance fields, replacing any stored version of it. The file is written
+   * to a temporary file first and then moved into place, so concurrent readers never see a partial file.
+   * Failures are reported, but otherwise ignored, since storing the room is only an optimization.
+   * @param layout layout from which the room was built
+   * @param room the built room
+   */
+  void save(RoomLayout layout, Room room) {
+    if (room.isChangedAtRuntime()) {
+      System.err.println("Not storing a room whose walls were changed at runtime, since it no longer matches its layout");
+      return;
+    }
+    byte[] hash = layout.getHash(formatVersion);
+    Path file = getFile(hash);
+    Path temporaryFile = null;
+    try {
+      Files.createDirectories(directory);
+      temporaryFile = Files.createTempFile(directory, "room", ".tmp");
+      int[] targets = room.getKnownDistanceFieldTargets();
+      int numFields = 0;
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+        out.writeLong(magic);
+        out.writeInt(formatVersion);
+        out.write(hash);
+        out.writeInt(room.getNumCells());
+
+        // Fields may be evicted (by concurrent runs) while being written, so only those still known are counted
+        float[][] fields = new float[targets.length][];
+        for (int target : targets) {
+          float[] field = room.getKnownDistanceField(target);
+          if (field != null) {
+            targets[numFields] = target;
+            fields[numFields++] = field;
+          }
+        }
+        out.writeInt(numFields);
+        room.writeBuiltState(out);
+        for (int i = 0; i < numFields; i++) { out.writeInt(targets[i]); }
+        while (out.size() % 8 != 0) { out.writeByte(0); }
+        for (int i = 0; i < numFields; i++) {
+          for (float distance : fields[i]) { out.writeFloat(distance); }
+        }
+      }
+      Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      System.out.println("Saved room, with " + numFields + " distance fields, to " + file);
+    } catch (IOException e) {
+      System.err.println("Couldn't save room to " + file);
+      e.printStackTrace();
+      try {
+        if (temporaryFile != null) { Files.deleteIfExists(temporaryFile); }
+      } catch (IOException ignored) {
+        // Nothing more can be done about it
+      }
+    }
+  }
+
+  /**
+   * @return the room stored in the file, or null if the file is for another version or layout
+   */
+  private static Room load(Path file, RoomLayout layout, byte[] hash, long distanceCacheBytes) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // The map remains valid once closed
+    }
+
+    if (buffer.getLong() != magic || buffer.getInt() != formatVersion) { return null; }
+    byte[] storedHash = new byte[hash.length];
+    buffer.get(storedHash);
+    if (!Arrays.equals(storedHash, hash)) { return null; }
+
+    Room room = layout.createUnbuilt(distanceCacheBytes);
+    int numCells = buffer.getInt();
+    if (numCells != room.getNumCells()) { return null; }
+    int[] targets = new int[buffer.getInt()];
+    room.readBuiltState(buffer);
+    buffer.asIntBuffer().get(targets);
+    buffer.position(buffer.position() + 4 * targets.length);
+    while (buffer.position() % 8 != 0) { buffer.get(); }
+    if (buffer.limit() - buffer.position() != 4L * numCells * targets.length) {
+      throw new IOException("Truncated room file " + file);
+    }
+    room.setStoredDistanceFields(new StoredFields(buffer, targets, numCells, buffer.position()));
+    return room;
+  }
+
+  private Path getFile(byte[] hash) {
+    StringBuilder name = new StringBuilder("room-");
+    for (int i = 0; i < 16; i++) { name.append(String.format("%02x", hash[i])); }
+    return directory.resolve(name.append(".bin").toString());
+  }
+
+}
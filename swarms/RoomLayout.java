@@ -0,0 +1,190 @@
+package swarms;
+
+import math.geom2d.Point2D;
+import math.geom2d.line.LineSegment2D;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The geometry of a room (its extent, walls, exits, and boundary), recorded without building the room's graph.
+ * Building a room from its layout gives the same room as adding the walls and exits to it directly, in the same order;
+ * unlike a built room, though, a layout is cheap to construct, so it can be hashed to look up a previously built room in
+ * a RoomCache.
+ */
+class RoomLayout {
+
+  final Point2D min, max;             // Corners of the region covered by the room's graph
+  final double spatialResolution;     // Distance between adjacent grid cells
+  final SwarmSim.RoomType roomType;
+  private Point2D boundaryMin, boundaryMax; // Outer boundary of the room, if set
+  private final List<LineSegment2D> walls = new ArrayList<>();
+  private final List<Point2D> exits = new ArrayList<>();
+  private int numWallsKnownToAgents = -1; // Number of walls added before exit distances were computed, or -1 if never
+
+  /**
+   * @param min bottom left corner of the room
+   * @param max top right corner of the room
+   * @param spatialResolution distance between adjacent grid cells
+   * @param roomType type of room being modeled
+   */
+  RoomLayout(Point2D min, Point2D max, double spatialResolution, SwarmSim.RoomType roomType) {
+    this.min = min;
+    this.max = max;
+    this.spatialResolution = spatialResolution;
+    this.roomType = roomType;
+  }
+
+  void addWall(LineSegment2D wall) {
+    walls.add(wall);
+  }
+
+  void addExit(Point2D exitLocation) {
+    exits.add(exitLocation);
+  }
+
+  void setBoundary(Point2D bottomLeft, Point2D topRight) {
+    boundaryMin = bottomLeft;
+    boundaryMax = topRight;
+  }
+
+  /**
+   * Marks that the room's exit distances are computed from the walls added so far; walls added later (e.g., obstacles)
+   * block agents, but agents don't know about them
+   */
+  void updateExitDistances() {
+    numWallsKnownToAgents = walls.size();
+  }
+
+  List<LineSegment2D> getWalls() {
+    return walls;
+  }
+
+  List<Point2D> getExits() {
+    return exits;
+  }
+
+  int getNumWallsKnownToAgents() {
+    return numWallsKnownToAgents;
+  }
+
+  /**
+   * Gives the layout of the room after the wall changes, as if it had been built with them: closed walls are known to
+   * agents, so they are added with the walls added before exit distances were computed, and opened walls are removed
+   * from wherever they were (matched by their endpoints, as in Room.removeWallAtRuntime())
+   * @param changes wall changes to make, in order
+   * @return new layout, with this one's extent, exits, and boundary, and the changed walls
+   */
+  RoomLayout withWallChanges(List<WallChange> changes) {
+    int numKnown = (numWallsKnownToAgents < 0) ? walls.size() : numWallsKnownToAgents;
+    List<LineSegment2D> known = new ArrayList<>(walls.subList(0, numKnown));
+    List<LineSegment2D> unknown = new ArrayList<>(walls.subList(numKnown, walls.size()));
+    for (WallChange change : changes) {
+      if (change.closes) {
+        known.add(change.wall);
+      } else if (!removeWall(known, change.wall) && !removeWall(unknown, change.wall)) {
+        throw new IllegalArgumentException("Tried to remove a wall that isn't in the room: " + change.wall);
+      }
+    }
+
+    RoomLayout layout = new RoomLayout(min, max, spatialResolution, roomType);
+    if (boundaryMin != null) { layout.setBoundary(boundaryMin, boundaryMax); }
+    for (Point2D exit : exits) { layout.addExit(exit); }
+    for (LineSegment2D wall : known) { layout.addWall(wall); }
+    if (numWallsKnownToAgents >= 0) { layout.updateExitDistances(); }
+    for (LineSegment2D wall : unknown) { layout.addWall(wall); }
+    return layout;
+  }
+
+  private static boolean removeWall(List<LineSegment2D> walls, LineSegment2D wall) {
+    for (int i = 0; i < walls.size(); i++) {
+      LineSegment2D other = walls.get(i);
+      if (other.firstPoint().x() == wall.firstPoint().x() && other.firstPoint().y() == wall.firstPoint().y()
+          && other.lastPoint().x() == wall.lastPoint().x() && other.lastPoint().y() == wall.lastPoint().y()) {
+        walls.remove(i);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Builds the room from scratch, i.e., builds its graph, removes edges crossing walls, and computes exit distances
+   * @param distanceCacheBytes approximate memory budget for cached distance fields between cells
+   * @return the built room
+   */
+  Room build(long distanceCacheBytes) {
+    Room room = new Room(min, max, spatialResolution, roomType, distanceCacheBytes);
+    if (boundaryMin != null) { room.setBoundary(boundaryMin, boundaryMax); }
+    for (Point2D exit : exits) { room.addExit(exit); }
+    for (int i = 0; i < walls.size(); i++) {
+      if (i == numWallsKnownToAgents) { room.updateExitDistances(); }
+      room.addWall(walls.get(i));
+    }
+    if (numWallsKnownToAgents == walls.size()) { room.updateExitDistances(); }
+    return room;
+  }
+
+  /**
+   * Creates the room, without building it, for a RoomCache to restore its computed state into
+   * @param distanceCacheBytes approximate memory budget for cached distance fields between cells
+   * @return the room, with the layout's walls and exits, but with all edges of its graph present and no exit distances
+   */
+  Room createUnbuilt(long distanceCacheBytes) {
+    Room room = new Room(min, max, spatialResolution, roomType, distanceCacheBytes);
+    if (boundaryMin != null) { room.setBoundary(boundaryMin, boundaryMax); }
+    for (Point2D exit : exits) { room.addExit(exit); }
+    for (int i = 0; i < walls.size(); i++) {
+      room.addWallWithoutEdges(walls.get(i), numWallsKnownToAgents < 0 || i < numWallsKnownToAgents);
+    }
+    return room;
+  }
+
+  /**
+   * @param formatVersion version of the format in which the built room is stored, so that rooms built by different
+   *                      versions of the code get different hashes
+   * @return SHA-256 hash of the layout (i.e., of everything that determines the built room)
+   */
+  byte[] getHash(int formatVersion) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(formatVersion);
+      out.writeUTF(roomType.name());
+      writePoint(out, min);
+      writePoint(out, max);
+      out.writeDouble(spatialResolution);
+      out.writeBoolean(boundaryMin != null);
+      if (boundaryMin != null) {
+        writePoint(out, boundaryMin);
+        writePoint(out, boundaryMax);
+      }
+      out.writeInt(exits.size());
+      for (Point2D exit : exits) { writePoint(out, exit); }
+      out.writeInt(walls.size());
+      for (LineSegment2D wall : walls) {
+        writePoint(out, wall.firstPoint());
+        writePoint(out, wall.lastPoint());
+      }
+      out.writeInt(numWallsKnownToAgents);
+      out.flush();
+      return MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // Can't happen when writing to memory
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e); // Every Java platform must support SHA-256
+    }
+  }
+
+  private static void writePoint(DataOutputStream out, Point2D point) throws IOException {
+    out.writeDouble(point.x());
+    out.writeDouble(point.y());
+  }
+
+}
@@ -0,0 +1,384 @@
+package swarms;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The parameters of a single condition of the simulation (e.g., room, number of agents, and communication), which is
+ * run for numTrials trials.
+ *
+ * Scenarios are loaded from .properties files (see scenarios/default.properties), in which any parameter may be swept
+ * by giving several values, either as a comma-separated list (e.g., "numAgents = 100, 300, 1000") or as a MATLAB-style
+ * range "start:step:end" (e.g., "spatialResolution = 0.4:0.2:1.0", which includes both ends). A file defines one
+ * scenario for every combination of the values of all its parameters. Parameters missing from a file take the default
+ * values below.
+ */
+class Scenario {
+
+  // Which components of communication the agents use
+  enum Communication {
+    NONE("No communication", false, false),
+    NO_DIRECTION("No direction", false, true),
+    NO_SPEED("No speed", true, false),
+    FULL("Full communication", true, true);
+
+    final String label;       // name of this condition (used for labeling plots and output)
+    final boolean hasOrient;  // if true, the agents will use the orientation component of communication
+    final boolean hasAttract; // if true, the agents will use the attraction component of communication
+
+    Communication(String label, boolean hasOrient, boolean hasAttract) {
+      this.label = label;
+      this.hasOrient = hasOrient;
+      this.hasAttract = hasAttract;
+    }
+  }
+
+  // Default value of every parameter, in the order in which parameters are swept (and listed in labels)
+  private static final Map<String, String> defaults = new LinkedHashMap<>();
+  static {
+    // Basic simulation parameters
+    defaults.put("simDuration", "250.0");
+    defaults.put("numAgents", "300");
+    defaults.put("numTrials", "10");
+    defaults.put("communication", "FULL");
+    defaults.put("asymmetricInitialAgentDistribution", "false");
+    defaults.put("seed", "");
+
+    // Room
+    defaults.put("roomType", "GATES8");
+    defaults.put("spatialResolution", "0.6");
+    defaults.put("leftDoorWidth", "0.1");
+    defaults.put("hasObstacle", "false");
+    defaults.put("distanceCacheBytes", Long.toString(256L * 1024 * 1024));
+    defaults.put("roomCacheDir", "");
+    defaults.put("numLandmarks", "0");
+    defaults.put("quadtreeLeafSize", "0");
+    defaults.put("wallChanges", "");
+
+    // "Fineness" and scheduling of the simulation
+    defaults.put("maxMove", "0.1");
+    defaults.put("frameRate", "1.0");
+    defaults.put("engine", System.getProperty("swarms.engine", SwarmSim.Engine.EVENT_DRIVEN.name()));
+    defaults.put("scheduler", System.getProperty("swarms.scheduler", SwarmSim.SchedulerType.CALENDAR.name()));
+    defaults.put("fixedTimeStep", "0.03");
+    defaults.put("numPartitions", "64");
+    defaults.put("numTiles", "16");
+    defaults.put("neighborSkin", "0.0");
+
+    // Output; an empty path disables the output
+    defaults.put("movieFile", "");
+    defaults.put("plotFile", "");
+    defaults.put("plotBinWidth", "1.0");
+    defaults.put("metricsFile", "");
+    defaults.put("metricsInterval", "10.0");
+    defaults.put("checkpointFile", "");
+    defaults.put("checkpointInterval", "30.0");
+    defaults.put("restoreCheckpoint", "");
+    defaults.put("liveView", "false");
+  }
+
+  // Basic simulation parameters
+  final double simDuration;  // Time (in seconds) to simulate
+  final int numAgents;       // Number of agents in the simulation
+  final int numTrials;       // Number of trials over which to average results and compute error bars
+  final Communication communication;
+  final boolean asymmetricInitialAgentDistribution; // Whether the initial distribution of agents is highly asymmetric
+  final long seed;           // Seed from which the random numbers of each trial are split; random if not given
+
+  // Parameters determining the room; scenarios with the same values of these can share a room
+  final SwarmSim.RoomType roomType;
+  final double spatialResolution; // Resolution at which to model the room as a graph
+  final double leftDoorWidth;     // Size of the left door (of a BASIC room)
+  final boolean hasObstacle;      // If true, the room contains an obstacle, of which the agents are unaware
+  final long distanceCacheBytes;  // Memory budget for cached distance fields between cells
+  final String roomCacheDir;      // Directory in which built rooms are stored between runs (see RoomCache), or null
+  final int numLandmarks;         // If positive, distances between agents come from a LandmarkOracle with this many
+                                  // landmarks, rather than from distance fields
+  final int quadtreeLeafSize;     // If positive, distance fields between cells are computed over the leaves of a
+                                  // QuadtreeGraph with leaves of up to this many cells on a side, rather than over cells
+  final List<WallChange> wallChanges; // Walls closed or opened during each trial, in order of time; not part of the room
+                                      // key, since each trial with wall changes runs in a room of its own
+
+  // Parameters determining "fineness" of the simulation.
+  // These heavily affect runtime, but, beyond a point, shouldn't affect results.
+  // Runtime and memory are O(1/spatialResolution^4) and O(1/maxMove)
+  final double maxMove;       // Maximum distance an agent can move before needing to be updated
+  final double frameRate;     // Rate at which to save frames for plotting
+  final SwarmSim.Engine engine;               // How agent updates are scheduled
+  final SwarmSim.SchedulerType scheduler;     // Data structure with which the EVENT_DRIVEN engine orders agent updates
+  final double fixedTimeStep; // Time step of the FIXED_STEP and TILED engines; at most maxMove / (max agent speed)
+  final int numPartitions;    // Number of agent partitions over which the FIXED_STEP engine parallelizes
+  final int numTiles;         // Number of spatial tiles over which the TILED engine parallelizes (see AgentTiles)
+  final double neighborSkin;  // Margin of the cached neighbor lists of agents (see NeighborLists), or 0.0 to find
+                              // neighbors in the AgentGrid at every update
+
+  // Output of the simulation; null if disabled
+  final String movieFile;     // Output file from which to make MATLAB video (one per trial)
+  final String plotFile;      // Plot of the fraction of agents in the room over time (shared by all communication conditions)
+  final double plotBinWidth;  // Width (in seconds) of the time bins in which the fraction of agents in the room is
+                              // averaged over trials (see TrialAggregator)
+  final String metricsFile;   // Periodic dumps of metrics (one per trial)
+  final double metricsInterval; // Simulation time (in seconds) between progress updates and metrics dumps
+  final String checkpointFile;  // Periodic checkpoints of the state of the simulation (see Checkpoint; one per trial
+                                // and time)
+  final double checkpointInterval; // Simulation time (in seconds) between checkpoints
+  final String restoreCheckpoint;  // Checkpoint from which to continue trials, rather than starting them afresh
+  final boolean liveView;          // If true, the first trial is shown in a window as it runs (see LiveView)
+
+  private final Map<String, String> values;      // Values of all parameters, by name
+  private final Map<String, String> sweptValues; // Values of the parameters swept in this scenario's file
+
+  /**
+   * @param values values of some parameters (by name); other parameters take their default values
+   */
+  Scenario(Map<String, String> values) {
+    this(values, Collections.emptyMap());
+  }
+
+  private Scenario(Map<String, String> values, Map<String, String> sweptValues) {
+    for (String name : values.keySet()) {
+      if (!defaults.containsKey(name)) { throw new IllegalArgumentException("Unknown scenario parameter: " + name); }
+    }
+    Map<String, String> all = new LinkedHashMap<>(defaults);
+    all.putAll(values);
+    this.values = all;
+    this.sweptValues = sweptValues;
+
+    simDuration = parseDouble(all, "simDuration");
+    numAgents = parseInt(all, "numAgents");
+    numTrials = parseInt(all, "numTrials");
+    communication = parseEnum(all, "communication", Communication.class);
+    asymmetricInitialAgentDistribution = parseBoolean(all, "asymmetricInitialAgentDistribution");
+    seed = all.get("seed").isEmpty() ? ThreadLocalRandom.current().nextLong() : parseLong(all, "seed");
+
+    roomType = parseEnum(all, "roomType", SwarmSim.RoomType.class);
+    spatialResolution = parseDouble(all, "spatialResolution");
+    leftDoorWidth = parseDouble(all, "leftDoorWidth");
+    hasObstacle = parseBoolean(all, "hasObstacle");
+    distanceCacheBytes = parseLong(all, "distanceCacheBytes");
+    roomCacheDir = all.get("roomCacheDir").isEmpty() ? null : all.get("roomCacheDir");
+    numLandmarks = parseInt(all, "numLandmarks");
+    quadtreeLeafSize = parseInt(all, "quadtreeLeafSize");
+    wallChanges = WallChange.parse(all.get("wallChanges"));
+
+    maxMove = parseDouble(all, "maxMove");
+    frameRate = parseDouble(all, "frameRate");
+    engine = parseEnum(all, "engine", SwarmSim.Engine.class);
+    scheduler = parseEnum(all, "scheduler", SwarmSim.SchedulerType.class);
+    fixedTimeStep = parseDouble(all, "fixedTimeStep");
+    numPartitions = parseInt(all, "numPartitions");
+    numTiles = parseInt(all, "numTiles");
+    neighborSkin = parseDouble(all, "neighborSkin");
+
+    movieFile = all.get("movieFile").isEmpty() ? null : all.get("movieFile");
+    plotFile = all.get("plotFile").isEmpty() ? null : all.get("plotFile");
+    plotBinWidth = parseDouble(all, "plotBinWidth");
+    metricsFile = all.get("metricsFile").isEmpty() ? null : all.get("metricsFile");
+    metricsInterval = parseDouble(all, "metricsInterval");
+    checkpointFile = all.get("checkpointFile").isEmpty() ? null : all.get("checkpointFile");
+    checkpointInterval = parseDouble(all, "checkpointInterval");
+    restoreCheckpoint = all.get("restoreCheckpoint").isEmpty() ? null : all.get("restoreCheckpoint");
+    liveView = parseBoolean(all, "liveView");
+
+    if (numAgents < 1 || numTrials < 1 || numPartitions < 1 || numTiles < 1) {
+      throw new IllegalArgumentException("numAgents, numTrials, numPartitions, and numTiles must be positive");
+    }
+    if (numLandmarks < 0 || neighborSkin < 0.0) {
+      throw new IllegalArgumentException("numLandmarks and neighborSkin must not be negative");
+    }
+    if (quadtreeLeafSize != 0 && (quadtreeLeafSize < 2 || Integer.bitCount(quadtreeLeafSize) != 1)) {
+      throw new IllegalArgumentException("quadtreeLeafSize must be 0 or a power of two, of at least 2: " + quadtreeLeafSize);
+    }
+    if (numLandmarks > 0 && quadtreeLeafSize > 0) {
+      throw new IllegalArgumentException("numLandmarks and quadtreeLeafSize can't both be used");
+    }
+    if (!(simDuration > 0.0 && spatialResolution > 0.0 && maxMove > 0.0 && frameRate > 0.0 && fixedTimeStep > 0.0
+          && plotBinWidth > 0.0 && metricsInterval > 0.0 && checkpointInterval > 0.0)) {
+      throw new IllegalArgumentException("Durations, rates, and resolutions must be positive");
+    }
+  }
+
+  /**
+   * Loads all scenarios defined by a file, expanding any sweeps
+   * @param filePath .properties file defining the scenarios
+   * @return one scenario for every combination of parameter values, in the order in which parameters are listed in
+   * Scenario (varying the last parameter fastest)
+   */
+  static List<Scenario> load(String filePath) throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(Paths.get(filePath), StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    }
+    Map<String, String> values = new LinkedHashMap<>();
+    for (String name : properties.stringPropertyNames()) { values.put(name, properties.getProperty(name)); }
+    return expand(values);
+  }
+
+  /**
+   * Expands sweeps of parameter values into individual scenarios; parameters not given take their default values
+   * @param values value, list of values, or range of values of some parameters (by name)
+   * @return one scenario for every combination of parameter values
+   */
+  static List<Scenario> expand(Map<String, String> values) {
+    for (String name : values.keySet()) {
+      if (!defaults.containsKey(name)) { throw new IllegalArgumentException("Unknown scenario parameter: " + name); }
+    }
+
+    // Combinations of values, built up one parameter at a time
+    List<Map<String, String>> combinations = new ArrayList<>();
+    combinations.add(new LinkedHashMap<>());
+    List<String> sweptNames = new ArrayList<>();
+    for (String name : defaults.keySet()) {
+      List<String> parameterValues = parseValues(values.getOrDefault(name, defaults.get(name)));
+      if (parameterValues.size() > 1) { sweptNames.add(name); }
+      List<Map<String, String>> extended = new ArrayList<>();
+      for (Map<String, String> combination : combinations) {
+        for (String value : parameterValues) {
+          Map<String, String> newCombination = new LinkedHashMap<>(combination);
+          newCombination.put(name, value);
+          extended.add(newCombination);
+        }
+      }
+      combinations = extended;
+    }
+
+    List<Scenario> scenarios = new ArrayList<>(combinations.size());
+    for (Map<String, String> combination : combinations) {
+      Map<String, String> sweptValues = new LinkedHashMap<>();
+      for (String name : sweptNames) { sweptValues.put(name, combination.get(name)); }
+      scenarios.add(new Scenario(combination, sweptValues));
+    }
+    return scenarios;
+  }
+
+  /**
+   * Splits a comma-separated list of values, expanding any ranges "start:step:end" (or "start:end", with step 1)
+   */
+  private static List<String> parseValues(String text) {
+    List<String> values = new ArrayList<>();
+    if (text.trim().isEmpty()) { // e.g., a disabled output
+      values.add("");
+      return values;
+    }
+    for (String item : text.split(",")) {
+      String value = item.trim();
+      String[] parts = value.split(":");
+      if ((parts.length == 2 || parts.length == 3) && isNumber(parts)) {
+        // Decimal arithmetic, so that (e.g.) 0.1:0.1:0.3 gives exactly 0.1, 0.2, and 0.3
+        BigDecimal start = new BigDecimal(parts[0].trim());
+        BigDecimal step = (parts.length == 3) ? new BigDecimal(parts[1].trim()) : BigDecimal.ONE;
+        BigDecimal end = new BigDecimal(parts[parts.length - 1].trim());
+        if (step.signum() <= 0) { throw new IllegalArgumentException("Range step must be positive: " + value); }
+        if (start.compareTo(end) > 0) { throw new IllegalArgumentException("Empty range: " + value); }
+        for (BigDecimal x = start; x.compareTo(end) <= 0; x = x.add(step)) { values.add(x.toPlainString()); }
+      } else {
+        values.add(value);
+      }
+    }
+    return values;
+  }
+
+  private static boolean isNumber(String[] parts) {
+    for (String part : parts) {
+      try {
+        new BigDecimal(part.trim());
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return this scenario, but with the given seed (e.g., the random seed drawn for it by another process)
+   */
+  Scenario withSeed(long seed) {
+    if (seed == this.seed) { return this; }
+    Map<String, String> newValues = new LinkedHashMap<>(values);
+    newValues.put("seed", Long.toString(seed));
+    return new Scenario(newValues, sweptValues);
+  }
+
+  /**
+   * @return name of this condition (used for labeling plots and output): the communication condition, followed by the
+   * values of any other swept parameters
+   */
+  String getLabel() {
+    String sweep = getSweepDescription();
+    return sweep.isEmpty() ? communication.label : communication.label + " (" + sweep + ")";
+  }
+
+  /**
+   * @return values of the swept parameters other than communication (e.g., "numAgents=300, spatialResolution=0.6");
+   * the communication conditions of a scenario with the same description share a plot
+   */
+  String getSweepDescription() {
+    StringBuilder description = new StringBuilder();
+    for (Map.Entry<String, String> swept : sweptValues.entrySet()) {
+      if (swept.getKey().equals("communication")) { continue; }
+      if (description.length() > 0) { description.append(", "); }
+      description.append(swept.getKey()).append('=').append(swept.getValue());
+    }
+    return description.toString();
+  }
+
+  /**
+   * @return a key identifying the room in which this scenario runs; scenarios with the same key can share a room
+   */
+  String getRoomKey() {
+    return roomType + "/" + spatialResolution + "/" + leftDoorWidth + "/" + hasObstacle + "/" + distanceCacheBytes + "/"
+        + roomCacheDir + "/" + numLandmarks + "/" + quadtreeLeafSize;
+  }
+
+  private static double parseDouble(Map<String, String> values, String name) {
+    try {
+      return Double.parseDouble(values.get(name).trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value of " + name + ": " + values.get(name), e);
+    }
+  }
+
+  private static int parseInt(Map<String, String> values, String name) {
+    try {
+      return Integer.parseInt(values.get(name).trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value of " + name + ": " + values.get(name), e);
+    }
+  }
+
+  private static long parseLong(Map<String, String> values, String name) {
+    try {
+      return Long.parseLong(values.get(name).trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value of " + name + ": " + values.get(name), e);
+    }
+  }
+
+  private static boolean parseBoolean(Map<String, String> values, String name) {
+    String value = values.get(name).trim();
+    if (!value.equals("true") && !value.equals("false")) {
+      throw new IllegalArgumentException("Invalid value of " + name + ": " + value);
+    }
+    return Boolean.parseBoolean(value);
+  }
+
+  private static <E extends Enum<E>> E parseEnum(Map<String, String> values, String name, Class<E> type) {
+    try {
+      return Enum.valueOf(type, values.get(name).trim());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid value of " + name + ": " + values.get(name), e);
+    }
+  }
+
+}
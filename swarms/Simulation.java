@@ -0,0 +1,749 @@
+package swarms;
+
+import math.geom2d.Point2D;
+import org.jfree.data.xy.XYSeries;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * A single self-contained trial of the simulation. All mutable simulation state lives in the instance, so trials can run
+ * concurrently on different threads; the only state shared between trials is the (read-only, once built) Room. A trial
+ * with wall changes (see Scenario.wallChanges) changes its room between updates, so it must have a room of its own.
+ */
+class Simulation {
+
+  private final Room room;
+  private final Scenario scenario;  // Parameters of the simulation
+  private final int numAgents;      // Number of agents in the simulation
+  private final String label;       // name of this condition (only used for labeling plots and output)
+  private final int trial;          // index of this trial within its condition
+  private final long seed;          // seed of the random number generators of this trial's agents
+  private final boolean hasOrient;  // if true, the agents will use the orientation component of communication
+  private final boolean hasAttract; // if true, the agents will use the attraction component of communication
+  private final SwarmSim.Engine engine; // how agent updates are scheduled
+  private final double interactionRange; // distance beyond which agents neither push nor orient each other
+  private final TrialAggregator exitStatistics; // fraction of agents in the room over time, binned (see TrialAggregator)
+
+  // Simulation state variables
+  private AgentStore agentStore; // State of all agents
+  private Agent[] agents;        // Views of the agents in agentStore, sorted by ID
+  private AgentScheduler scheduler; // Agents in the room, ordered by next update time (in the event-driven engine)
+  private AgentGrid agentGrid;   // Spatial index of agent positions, for finding nearby agents
+  private NeighborLists neighborLists; // Cached nearby agents of each agent, or null to query agentGrid at every update
+  private AgentTiles tiles;      // Agents of each tile of the room (in the TILED engine)
+  private LiveView liveView;     // Window showing this trial as it runs, or null
+  private int[] neighborBuffer;  // Scratch space for neighbor queries on agentGrid (in the event-driven engine)
+  private final double[] scratch = new double[2]; // Scratch space for agent updates and interactions (in the event-driven engine)
+  private int numWallChangesMade = 0; // Number of the scenario's wall changes made to the room so far
+
+  // Metrics of this trial; metrics of the room are kept (across trials) by the room itself
+  private final MetricsRegistry metrics = new MetricsRegistry();
+  private final LongAdder numEvents = metrics.counter("simulation.events"); // agent updates
+  private final LongAdder numPushTests = metrics.counter("interactions.push"); // pairs tested for collisions
+  private final LongAdder numOrients = metrics.counter("interactions.orient");
+  private final LongAdder numSpeedAttracts = metrics.counter("interactions.speedAttract");
+  private final LongAdder numNeighborListRebuilds = metrics.counter("neighborLists.rebuilds");
+
+  /**
+   * @param room fully built room in which to run the simulation (as given by the scenario)
+   * @param scenario parameters of the simulation
+   * @param trial index of this trial within its condition, from which (with the scenario's seed) the trial's random
+   *              numbers are derived
+   */
+  Simulation(Room room, Scenario scenario, int trial) {
+    this.room = room;
+    this.scenario = scenario;
+    this.numAgents = scenario.numAgents;
+    this.label = scenario.getLabel();
+    this.trial = trial;
+    this.seed = SplitMix64.split(scenario.seed, trial);
+    this.hasOrient = scenario.communication.hasOrient;
+    this.hasAttract = scenario.communication.hasAttract;
+    this.engine = scenario.engine;
+    this.interactionRange = hasOrient ? Math.max(Interactions.orientRange, 2.0 * AgentStore.maxRadius)
+                                      : 2.0 * AgentStore.maxRadius;
+    this.exitStatistics = new TrialAggregator(scenario.plotBinWidth);
+  }
+
+  /**
+   * Runs the simulation and returns results detailing the fraction of agents in the room over time
+   * @param movieFilePath file to which to write the .mat movie data, or null to not make a movie
+   * @param metricsFilePath .csv file to which to periodically dump metrics (the final metrics are also written to a
+   *                        .json file of the same name), or null to not save metrics
+   * @param checkpointFilePath file path to which to save checkpoints every checkpointInterval seconds (with the time of
+   *                           each inserted before its extension), or null to not save checkpoints
+   * @return statistics of this one trial, in which each bin holds the fraction of agents remaining in the room at its
+   * end, up to simDuration, and each quantile the time by which that fraction of agents had left (if they did); the
+   * statistics of several trials can be merged (see TrialAggregator)
+   */
+  TrialAggregator run(String movieFilePath, String metricsFilePath, String checkpointFilePath) {
+
+    long startTime = System.nanoTime();
+    String prefix = "[" + label + ", trial " + trial + "] ";
+    metrics.gauge("simulation.eventsPerSecond", () -> numEvents.sum() / ((System.nanoTime() - startTime) / 1e9));
+
+    Checkpoint start;
+    if (scenario.restoreCheckpoint != null) {
+      System.out.println(prefix + "Restoring agents from " + scenario.restoreCheckpoint + "... ");
+      start = restoreAgents(scenario.restoreCheckpoint);
+    } else {
+      System.out.println(prefix + "Constructing agents... ");
+      initializeAgents();
+      start = new Checkpoint(0.0, 0, scenario.metricsInterval, new XYSeries(label)); // legend label of item to plot
+    }
+    makeWallChanges(start.time, prefix); // Changes made before the checkpoint, if restoring one
+
+    MatPlotter matPlotter = null;
+    if (movieFilePath != null) {
+      matPlotter = new MatPlotter(scenario.frameRate, start.time, agentStore, room);
+    }
+    if (scenario.liveView && trial == 0) {
+      liveView = LiveView.open(label + ", trial " + trial, start.time, room, agentStore);
+    }
+    MetricsLog metricsLog = null;
+    if (metricsFilePath != null) {
+      metricsLog = new MetricsLog(metricsFilePath, label, trial, metrics);
+    }
+
+    XYSeries fractionInRoomOverTime = start.fractionInRoomOverTime;
+    for (int i = 0; i < fractionInRoomOverTime.getItemCount(); i++) { // Agents that left before the checkpoint
+      exitStatistics.recordExit(fractionInRoomOverTime.getX(i).doubleValue(),
+                                fractionInRoomOverTime.getY(i).doubleValue());
+    }
+
+    System.out.println(prefix + "Starting simulation (" + engine + " engine)... ");
+    double t;
+    if (engine == SwarmSim.Engine.FIXED_STEP) {
+      t = runFixedStep(start, matPlotter, metricsLog, checkpointFilePath, prefix, startTime);
+    } else if (engine == SwarmSim.Engine.TILED) {
+      t = runTiled(start, matPlotter, metricsLog, checkpointFilePath, prefix, startTime);
+    } else {
+      t = runEventDriven(start, matPlotter, metricsLog, checkpointFilePath, prefix, startTime);
+    }
+
+    System.out.println(prefix + "Final Simulation time: " + t + ", with " + (int) getNumInRoom() + " agents remaining.");
+
+    long endTime = System.nanoTime();
+    System.out.println(prefix + "Took " + ((endTime - startTime)/(Math.pow(10, 9))) + " seconds...");
+
+//    // Add a final point to the plot at the last frame
+//    fractionInRoomOverTime.add(t, getFracInRoom());
+
+    // Export data necessary for movies as .mat file
+    if (matPlotter != null) {
+      matPlotter.writeToMAT(movieFilePath);
+    }
+    if (metricsLog != null) {
+      metricsLog.close(t);
+    }
+    if (liveView != null) {
+      liveView.finish(t, agentStore);
+    }
+
+    exitStatistics.finishTrial(scenario.simDuration);
+    return exitStatistics;
+
+  }
+
+  /**
+   * Adds the current values of the trial's metrics to values. These don't include the metrics of its room, which other
+   * trials may be using at the same time (see MetricsLog).
+   * @param values map to which to add the metrics, by name
+   */
+  void snapshotMetrics(Map<String, Number> values) {
+    metrics.snapshot(values);
+  }
+
+  /**
+   * Runs the event-driven simulation, in which each agent is updated (one at a time) whenever it has moved up to
+   * maxMove since its last update
+   * @param start progress of the trial so far, which is continued
+   * @return final simulation time
+   */
+  private double runEventDriven(Checkpoint start, MatPlotter matPlotter, MetricsLog metricsLog,
+                                String checkpointFilePath, String prefix, long startTime) {
+
+    double t = start.time;
+    double nextProgressTime = start.nextProgressTime;
+    XYSeries fractionInRoomOverTime = start.fractionInRoomOverTime;
+    long nextCheckpoint = getNextCheckpoint(t);
+
+    // Terminate the simulation when there are no agents left in the room or when the simulation duration has ended;
+    // whichever comes first
+    while (t < scenario.simDuration && !scheduler.isEmpty()) {
+
+      // Get next agent to update from the scheduler
+      int id = scheduler.poll();
+      t = agentStore.nextUpdateTime[id];
+      numEvents.increment();
+      makeWallChanges(t, prefix);
+
+      if (t >= nextProgressTime) { // Print an update and dump metrics every metricsInterval seconds
+        recordProgress(prefix, t, startTime, metricsLog);
+        nextProgressTime += scenario.metricsInterval;
+      }
+
+      // Calculate forces, accelerate, move the agent, and update its priority
+      agentStore.update(id, t, room, scratch);
+
+      if (agentIsInRoom(id)) {
+
+        // Move the agent to its new cell of the spatial index (and update its neighbors)
+        updateIndex(id);
+
+        // Add new social forces to the agent
+        updateSocialForces(id);
+
+        // Reinsert the agent back into the scheduler
+        scheduler.add(id);
+
+      } else { // agent left the room;
+        agentStore.exit(id);
+        removeFromIndex(id);
+        recordExit(fractionInRoomOverTime, t, getFracInRoom());
+      }
+
+      if (matPlotter != null && t > matPlotter.getNextFrameTime()) {
+        matPlotter.saveFrame();
+      }
+      if (liveView != null) { liveView.offer(t, agentStore); }
+
+      if (checkpointFilePath != null && t >= getCheckpointTime(nextCheckpoint)) {
+        saveCheckpoint(checkpointFilePath, nextCheckpoint, new Checkpoint(t, 0, nextProgressTime, fractionInRoomOverTime),
+                       prefix);
+        nextCheckpoint = getNextCheckpoint(t);
+      }
+
+    }
+
+    return t;
+
+  }
+
+  /**
+   * Runs the fixed-timestep simulation, in which all agents are updated in lock-step every fixedTimeStep seconds.
+   * Each step has two parallel phases, each split over a fixed set of agent partitions run with fork-join:
+   *  1) every agent in the room accelerates and moves
+   *  2) every agent in the room computes its social forces, into its partition's own force buffers
+   * The force buffers are then summed in partition order, so results don't depend on the number of threads. Between
+   * the phases, exits, the agent grid, and neighbor lists (which aren't thread-safe) are updated serially.
+   * @param start progress of the trial so far, which is continued
+   * @return final simulation time
+   */
+  private double runFixedStep(Checkpoint start, MatPlotter matPlotter, MetricsLog metricsLog,
+                              String checkpointFilePath, String prefix, long startTime) {
+
+    int numPartitions = Math.max(1, Math.min(scenario.numPartitions, numAgents));
+    double[][] forceX = new double[numPartitions][numAgents], forceY = new double[numPartitions][numAgents];
+    int[][] neighborBuffers = new int[numPartitions][numAgents];
+    double[][] scratches = new double[numPartitions][2];
+
+    double t = start.time;
+    double nextProgressTime = start.nextProgressTime;
+    XYSeries fractionInRoomOverTime = start.fractionInRoomOverTime;
+    long nextCheckpoint = getNextCheckpoint(t);
+    int numInRoom = 0;
+    for (int id = 0; id < numAgents; id++) { numInRoom += agentStore.exited[id] ? 0 : 1; }
+    for (long step = start.step + 1; t < scenario.simDuration && numInRoom > 0; step++) {
+
+      t = step * scenario.fixedTimeStep; // multiply, rather than accumulate, to avoid round-off drift
+      final double time = t;
+      makeWallChanges(t, prefix); // Serially, before any agent moves in this step
+
+      if (t >= nextProgressTime) { // Print an update and dump metrics every metricsInterval seconds
+        recordProgress(prefix, t, startTime, metricsLog);
+        nextProgressTime += scenario.metricsInterval;
+      }
+      numEvents.add(numInRoom);
+
+      // Phase 1: accelerate and move every agent in the room
+      IntStream.range(0, numPartitions).parallel().forEach(partition -> {
+        for (int id = getPartitionStart(partition, numPartitions); id < getPartitionStart(partition + 1, numPartitions); id++) {
+          if (!agentStore.exited[id]) { agentStore.update(id, time, room, scratches[partition]); }
+        }
+      });
+
+      // Remove agents that left the room, and move the rest to their new cells of the spatial index
+      for (int id = 0; id < numAgents; id++) {
+        if (agentStore.exited[id]) { continue; }
+        if (agentIsInRoom(id)) {
+          updateIndex(id);
+        } else { // agent left the room
+          agentStore.exit(id);
+          removeFromIndex(id);
+          numInRoom--;
+          recordExit(fractionInRoomOverTime, t, getFracInRoom());
+        }
+      }
+
+      // Phase 2: add new social forces to every agent in the room, then sum the partitions' forces in a fixed order
+      IntStream.range(0, numPartitions).parallel().forEach(partition -> {
+        for (int id = getPartitionStart(partition, numPartitions); id < getPartitionStart(partition + 1, numPartitions); id++) {
+          if (!agentStore.exited[id]) {
+            updateSocialForces(id, neighborBuffers[partition], forceX[partition], forceY[partition], scratches[partition]);
+          }
+        }
+      });
+      IntStream.range(0, numPartitions).parallel().forEach(partition -> {
+        for (int id = getPartitionStart(partition, numPartitions); id < getPartitionStart(partition + 1, numPartitions); id++) {
+          for (int source = 0; source < numPartitions; source++) {
+            agentStore.socialForceX[id] += forceX[source][id];
+            agentStore.socialForceY[id] += forceY[source][id];
+            forceX[source][id] = 0.0;
+            forceY[source][id] = 0.0;
+          }
+        }
+      });
+
+      if (matPlotter != null && t > matPlotter.getNextFrameTime()) {
+        matPlotter.saveFrame();
+      }
+      if (liveView != null) { liveView.offer(t, agentStore); }
+
+      if (checkpointFilePath != null && t >= getCheckpointTime(nextCheckpoint)) {
+        saveCheckpoint(checkpointFilePath, nextCheckpoint,
+                       new Checkpoint(t, step, nextProgressTime, fractionInRoomOverTime), prefix);
+        nextCheckpoint = getNextCheckpoint(t);
+      }
+
+    }
+
+    return t;
+
+  }
+
+  /**
+   * Runs the tiled simulation, in which all agents are updated in lock-step every fixedTimeStep seconds, as in the
+   * FIXED_STEP engine, but agents are partitioned by position into tiles of the room (see AgentTiles), rather than by
+   * ID. Each step has three parallel phases, each run with fork-join over the tiles:
+   *  1) every agent in the tile accelerates and moves, and exits if it has left the room
+   *  2) agents that moved into other tiles migrate to them, then tiles collect the ghosts in their halos
+   *  3) every agent in the tile computes the social forces on itself, from the tile's agents and ghosts
+   * Since each tile only writes the state of its own agents, there are no per-partition force buffers to sum, and
+   * nothing but counting exits is serial. Each agent of a pushing pair computes the push for itself (see
+   * Interactions.pushBothWays()), so agents get the same forces as in FIXED_STEP, though summed in a different order.
+   * Results depend on the number of tiles, but not on the number of threads.
+   *
+   * The room isn't split up: distances and directions between agents come from the room (which is read-only during the
+   * phases; wall changes are made between steps), and speed attraction acts at any distance, so it still reads every
+   * agent, beyond the halo.
+   * @param start progress of the trial so far, which is continued
+   * @return final simulation time
+   */
+  private double runTiled(Checkpoint start, MatPlotter matPlotter, MetricsLog metricsLog,
+                          String checkpointFilePath, String prefix, long startTime) {
+
+    tiles = new AgentTiles(room.getBoundaryMin(), room.getBoundaryMax(), scenario.numTiles, interactionRange,
+                           Math.max(Interactions.orientRange, 2.0 * AgentStore.maxRadius));
+    tiles.assign(agentStore);
+    System.out.println(prefix + "Partitioned the room into " + tiles.getLayout() + " tiles");
+    int numTiles = tiles.getNumTiles();
+    int[] numExits = new int[numTiles];
+    double[][] scratches = new double[numTiles][2];
+
+    double t = start.time;
+    double nextProgressTime = start.nextProgressTime;
+    XYSeries fractionInRoomOverTime = start.fractionInRoomOverTime;
+    long nextCheckpoint = getNextCheckpoint(t);
+    int numInRoom = 0;
+    for (int id = 0; id < numAgents; id++) { numInRoom += agentStore.exited[id] ? 0 : 1; }
+    for (long step = start.step + 1; t < scenario.simDuration && numInRoom > 0; step++) {
+
+      t = step * scenario.fixedTimeStep; // multiply, rather than accumulate, to avoid round-off drift
+      final double time = t;
+      makeWallChanges(t, prefix); // Serially, before any agent moves in this step
+
+      if (t >= nextProgressTime) { // Print an update and dump metrics every metricsInterval seconds
+        recordProgress(prefix, t, startTime, metricsLog);
+        nextProgressTime += scenario.metricsInterval;
+      }
+      numEvents.add(numInRoom);
+
+      // Phase 1: accelerate and move every agent in the room, and remove those that left it
+      IntStream.range(0, numTiles).parallel().forEach(tile -> {
+        int[] owned = tiles.getOwned(tile);
+        numExits[tile] = 0;
+        for (int i = 0; i < tiles.getNumOwned(tile); i++) {
+          int id = owned[i];
+          agentStore.update(id, time, room, scratches[tile]);
+          if (!agentIsInRoom(id)) {
+            agentStore.exit(id);
+            numExits[tile]++;
+          }
+        }
+      });
+      for (int tile = 0; tile < numTiles; tile++) { numInRoom -= numExits[tile]; }
+      // As in FIXED_STEP, each agent that left adds a point, at the fraction of agents in the room after the step
+      for (int tile = 0; tile < numTiles; tile++) {
+        for (int i = 0; i < numExits[tile]; i++) {
+          recordExit(fractionInRoomOverTime, t, (double) numInRoom / numAgents);
+        }
+      }
+
+      // Phase 2: migrate agents between tiles, then exchange the tiles' halos
+      IntStream.range(0, numTiles).parallel().forEach(tile -> tiles.emigrate(tile, agentStore));
+      IntStream.range(0, numTiles).parallel().forEach(tile -> tiles.immigrate(tile, agentStore));
+      IntStream.range(0, numTiles).parallel().forEach(tile -> tiles.exchangeHalo(tile, agentStore));
+
+      // Phase 3: add new social forces to every agent in the room
+      IntStream.range(0, numTiles).parallel().forEach(tile -> {
+        int[] owned = tiles.getOwned(tile);
+        for (int i = 0; i < tiles.getNumOwned(tile); i++) { updateSocialForcesInTile(tile, owned[i], scratches[tile]); }
+      });
+
+      if (matPlotter != null && t > matPlotter.getNextFrameTime()) {
+        matPlotter.saveFrame();
+      }
+      if (liveView != null) { liveView.offer(t, agentStore); }
+
+      if (checkpointFilePath != null && t >= getCheckpointTime(nextCheckpoint)) {
+        saveCheckpoint(checkpointFilePath, nextCheckpoint,
+                       new Checkpoint(t, step, nextProgressTime, fractionInRoomOverTime), prefix);
+        nextCheckpoint = getNextCheckpoint(t);
+      }
+
+    }
+
+    return t;
+
+  }
+
+  /**
+   * Makes the scenario's wall changes that are due by the given time and haven't been made yet. Only called between
+   * updates, so no agent is using the room at the time.
+   */
+  private void makeWallChanges(double t, String prefix) {
+    List<WallChange> wallChanges = scenario.wallChanges;
+    while (numWallChangesMade < wallChanges.size() && wallChanges.get(numWallChangesMade).time <= t) {
+      WallChange change = wallChanges.get(numWallChangesMade++);
+      System.out.println(prefix + "Making wall change \"" + change + "\" at sim time " + t);
+      change.applyTo(room);
+      assert matchesRebuiltRoom();
+      if (liveView != null) { liveView.roomChanged(room); }
+    }
+  }
+
+  /**
+   * Checks (when assertions are enabled) that the room, as changed so far, matches a room rebuilt from scratch with the
+   * same walls
+   * @throws AssertionError describing the first difference, if they don't match
+   */
+  private boolean matchesRebuiltRoom() {
+    Room rebuilt = BatchRunner.getLayout(scenario).withWallChanges(scenario.wallChanges.subList(0, numWallChangesMade))
+                              .build(0L);
+    String difference = room.findDifference(rebuilt);
+    if (difference != null) {
+      throw new AssertionError("Room changed at runtime differs from the room rebuilt with its walls: " + difference);
+    }
+    return true;
+  }
+
+  /**
+   * Records that an agent left the room, in both the trial's results so far (which checkpoints save) and its statistics
+   * @param fraction fraction of agents in the room, once the agent left
+   */
+  private void recordExit(XYSeries fractionInRoomOverTime, double t, double fraction) {
+    fractionInRoomOverTime.add(t, fraction);
+    exitStatistics.recordExit(t, fraction);
+  }
+
+  /**
+   * @return first agent ID in the given partition of the agents; partition numPartitions starts after the last agent
+   */
+  private int getPartitionStart(int partition, int numPartitions) {
+    return (int) ((long) partition * numAgents / numPartitions);
+  }
+
+  /**
+   * @return index of the first checkpoint due after simulation time t; checkpoint k is due at time
+   * k * checkpointInterval
+   */
+  private long getNextCheckpoint(double t) {
+    return (long) Math.floor(t / scenario.checkpointInterval) + 1;
+  }
+
+  private double getCheckpointTime(long checkpoint) {
+    return checkpoint * scenario.checkpointInterval;
+  }
+
+  /**
+   * Saves a checkpoint of the trial, along with the state of its agents, to the checkpoint file path with the time at
+   * which the checkpoint was due (e.g., "_t30.0") inserted before its extension. Failures are reported, but otherwise
+   * ignored, since the trial can still go on.
+   */
+  private void saveCheckpoint(String checkpointFilePath, long checkpoint, Checkpoint progress, String prefix) {
+    // Decimal arithmetic, so that checkpoints every 0.1 seconds are named "t0.3", rather than "t0.30000000000000004"
+    String time = BigDecimal.valueOf(scenario.checkpointInterval).multiply(BigDecimal.valueOf(checkpoint)).toPlainString();
+    String filePath = BatchRunner.getFilePath(checkpointFilePath, "t" + time);
+    try {
+      progress.write(filePath, scenario, agentStore, agentGrid, neighborLists);
+      System.out.println(prefix + "Saved checkpoint at sim time " + progress.time + " to " + filePath);
+    } catch (IOException e) {
+      System.err.println(prefix + "Couldn't save checkpoint to " + filePath);
+      e.printStackTrace();
+    }
+  }
+
+  private void recordProgress(String prefix, double t, long startTime, MetricsLog metricsLog) {
+    double currentRealTimeInSeconds = (System.nanoTime() - startTime)/(Math.pow(10, 9));
+    System.out.println(prefix + "Sim time is " + t + "." +
+        " Processed " + numEvents + " events." +
+        " Took " + currentRealTimeInSeconds + " real seconds. " +
+        (int) getNumInRoom() + " agents remain.");
+    if (metricsLog != null) {
+      metricsLog.record(t);
+    }
+  }
+
+  /**
+   * Computes the fraction of agents remaining in the room; this is a minor convenience over getNumInRoom()
+   * @return value of getNumInRoom() / numAgents
+   */
+  private double getFracInRoom() {
+    return getNumInRoom() / numAgents;
+  }
+
+  /**
+   * Counts the number of agents remaining in the room
+   * @return the number of agents remaining in the room, according to agentIsInRoom();
+   * the value is always an integer (up to round-off), despite the double type
+   */
+  private double getNumInRoom() {
+    double fracInRoom = 0.0;
+    for (int i = 0; i < numAgents; i++) {
+      fracInRoom += agentIsInRoom(i) ? 1.0 : 0.0;
+    }
+    return fracInRoom;
+  }
+
+  /**
+   * Initialize numAgents Agents, stored in an AgentStore (with views of them in an array) and scheduled for updates
+   */
+  void initializeAgents() {
+
+    createAgents();
+
+    // Initialize the agents
+    Point2D agentMin = SwarmSim.getAgentMin(scenario.roomType);
+    for (int i = 0; i < numAgents; i++) {
+      if (scenario.asymmetricInitialAgentDistribution && i > numAgents/4) {
+        Point2D shiftedAgentMax = new Point2D(SwarmSim.agentMax.x()/4, SwarmSim.agentMax.y());
+        agentStore.initialize(i, agentMin, shiftedAgentMax, scenario.roomType);
+      } else {
+        agentStore.initialize(i, agentMin, SwarmSim.agentMax, scenario.roomType);
+      }
+
+      updateIndex(i);
+
+    }
+
+    // Schedule all the agents in order of when they need to be next updated
+    for (int i = 0; i < numAgents; i++) {
+      scheduler.add(i);
+    }
+
+  }
+
+  /**
+   * Restores the agents from a checkpoint saved by an earlier trial of a scenario with the same parameters, and
+   * schedules those still in the room for updates. Since schedulers poll agents in order of update time and ID, the
+   * restored schedule polls agents in the same order as the original one would have.
+   * @param filePath checkpoint file
+   * @return progress of the earlier trial at the checkpoint
+   */
+  private Checkpoint restoreAgents(String filePath) {
+
+    createAgents();
+    Checkpoint checkpoint;
+    try {
+      checkpoint = Checkpoint.read(filePath, scenario, agentStore, agentGrid, neighborLists);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Couldn't restore checkpoint " + filePath, e);
+    }
+
+    for (int i = 0; i < numAgents; i++) {
+      if (!agentStore.exited[i]) { scheduler.add(i); }
+    }
+    return checkpoint;
+
+  }
+
+  /**
+   * Allocates the (uninitialized) agents, their spatial index and (empty) neighbor lists, and an empty scheduler
+   */
+  private void createAgents() {
+
+    agentStore = new AgentStore(numAgents, seed, scenario.frameRate, scenario.maxMove, metrics);
+    agents = new Agent[numAgents];
+    for (int i = 0; i < numAgents; i++) {
+      agents[i] = new Agent(agentStore, i);
+    }
+
+    // Index agents by position; cells are sized so that all interacting agents lie in adjacent cells
+    agentGrid = new AgentGrid(room.getBoundaryMin(), room.getBoundaryMax(),
+                              Math.max(Interactions.orientRange, 2.0 * AgentStore.maxRadius), numAgents);
+    neighborBuffer = new int[numAgents];
+    neighborLists = (scenario.neighborSkin > 0.0)
+        ? new NeighborLists(room.getBoundaryMin(), room.getBoundaryMax(), numAgents, interactionRange, scenario.neighborSkin)
+        : null;
+
+    // Update times are never more than frameRate ahead of the current time
+    if (scenario.scheduler == SwarmSim.SchedulerType.HEAP) {
+      scheduler = new HeapScheduler(agents);
+    } else {
+      scheduler = new CalendarScheduler(agentStore, scenario.frameRate);
+    }
+
+  }
+
+  /**
+   * Returns whether the agent is still in the room (or has left)
+   * @param agent ID of the agent whose position to check
+   * @return true if the agent is still in the room, and false if it has left
+   */
+  private boolean agentIsInRoom(int agent) {
+
+    if (agentStore.exited[agent]) {
+      return false;
+    }
+
+    double x = agentStore.posX[agent], y = agentStore.posY[agent];
+    double tolerance = (scenario.roomType == SwarmSim.RoomType.GATES8) ? Math.max(scenario.spatialResolution, 2.2) : 1.0;
+
+    // Check outer room boundary
+    return room.isInsideBoundary(x, y) && !room.atExit(x, y, tolerance);
+
+  }
+
+  /**
+   * Moves the agent to its new cell of agentGrid and, if it has moved far enough, rebuilds its neighbor list; this
+   * should be called whenever an agent in the room moves
+   */
+  private void updateIndex(int agent) {
+    agentGrid.update(agent, agentStore.posX[agent], agentStore.posY[agent]);
+    if (neighborLists != null && neighborLists.update(agent, agentStore.posX[agent], agentStore.posY[agent])) {
+      numNeighborListRebuilds.increment();
+    }
+  }
+
+  /**
+   * Removes the agent from agentGrid and all neighbor lists (e.g., because it has left the room)
+   */
+  private void removeFromIndex(int agent) {
+    agentGrid.remove(agent);
+    if (neighborLists != null) { neighborLists.remove(agent); }
+  }
+
+  /**
+   * Updates social forces due to movement of agent updatedAgent, adding them directly to the agents' social forces
+   * @param updatedAgent ID of the agent that was just updated
+   */
+  void updateSocialForces(int updatedAgent) {
+    updateSocialForces(updatedAgent, neighborBuffer, agentStore.socialForceX, agentStore.socialForceY, scratch);
+  }
+
+  /**
+   * Updates social forces due to movement of agent updatedAgent
+   *
+   * @param updatedAgent ID of the agent that was just updated
+   * @param neighborBuffer scratch space for neighbor queries on agentGrid, of length numAgents
+   * @param forceX array, indexed by agent ID, to which to add the x-components of the social forces
+   * @param forceY array, indexed by agent ID, to which to add the y-components of the social forces
+   * @param scratch length-2 scratch array
+   */
+  private void updateSocialForces(int updatedAgent, int[] neighborBuffer, double[] forceX, double[] forceY,
+                                  double[] scratch) {
+
+    // Pushing and orientation only act between nearby agents, so only the agent's neighbor list (or agents in nearby
+    // cells of agentGrid) need to be checked. Exited agents are in neither, since they don't communicate
+    // orientation or repulsion.
+    int[] neighbors;
+    int numNeighbors;
+    if (neighborLists != null) {
+      neighbors = neighborLists.getNeighbors(updatedAgent);
+      numNeighbors = neighborLists.getNumNeighbors(updatedAgent);
+    } else {
+      neighbors = neighborBuffer;
+      numNeighbors = agentGrid.getNeighbors(agentStore.posX[updatedAgent], agentStore.posY[updatedAgent],
+                                            interactionRange, neighborBuffer);
+    }
+    int numPairs = 0;
+    for (int i = 0; i < numNeighbors; i++) {
+      int agent = neighbors[i];
+
+      // don't include self-interactions
+      if (agent != updatedAgent) {
+        numPairs++;
+
+        // Updated agent pushes away from colliding agents
+        if (Interactions.collision(agentStore, agent, updatedAgent)) { Interactions.push(agentStore, updatedAgent, agent, forceX, forceY); }
+
+        // Updated agent tries to orient with nearby agents
+        if (hasOrient) { Interactions.orient(agentStore, agent, updatedAgent, room, forceX, forceY); }
+      }
+    }
+    // Counted once per call, rather than per pair, to keep counting off the inner loops
+    numPushTests.add(numPairs);
+    if (hasOrient) { numOrients.add(numPairs); }
+
+    // Speed attraction acts at any distance, so it still needs to consider every agent
+    if (hasAttract) { addSpeedAttraction(updatedAgent, forceX, forceY, scratch); }
+
+  }
+
+  /**
+   * Adds the social forces on an agent of a tile (in the TILED engine), due to the tile's agents and the ghosts in its
+   * halo, to the agent's social forces; unlike updateSocialForces(), it doesn't add forces to any other agent
+   * @param tile tile owning the agent
+   * @param updatedAgent ID of the agent that was just updated
+   * @param scratch length-2 scratch array, owned by the tile
+   */
+  private void updateSocialForcesInTile(int tile, int updatedAgent, double[] scratch) {
+
+    int numNeighbors = tiles.getNeighbors(tile, agentStore.posX[updatedAgent], agentStore.posY[updatedAgent],
+                                          interactionRange);
+    int[] neighbors = tiles.getFound(tile);
+    int numPairs = 0;
+    for (int i = 0; i < numNeighbors; i++) {
+      int agent = neighbors[i];
+      if (agent != updatedAgent) {
+        numPairs++;
+
+        // Updated agent pushes away from, and is pushed by, colliding agents
+        if (Interactions.collision(agentStore, agent, updatedAgent)) {
+          Interactions.pushBothWays(agentStore, updatedAgent, agent, agentStore.socialForceX, agentStore.socialForceY);
+        }
+
+        // Updated agent tries to orient with nearby agents
+        if (hasOrient) {
+          Interactions.orient(agentStore, agent, updatedAgent, room, agentStore.socialForceX, agentStore.socialForceY);
+        }
+      }
+    }
+    numPushTests.add(numPairs);
+    if (hasOrient) { numOrients.add(numPairs); }
+
+    if (hasAttract) { addSpeedAttraction(updatedAgent, agentStore.socialForceX, agentStore.socialForceY, scratch); }
+
+  }
+
+  /**
+   * Adds the speed attraction of the updated agent to every other agent, which only changes the updated agent's forces
+   */
+  private void addSpeedAttraction(int updatedAgent, double[] forceX, double[] forceY, double[] scratch) {
+    for (int agent = 0; agent < numAgents; agent++) {
+      if (agent != updatedAgent) {
+        // Updated agent is attracted to more quickly moving agents
+        Interactions.speedAttract(agentStore, agent, updatedAgent, room, forceX, forceY, scratch);
+      }
+    }
+    numSpeedAttracts.add(numAgents - 1);
+  }
+
+}
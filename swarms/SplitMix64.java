@@ -0,0 +1,48 @@
+package swarms;
+
+/**
+ * SplitMix64 (Steele, Lea, and Flood, 2014), a fast pseudorandom number generator whose whole state is a single long.
+ * States are kept by the caller, so that many generators (e.g., one per agent, in an AgentStore) can live in a plain
+ * long[] and be saved with a checkpoint. Independent streams are split off a seed by hashing the seed with the index of
+ * each stream, so each agent's random numbers depend only on the seed and the agent, and not on the order (or thread)
+ * in which agents are updated.
+ */
+final class SplitMix64 {
+
+  private static final long goldenGamma = 0x9E3779B97F4A7C15L; // Increment of the state per number generated
+
+  private SplitMix64() {}
+
+  /**
+   * @param seed seed from which streams are split
+   * @param stream index of the stream (e.g., trial or agent ID)
+   * @return initial state of the stream
+   */
+  static long split(long seed, long stream) {
+    return mix(seed ^ mix((stream + 1) * goldenGamma));
+  }
+
+  /**
+   * Advances the generator whose state is states[index]
+   * @return uniformly random long
+   */
+  static long nextLong(long[] states, int index) {
+    states[index] += goldenGamma;
+    return mix(states[index]);
+  }
+
+  /**
+   * Advances the generator whose state is states[index]
+   * @return uniformly random double in [0, 1)
+   */
+  static double nextDouble(long[] states, int index) {
+    return (nextLong(states, index) >>> 11) * 0x1.0p-53;
+  }
+
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+}
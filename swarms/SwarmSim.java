@@ -3,245 +3,114 @@ package swarms;
 import math.geom2d.Point2D;
 import math.geom2d.Vector2D;
 import math.geom2d.line.LineSegment2D;
-import org.jfree.data.xy.XIntervalSeriesCollection;
-import org.jfree.data.xy.XYSeries;
 
-import java.util.ArrayList;
-import java.util.PriorityQueue;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class SwarmSim {
 
   enum RoomType { BASIC, GATES8 }
 
-  // Basic simulation parameters
-  private static final double simDuration = 250.0; // Time (in seconds) to simulate
-  private static final int numAgents = 300; // Number of agents in the simulation
+  // EVENT_DRIVEN updates one agent at a time, whenever it has moved up to maxMove; FIXED_STEP updates all agents in
+  // lock-step every fixedTimeStep, in parallel; TILED does too, but partitions the room and its agents into tiles
+  enum Engine { EVENT_DRIVEN, FIXED_STEP, TILED }
+
+  // Data structure with which the EVENT_DRIVEN engine orders agent updates
+  enum SchedulerType { HEAP, CALENDAR }
 
   // Parameters determining the size of the room
   private static final Point2D min = new Point2D(0.0, 0.0);   // Bottom left of room rectangle
   private static final Point2D max = new Point2D(50.0, 50.0); // Top right of the room rectangle
-  private static final RoomType roomType = RoomType.GATES8;
-
-  // Parameters determining starting positions of agents
-  private static final Point2D agentMin = max.scale(0.01).plus(new Vector2D(0.0, (roomType == RoomType.GATES8) ? -10.0 : 0.0));  // Bottom left of rectangle in which agents start
-  private static final Point2D agentMax = max.scale(0.99);  // Top right of rectangle in which agents start
-  private static final boolean asymmetricInitialAgentDistribution = false; // Whether the initial distribution of agents is highly asymmetric
-
-  // Parameters determining "fineness" of the simulation.
-  // These heavily affect runtime, but, beyond a point, shouldn't affect results.
-  // Runtime and memory are O(1/spatialResolution^4) and O(1/maxMove)
-  private static final double maxMove = 0.1;    // Maximum distance an agent can move before needing to be updated
-  private static final double frameRate = 1.0;  // Rate at which to save frames for plotting
-  private static final double spatialResolution = 0.6;  // Resolution at which to model the room as a graph; TODO: used to be 0.2
   private static final double exitBufferDist = 5.0;   // Distance beyond the exits that the room graph should cover
 
-  // Parameters determining the output of the simulation
-//  private static final String movieFilePath = "/home/painkiller/Desktop/out.mat";   // Output file from which to make MATLAB video
-//  private static final String plotFilePath = "/home/painkiller/Desktop/withoutSpeedAttract.png";
-  private static final boolean makeMovie = true;
-  private static final String movieFilePath = "/home/sss1/Desktop/projects/swarms/videos/out.mat";   // Output file from which to make MATLAB video
-  private static final boolean makePlot = true;
-  private static final String plotFilePath = "/home/sss1/Desktop/gates8/tmp" + roomType + "_verySmallLeftDoor_" + numAgents + "agents_" + simDuration + "seconds.png";
-
-  private static final int numTrials = 10; // Number of trials over which to average results and compute error bars
-
-  // Simulation state variables
-  private static Agent[] agents;
-  private static PriorityQueue<Agent> orderedAgents;
-  private static Room room;
-  private static Point2D roomBottomLeft, roomTopRight;
-
-  @SuppressWarnings("ConstantConditions") // Several constant variables are explicitly named here just for readability
-  public static void main(String[] args) {
-    final boolean verySmallLeftDoor = true;
-    double leftDoorWidth = (verySmallLeftDoor) ? 0.1 : 10.0;
-    final boolean hasObstacle = false;
-
-    ArrayList<XIntervalSeriesCollection> allPlots = new ArrayList<>();
-
-    boolean hasOrient = false; boolean hasAttract = false;
-    allPlots.add(runTrials(leftDoorWidth, hasObstacle, "No communication", hasOrient, hasAttract));
-    hasOrient = false; hasAttract = true;
-    allPlots.add(runTrials(leftDoorWidth, hasObstacle, "No direction", hasOrient, hasAttract));
-//    hasOrient = true; hasAttract = false;
-//    allPlots.add(runTrials(leftDoorWidth, hasObstacle, "No speed", hasOrient, hasAttract));
-    hasOrient = true; hasAttract = true;
-    allPlots.add(runTrials(leftDoorWidth, hasObstacle, "Full communication", hasOrient, hasAttract));
-
-    if (makePlot) {
-      (new Plotter("Test", simDuration)).plotMultiple(allPlots, plotFilePath);
-    }
-  }
-
-  private static XIntervalSeriesCollection runTrials(double leftDoorWidth,
-                                                     boolean hasObstacle,
-                                                     String label,
-                                                     boolean hasOrient,
-                                                     boolean hasAttract) {
+  // Top right of rectangle in which agents start
+  static final Point2D agentMax = max.scale(0.99);
 
-    System.out.print("Constructing room: " + roomType + "... ");
-    initializeRoom(leftDoorWidth, hasObstacle);
+  // Scenario file to run if none is given on the command line
+  private static final String defaultScenarioFilePath = "scenarios/default.properties";
 
-    ArrayList<XYSeries> resultsByTrial = new ArrayList<>(numTrials);
-    for (int i = 0; i < numTrials; i++) {
-      System.out.print("\n\nRunning trial " + i + " of \"" + label + "\" condition: ");
+  // Number of threads on which to run trials (of all scenarios) concurrently; set with -Dswarms.threads=N
+  private static final int numThreads = Integer.getInteger("swarms.threads", Runtime.getRuntime().availableProcessors());
 
-      resultsByTrial.add(runTrial(label, hasOrient, hasAttract));
+  // Number of worker JVMs over which to spread trials (see SweepCoordinator), or 0 to run them all in this JVM; set with
+  // -Dswarms.workers=N, along with the number of times to retry a crashed trial and the options of the workers' JVMs
+  private static final int numWorkers = Integer.getInteger("swarms.workers", 0);
+  private static final int maxWorkerRetries = Integer.getInteger("swarms.workerRetries", 2);
+  private static final String workerJvmArgs = System.getProperty("swarms.workerJvmArgs", "");
 
-      System.out.println("Computed " + room.numDestsComputed + " destinations.");
-
-    }
-    return Plotter.averageTrials(resultsByTrial, label);
-  }
+  // Command-line option with which a SweepCoordinator starts its workers
+  static final String workerOption = "--worker";
 
   /**
-   * Runs a single self-contained simulation and returns results detailing the fraction of agents in the room over time
-   * @param label name of this condition (only used for labeling plots)
-   * @param hasOrient if true, the agents will use the orientation component of communication
-   * @param hasAttract if true, the agents will use the attraction component of communication
-   * @return XYSeries each X-value is a time between 0.0 and simDuration and each Y-value is a number in [0, 1]
-   * indicating the fraction of agents remaining in the rooms; if all agents escaped the room, the XYSeries should have
-   * numAgents items; else, the last item should be at time simDuration
+   * Runs every scenario defined by a scenario file (see Scenario)
+   * @param args optional path of the scenario file; defaults to scenarios/default.properties. If preceded by
+   *             "--worker", runs trials as a SweepCoordinator's worker instead
    */
-  private static XYSeries runTrial(String label,
-                                   boolean hasOrient,
-                                   boolean hasAttract) {
-
-    long startTime = System.nanoTime();
-
-    System.out.print("Constructing agents... ");
-    initializeAgents();
-
-    // Run the simulation
-    double t = 0.0;
-    MatPlotter matPlotter;
-    if (makeMovie) {
-      matPlotter = new MatPlotter(frameRate, agents, room);
+  public static void main(String[] args) throws IOException {
+    if (args.length == 2 && args[0].equals(workerOption)) {
+      SweepWorker.serve(args[1]);
+      return;
     }
-
-    XYSeries fractionInRoomOverTime = new XYSeries(label); // legend label of item to plot
-
-    System.out.println("Starting simulation... ");
-    // Terminate the simulation when there are no agents left in the room or when the simulation duration has ended;
-    // whichever comes first
-    while (t < simDuration && !orderedAgents.isEmpty()) {
-
-      // Get next agent to update from PriorityQueue
-      Agent nextAgent = orderedAgents.poll();
-      t = nextAgent.getNextUpdateTime();
-
-      if (t % 10.0 < 0.002) { // Print an update every 10 timesteps
-        double currentRealTimeInSeconds = (System.nanoTime() - startTime)/(Math.pow(10, 9));
-        System.out.println("Sim time is " + t + "." +
-            " Computed " + room.numDestsComputed + " destinations." +
-            " Took " + currentRealTimeInSeconds + " real seconds. " +
-            getNumInRoom(agents) + " agents remain.");
-      }
-
-      // Calculate forces, accelerate, move the agent, and update its priority
-      nextAgent.update(t, room);
-
-      if (agentIsInRoom(nextAgent)) {
-
-        // Add new social forces to the agent
-        updateSocialForces(agents, nextAgent, hasOrient, hasAttract);
-
-        // Reinsert the agent back into the priority queue
-        orderedAgents.add(nextAgent);
-
-      } else { // agent left the room;
-        nextAgent.exit();
-        fractionInRoomOverTime.add(t, getFracInRoom(agents));
-      }
-
-      if (makeMovie && t > matPlotter.getNextFrameTime()) {
-        matPlotter.saveFrame(agents);
-      }
-
+    String scenarioFilePath = (args.length > 0) ? args[0] : defaultScenarioFilePath;
+    System.out.println("Loading scenarios from " + scenarioFilePath);
+    List<Scenario> scenarios = Scenario.load(scenarioFilePath);
+    if (numWorkers > 0) {
+      List<String> jvmArgs = workerJvmArgs.trim().isEmpty() ? Collections.emptyList()
+                                                            : Arrays.asList(workerJvmArgs.trim().split("\\s+"));
+      new SweepCoordinator(scenarioFilePath, numWorkers, maxWorkerRetries, jvmArgs).run(scenarios);
+    } else {
+      new BatchRunner(numThreads).run(scenarios);
     }
-
-    System.out.println("Final Simulation time: " + t + ", with " + orderedAgents.size() + " agents remaining.");
-
-    long endTime = System.nanoTime();
-    System.out.println("Took " + ((endTime - startTime)/(Math.pow(10, 9))) + " seconds...");
-
-//    // Add a final point to the plot at the last frame
-//    fractionInRoomOverTime.add(t, getFracInRoom(agents));
-
-    // Export data necessary for movies as .mat file
-    if (makeMovie) {
-      matPlotter.writeToMAT(movieFilePath);
-    }
-
-    return fractionInRoomOverTime;
-
   }
+
   /**
-   * Computes the fraction of agents remaining in the room; this is a minor convenience over getNumInRoom()
-   * @param agents array of numAgents agents in the simulation
-   * @return value of getNumInRoom() / numAgents
+   * @return bottom left of rectangle in which agents start
    */
-  private static double getFracInRoom(Agent[] agents) {
-    return getNumInRoom(agents) / numAgents;
+  static Point2D getAgentMin(RoomType roomType) {
+    return max.scale(0.01).plus(new Vector2D(0.0, (roomType == RoomType.GATES8) ? -10.0 : 0.0));
   }
 
   /**
-   * Counts the number of agents remaining in the room
-   * @param agents array of numAgents agents in the simulation
-   * @return the number of agents remaining in the room, according to agentIsInRoom();
-   * the value is always an integer (up to round-off), despite the double type
+   * Builds a room, including its walls, exits, and distances to the exits
+   * @param roomType floor plan of the room
+   * @param spatialResolution resolution at which to model the room as a graph
+   * @param distanceCacheBytes memory budget for cached distance fields between cells
+   * @param leftDoorWidth size of the left door (of a BASIC room)
+   * @param hasObstacle if true, the room will contain an obstacle, of which the agents are unaware
    */
-  private static double getNumInRoom(Agent[] agents) {
-    double fracInRoom = 0.0;
-    for (Agent agent : agents) {
-      fracInRoom += agentIsInRoom(agent) ? 1.0 : 0.0;
-    }
-    return fracInRoom;
+  static Room buildRoom(RoomType roomType, double spatialResolution, long distanceCacheBytes,
+                        double leftDoorWidth, boolean hasObstacle) {
+    return getLayout(roomType, spatialResolution, leftDoorWidth, hasObstacle).build(distanceCacheBytes);
   }
 
   /**
-   * Initialize numAgents Agents, stored in both an array and a PriorityQueue
+   * Lays out a room (i.e., its walls and exits), without building it
+   * @param roomType floor plan of the room
+   * @param spatialResolution resolution at which to model the room as a graph
+   * @param leftDoorWidth size of the left door (of a BASIC room)
+   * @param hasObstacle if true, the room will contain an obstacle, of which the agents are unaware
    */
-  private static void initializeAgents() {
-
-    agents = new Agent[numAgents];
-
-    // Store all the agents sorted by order in which they need to be next updated
-    orderedAgents = new PriorityQueue<>(Math.max(numAgents, 1), new AgentComparator());
-
-    // Initialize the agents
-    for (int i = 0; i < numAgents; i++) {
-      if (asymmetricInitialAgentDistribution && i > numAgents/4) {
-        Point2D shiftedAgentMax = new Point2D(agentMax.x()/4, agentMax.y());
-        agents[i] = new Agent(i, agentMin, shiftedAgentMax, frameRate, maxMove, numAgents);
-      } else {
-        agents[i] = new Agent(i, agentMin, agentMax, frameRate, maxMove, numAgents);
-      }
-
-      orderedAgents.add(agents[i]);
-
-    }
-
-  }
-
-  private static void initializeRoom(double leftDoorWidth, boolean hasObstacle) {
+  static RoomLayout getLayout(RoomType roomType, double spatialResolution, double leftDoorWidth, boolean hasObstacle) {
 
     if (roomType == RoomType.GATES8) {
-      buildGates8(hasObstacle);
+      return getGates8Layout(spatialResolution, hasObstacle);
     } else if (roomType == RoomType.BASIC) {
-      buildBasic(leftDoorWidth, hasObstacle);
+      return getBasicLayout(spatialResolution, leftDoorWidth, hasObstacle);
     }
+    throw new IllegalArgumentException("Unknown room type: " + roomType);
   }
 
   /**
-   * Builds a room based on the floor plan of the 8th floor of the Gates Center for Computer Science at Carnegie Mellon
+   * Lays out a room based on the floor plan of the 8th floor of the Gates Center for Computer Science at Carnegie Mellon
    * University. This room has 3 exits and requires agents to navigate complex non-convex obstacles.
    */
-  private static void buildGates8(boolean hasObstacle) {
-    roomBottomLeft = new Point2D(-1.0, -11.0);
-    roomTopRight = new Point2D(60.0, 51.0);
+  private static RoomLayout getGates8Layout(double spatialResolution, boolean hasObstacle) {
+    Point2D roomBottomLeft = new Point2D(-1.0, -11.0);
+    Point2D roomTopRight = new Point2D(60.0, 51.0);
 
-    room = new Room(roomBottomLeft, roomTopRight, spatialResolution, roomType);
+    RoomLayout room = new RoomLayout(roomBottomLeft, roomTopRight, spatialResolution, RoomType.GATES8);
 
     // Construct out walls, going clockwise from top
     room.addWall(new LineSegment2D(0.0, 50.001, 60.0, 50.001)); // main top wall
@@ -308,16 +177,19 @@ public class SwarmSim {
       room.addWall(new LineSegment2D(0.0, 35.001, 5.0, 35.001));
     }
 
+    return room;
+
   }
 
 
   /**
    * Returns whether or not the input position is a valid starting position for an agent
    * (e.g., that the agent is inside the building, not already in an exit, etc.)
+   * @param roomType floor plan of the room
    * @param position proposed position at which to start the agent
    * @return true if and only
    */
-  static boolean startingPositionIsValid(Point2D position) {
+  static boolean startingPositionIsValid(RoomType roomType, Point2D position) {
 
     // No invalid spaces in basic room
     if (roomType == RoomType.BASIC) { return true; }
@@ -349,24 +221,23 @@ public class SwarmSim {
   // 2) be able to test whether a point is in its interior
 
   /**
-   * Builds a simple rectangular room with two (not necessarily identical) exits (left and right).
+   * Lays out a simple rectangular room with two (not necessarily identical) exits (left and right).
    * @param leftDoorWidth size of the left door
    * @param hasObstacle if true, there will be an obstacle in front of the left door
    */
-  private static void buildBasic(double leftDoorWidth, boolean hasObstacle) {
+  private static RoomLayout getBasicLayout(double spatialResolution, double leftDoorWidth, boolean hasObstacle) {
 
     double rightDoorWidth = 10.0;
     double p = spatialResolution /10; // small perturbation to prevent endpoint bugs
 
     Vector2D rightShift = new Vector2D(exitBufferDist, 0.0);
-    room = new Room(min.minus(rightShift), max.plus(rightShift), spatialResolution, roomType);
+    RoomLayout room = new RoomLayout(min.minus(rightShift), max.plus(rightShift), spatialResolution, RoomType.BASIC);
     Point2D topLeft = new Point2D(min.x() - p, max.y() + p);
     Point2D bottomLeft = new Point2D(min.x() - p, min.y() - p);
     Point2D bottomRight = new Point2D(max.x() + p, min.y() - p);
     Point2D topRight = new Point2D(max.x() + p, max.y() + p);
 
-    roomBottomLeft = bottomLeft;
-    roomTopRight = topRight;
+    room.setBoundary(bottomLeft, topRight);
 
     Point2D rightDoorUpper = new Point2D(topRight.x(), topRight.y()/2 + rightDoorWidth/2.0);
     Point2D rightDoorLower = new Point2D(topRight.x(), topRight.y()/2 - rightDoorWidth/2.0);
@@ -391,56 +262,7 @@ public class SwarmSim {
       Point2D obstacleLower = new Point2D(bottomLeft.x() + horizontalObstacleOffset, topLeft.y() * 0.4);
       room.addWall(new LineSegment2D(obstacleUpper, obstacleLower));
     }
-  }
-
-
-  /**
-   * Returns whether the agent is still in the room (or has left)
-   * @param agent an Agent whose position to check
-   * @return true if the agent is still in the room, and false if it has left
-   */
-  private static boolean agentIsInRoom(Agent agent) {
-
-    if (agent.getExited()) {
-      return false;
-    }
-
-    Point2D pos = agent.getPos();
-    double tolerance = (roomType == RoomType.GATES8) ? Math.max(spatialResolution, 2.2) : 1.0;
-
-    // Check outer room boundary
-    return !(roomBottomLeft.x() > pos.x() || pos.x() > roomTopRight.x() ||
-        roomBottomLeft.y() > pos.y() || pos.y() > roomTopRight.y())
-        && !room.atExit(agent.getPos(), tolerance);
-
-  }
-
-  /**
-   * Updates social forces due to movement of agent updatedAgent
-   *
-   * @param agents array of all agents, sorted by ID
-   * @param updatedAgent ID of the agent that was just updated
-   */
-  private static void updateSocialForces(Agent[] agents, Agent updatedAgent, boolean hasOrient, boolean hasAttract) {
-
-    for (Agent agent : agents) {
-
-      // don't include self-interactions
-      if (agent.getID() != updatedAgent.getID()) {
-
-        if (!agent.getExited()) { // exited agents don't communicate orientation or repulsion
-          // Updated agent pushes away from colliding agents
-          if (Interactions.collision(agent, updatedAgent)) { Interactions.push(updatedAgent, agent); }
-
-          // Updated agent tries to orient with nearby agents
-          if (hasOrient) { Interactions.orient(agent, updatedAgent, room); }
-        }
-
-        // Updated agent is attracted to more quickly moving agents
-        if (hasAttract) { Interactions.speedAttract(agent, updatedAgent, room); }
-      }
-    }
-
+    return room;
   }
 
 }
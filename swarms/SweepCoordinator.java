@@ -0,0 +1,280 @@
+package swarms;
+
+import org.jfree.data.xy.YIntervalSeriesCollection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the trials of a batch of scenarios (e.g., a large sweep) in several local worker JVMs (see SweepWorker), rather
+ * than in this one as BatchRunner does, so that each process only holds the room it is running in, and each has its own
+ * heap and garbage collector. Every trial is a separate job, which is sent to a worker over its stdin, with its result
+ * read back from its stdout. Workers are given jobs in the same room as their last one when there are any, so that
+ * they rarely rebuild rooms.
+ *
+ * If a worker crashes (e.g., it runs out of memory), its job is retried on a new worker, up to maxRetries times. The
+ * results of all trials are then averaged and plotted, as BatchRunner does, so a sweep gives the same plots however it
+ * is run; a scenario whose seed is random draws it here, and sends it to the workers. The final metrics of all trials
+ * are written to a single CSV file, if the scenarios have a metricsFile.
+ */
+class SweepCoordinator {
+
+  // A trial to run, with the number of times it has been tried
+  private static class Job {
+    final int scenario;
+    final int trial;
+    int numAttempts = 0;
+
+    Job(int scenario, int trial) {
+      this.scenario = scenario;
+      this.trial = trial;
+    }
+  }
+
+  private final String scenarioFilePath;
+  private final int numWorkers;
+  private final int maxRetries;
+  private final List<String> workerJvmArgs;
+
+  private List<Scenario> scenarios;
+  private final Deque<Job> jobs = new ArrayDeque<>();           // Jobs waiting to be run, in order
+  private final Map<Job, TrialAggregator> results = new HashMap<>(); // Statistics of each finished job
+  private final Map<Job, Map<String, Number>> metrics = new HashMap<>(); // Final metrics of each finished job
+  private final List<Job> failures = new ArrayList<>();         // Jobs that failed maxRetries + 1 times
+
+  /**
+   * @param scenarioFilePath scenario file, which each worker loads
+   * @param numWorkers number of worker processes to run at once
+   * @param maxRetries number of times to retry a trial whose worker crashed
+   * @param workerJvmArgs options of the workers' JVMs (e.g., "-Xmx2g"); system properties "swarms.*" of this JVM are
+   *                      passed on too, since they change the defaults of scenarios
+   */
+  SweepCoordinator(String scenarioFilePath, int numWorkers, int maxRetries, List<String> workerJvmArgs) {
+    this.scenarioFilePath = scenarioFilePath;
+    this.numWorkers = Math.max(numWorkers, 1);
+    this.maxRetries = Math.max(maxRetries, 0);
+    this.workerJvmArgs = workerJvmArgs;
+  }
+
+  /**
+   * Runs all trials of all scenarios in the workers, and saves the resulting plots and metrics
+   * @param scenarios scenarios loaded from the scenario file
+   */
+  void run(List<Scenario> scenarios) {
+    this.scenarios = scenarios;
+    Job[][] jobsByScenario = new Job[scenarios.size()][];
+    for (int i = 0; i < scenarios.size(); i++) {
+      jobsByScenario[i] = new Job[scenarios.get(i).numTrials];
+      for (int trial = 0; trial < jobsByScenario[i].length; trial++) {
+        jobsByScenario[i][trial] = new Job(i, trial);
+        jobs.add(jobsByScenario[i][trial]);
+      }
+    }
+    System.out.println("Running " + jobs.size() + " trials of " + scenarios.size() + " scenarios, in " + numWorkers
+        + " worker processes");
+
+    ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+    try {
+      List<CompletableFuture<Void>> workers = new ArrayList<>(numWorkers);
+      for (int i = 0; i < numWorkers; i++) {
+        final int worker = i;
+        workers.add(CompletableFuture.runAsync(() -> runWorker(worker), executor));
+      }
+      CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).join();
+    } finally {
+      executor.shutdown();
+    }
+
+    for (Job job : failures) {
+      System.err.println("Gave up on trial " + job.trial + " of \"" + scenarios.get(job.scenario).getLabel()
+          + "\" after " + job.numAttempts + " attempts; it is left out of the results");
+    }
+
+    // Statistics of trials are merged in trial order, as in BatchRunner
+    Map<Scenario, YIntervalSeriesCollection> averages = new HashMap<>();
+    for (int i = 0; i < scenarios.size(); i++) {
+      TrialAggregator allTrials = new TrialAggregator(scenarios.get(i).plotBinWidth);
+      for (Job job : jobsByScenario[i]) {
+        if (results.containsKey(job)) { allTrials.merge(results.get(job)); }
+      }
+      averages.put(scenarios.get(i), Plotter.averageTrials(allTrials, scenarios.get(i).communication.label));
+    }
+    saveMetrics(jobsByScenario);
+    BatchRunner.savePlots(scenarios, averages::get);
+  }
+
+  /**
+   * Runs jobs in a succession of worker processes until no jobs are left, starting a new process whenever the last one
+   * crashed or sent something other than a result
+   * @param worker index of the worker (only used for labeling output)
+   */
+  private void runWorker(int worker) {
+    Process process = null;
+    DataInputStream in = null;
+    DataOutputStream out = null;
+    String roomKey = null; // Room of the worker's last job
+    Job job;
+    try {
+      while ((job = takeJob(roomKey)) != null) {
+        Scenario scenario = scenarios.get(job.scenario);
+        try {
+          if (process == null) {
+            process = startWorker();
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            int numScenarios = in.readInt();
+            if (numScenarios != scenarios.size()) {
+              throw new IOException("Worker loaded " + numScenarios + " scenarios, rather than " + scenarios.size());
+            }
+          }
+          out.writeInt(job.scenario);
+          out.writeLong(scenario.seed);
+          out.writeInt(job.trial);
+          out.flush();
+          roomKey = scenario.getRoomKey();
+          readResult(job, in);
+        } catch (IOException | RuntimeException e) {
+          // E.g., the worker crashed, or sent a garbled result (which may make reading it throw anything)
+          System.err.println("Worker " + worker + " failed on trial " + job.trial + " of \"" + scenario.getLabel()
+              + "\": " + e);
+          if (process != null) { process.destroyForcibly(); }
+          process = null;
+          roomKey = null;
+          retry(job);
+        }
+      }
+
+      if (process != null) { // Stop the worker, which stores its room if it has a roomCacheDir
+        try {
+          out.writeInt(-1);
+          out.flush();
+          process.waitFor();
+        } catch (IOException e) {
+          e.printStackTrace();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    } finally {
+      // Never leave a worker running, whatever went wrong here
+      if (process != null && process.isAlive()) { process.destroyForcibly(); }
+    }
+  }
+
+  private Process startWorker() throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(workerJvmArgs);
+    for (String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith("swarms.")) { command.add("-D" + name + "=" + System.getProperty(name)); }
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(SwarmSim.class.getName());
+    command.add(SwarmSim.workerOption);
+    command.add(scenarioFilePath);
+    return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+  }
+
+  /**
+   * Reads the result of a job from its worker (see SweepWorker for the format)
+   */
+  private void readResult(Job job, DataInputStream in) throws IOException {
+    int scenario = in.readInt(), trial = in.readInt();
+    if (scenario != job.scenario || trial != job.trial) {
+      throw new IOException("Worker sent trial " + trial + " of scenario " + scenario + ", rather than trial "
+          + job.trial + " of scenario " + job.scenario);
+    }
+    TrialAggregator result = TrialAggregator.read(in);
+    Map<String, Number> values = new LinkedHashMap<>();
+    int numMetrics = in.readInt();
+    for (int i = 0; i < numMetrics; i++) {
+      String name = in.readUTF();
+      values.put(name, (in.readByte() == 'L') ? (Number) in.readLong() : (Number) in.readDouble());
+    }
+    synchronized (this) {
+      results.put(job, result);
+      metrics.put(job, values);
+    }
+  }
+
+  /**
+   * @param roomKey room of the worker's last job, or null
+   * @return the first waiting job in the given room, or else the first waiting job; null if no jobs are waiting
+   */
+  private synchronized Job takeJob(String roomKey) {
+    if (roomKey != null) {
+      for (Iterator<Job> iterator = jobs.iterator(); iterator.hasNext(); ) {
+        Job job = iterator.next();
+        if (scenarios.get(job.scenario).getRoomKey().equals(roomKey)) {
+          iterator.remove();
+          return job;
+        }
+      }
+    }
+    return jobs.pollFirst();
+  }
+
+  /**
+   * Puts a job whose worker crashed back at the front of the queue, or gives up on it if it has been tried too often
+   */
+  private synchronized void retry(Job job) {
+    job.numAttempts++;
+    if (job.numAttempts <= maxRetries) {
+      jobs.addFirst(job);
+    } else {
+      failures.add(job);
+    }
+  }
+
+  /**
+   * Writes the final metrics of every finished trial to one CSV file, with a row per trial, next to the metrics files
+   * of the first scenario's trials; metrics missing from a trial (e.g., those of another kind of room) are left empty
+   */
+  private void saveMetrics(Job[][] jobsByScenario) {
+    if (scenarios.isEmpty() || scenarios.get(0).metricsFile == null) { return; }
+    String filePath = BatchRunner.getFilePath(scenarios.get(0).metricsFile, "sweep");
+    Set<String> names = new LinkedHashSet<>();
+    for (Map<String, Number> values : metrics.values()) { names.addAll(values.keySet()); }
+    try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get(filePath), StandardCharsets.UTF_8))) {
+      csv.println("scenario,label,trial,attempts," + String.join(",", names));
+      for (Job[] scenarioJobs : jobsByScenario) {
+        for (Job job : scenarioJobs) {
+          if (!metrics.containsKey(job)) { continue; }
+          StringBuilder row = new StringBuilder().append(job.scenario).append(",\"")
+              .append(scenarios.get(job.scenario).getLabel().replace("\"", "\"\"")).append("\",")
+              .append(job.trial).append(',').append(job.numAttempts + 1);
+          for (String name : names) {
+            Number value = metrics.get(job).get(name);
+            row.append(',').append((value == null) ? "" : value.toString());
+          }
+          csv.println(row);
+        }
+      }
+      System.out.println("Saved the metrics of all trials to " + filePath);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+}
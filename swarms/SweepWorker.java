@@ -0,0 +1,119 @@
+package swarms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A worker process of a SweepCoordinator, which runs trials of the scenarios in a scenario file, one at a time, as the
+ * coordinator requests them. Requests are read from stdin and results are written to stdout, in the format below;
+ * everything else the worker prints goes to stderr.
+ *
+ * Once it has loaded the scenarios, the worker writes their number, so the coordinator can check that both loaded the
+ * same file. Then, for each request (the index of a scenario, the scenario's seed, and the trial), it writes back
+ * the index of the scenario, the trial, the statistics of the trial (see TrialAggregator.write()), the number of the
+ * trial's final metrics, and each metric (its name, a tag: 'L' for a long or 'D' for a double, and its value).
+ * A request for a negative scenario, or the end of stdin, stops the worker.
+ *
+ * A worker keeps the room of its last trial, so it doesn't rebuild the room for consecutive trials in the same room,
+ * but it never keeps more than one room, so its heap can stay small. Each trial's metrics include how much the room's
+ * counters grew during the trial.
+ */
+class SweepWorker {
+
+  private final List<Scenario> scenarios;
+  private Scenario roomScenario = null; // Scenario for which room was built
+  private Room room = null;
+
+  private SweepWorker(List<Scenario> scenarios) {
+    this.scenarios = scenarios;
+  }
+
+  /**
+   * Serves the coordinator's requests on stdin and stdout until it stops the worker
+   * @param scenarioFilePath scenario file from which the coordinator loaded its scenarios
+   */
+  static void serve(String scenarioFilePath) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+    System.setOut(System.err); // stdout only carries results
+
+    SweepWorker worker = new SweepWorker(Scenario.load(scenarioFilePath));
+    out.writeInt(worker.scenarios.size());
+    out.flush();
+    try {
+      while (true) {
+        int index = in.readInt();
+        if (index < 0) { break; }
+        long seed = in.readLong();
+        int trial = in.readInt();
+        worker.runTrial(index, seed, trial, out);
+        out.flush();
+      }
+    } catch (EOFException e) {
+      // The coordinator has gone away, so there is nobody left to send results to
+    }
+    worker.saveRoom();
+  }
+
+  private void runTrial(int index, long seed, int trial, DataOutputStream out) throws IOException {
+    if (index >= scenarios.size()) { throw new IOException("No scenario " + index + " in the scenario file"); }
+    Scenario scenario = scenarios.get(index).withSeed(seed);
+    // A room whose walls a trial changed (see Scenario.wallChanges) is rebuilt for the next trial
+    if (room == null || room.isChangedAtRuntime() || !scenario.getRoomKey().equals(roomScenario.getRoomKey())) {
+      saveRoom();
+      room = null; // So that the old room can be collected while the new one is built
+      room = BatchRunner.buildRoom(scenario);
+      roomScenario = scenario;
+    }
+
+    String label = scenario.getLabel();
+    System.out.println("Running trial " + trial + " of \"" + label + "\" condition (seed " + scenario.seed + ")");
+    Map<String, Number> roomMetricsAtStart = new LinkedHashMap<>();
+    room.getMetrics().snapshot(roomMetricsAtStart);
+    Simulation simulation = new Simulation(room, scenario, trial);
+    TrialAggregator result = simulation.run(BatchRunner.getTrialFilePath(scenario.movieFile, label, trial),
+                                            BatchRunner.getTrialFilePath(scenario.metricsFile, label, trial),
+                                            BatchRunner.getTrialFilePath(scenario.checkpointFile, label, trial));
+    System.out.println("[" + label + ", trial " + trial + "] Distance cache: " + room.getDistanceCacheStats());
+    Map<String, Number> metrics = new LinkedHashMap<>();
+    simulation.snapshotMetrics(metrics);
+    // The worker runs one trial at a time, so what the room's counters counted during the trial was this trial's doing
+    room.getMetrics().snapshotCountersSince(roomMetricsAtStart, metrics);
+
+    out.writeInt(index);
+    out.writeInt(trial);
+    result.write(out);
+    out.writeInt(metrics.size());
+    for (Map.Entry<String, Number> metric : metrics.entrySet()) {
+      out.writeUTF(metric.getKey());
+      if (metric.getValue() instanceof Long) {
+        out.writeByte('L');
+        out.writeLong(metric.getValue().longValue());
+      } else {
+        out.writeByte('D');
+        out.writeDouble(metric.getValue().doubleValue());
+      }
+    }
+  }
+
+  /**
+   * Stores the distance fields computed in the current room, for later runs, as BatchRunner does once its batch is done
+   */
+  private void saveRoom() {
+    if (room != null && roomScenario.roomCacheDir != null && room.getNumDistanceFieldsComputed() > 0
+        && !room.isChangedAtRuntime()) {
+      new RoomCache(roomScenario.roomCacheDir).save(BatchRunner.getLayout(roomScenario), room);
+    }
+  }
+
+}
@@ -0,0 +1,225 @@
+package swarms;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Running statistics of the fraction of agents in the room over time, across trials, which trials feed as their
+ * agents leave the room, so that the results of many trials can be averaged in memory independent of the number of
+ * trials and agents. Two kinds of statistics are kept, each as a running mean and variance (Welford's method):
+ *  - per time bin: the fraction of agents in the room at the end of each bin of binWidth seconds, over all trials
+ *  - per quantile: the time by which each multiple of 1/numQuantiles of the agents had left, over the trials in which
+ *    they did
+ *
+ * A trial calls recordExit() each time agents leave, and finishTrial() once it ends; an aggregator may record any
+ * number of trials, one after the other. Aggregators of trials recorded in parallel are then combined with merge(),
+ * which gives the same statistics as recording all trials in one aggregator, up to round-off; merging in a fixed order
+ * (e.g., of trial) makes the result reproducible.
+ */
+class TrialAggregator {
+
+  static final int numQuantiles = 20; // Quantiles of agents that have left: every 5% of the agents
+
+  private final double binWidth;      // Width (in seconds) of each time bin
+  private long numTrials = 0;         // Number of finished trials
+  private int numBins = 0;            // Number of bins for which any trial has recorded a value
+  private long[] binCounts = new long[16];
+  private double[] binMeans = new double[16];
+  private double[] binSquaredDeviations = new double[16]; // Sum of squared deviations from the mean of each bin
+  private final long[] quantileCounts = new long[numQuantiles];
+  private final double[] quantileMeans = new double[numQuantiles];
+  private final double[] quantileSquaredDeviations = new double[numQuantiles];
+
+  // State of the trial being recorded
+  private double fractionInRoom = 1.0;
+  private int nextBin = 0;            // First bin to which the trial hasn't contributed yet
+  private int nextQuantile = 0;       // First quantile the trial hasn't reached yet
+
+  /**
+   * @param binWidth width (in seconds) of the time bins over which to average the fraction of agents in the room
+   */
+  TrialAggregator(double binWidth) {
+    if (!(binWidth > 0.0)) { throw new IllegalArgumentException("binWidth must be positive: " + binWidth); }
+    this.binWidth = binWidth;
+  }
+
+  /**
+   * Records that agents left the room in the current trial; times must not decrease within a trial
+   * @param t simulation time at which the agents left
+   * @param fraction fraction of agents still in the room, once they left
+   */
+  void recordExit(double t, double fraction) {
+    while ((nextBin + 1) * binWidth < t) { addToBin(nextBin++, fractionInRoom); }
+    fractionInRoom = fraction;
+    while (nextQuantile < numQuantiles && 1.0 - fraction >= (nextQuantile + 1.0) / numQuantiles - 1e-9) {
+      addToQuantile(nextQuantile++, t);
+    }
+  }
+
+  /**
+   * Ends the current trial, whose fraction of agents in the room stays at its last value until endTime (e.g., the
+   * duration of the simulation, even if all agents left earlier), and starts a new one
+   */
+  void finishTrial(double endTime) {
+    int numTrialBins = (int) Math.ceil(endTime / binWidth - 1e-9);
+    while (nextBin < numTrialBins) { addToBin(nextBin++, fractionInRoom); }
+    numTrials++;
+    fractionInRoom = 1.0;
+    nextBin = 0;
+    nextQuantile = 0;
+  }
+
+  private void addToBin(int bin, double value) {
+    if (bin == binCounts.length) {
+      binCounts = Arrays.copyOf(binCounts, 2 * bin);
+      binMeans = Arrays.copyOf(binMeans, 2 * bin);
+      binSquaredDeviations = Arrays.copyOf(binSquaredDeviations, 2 * bin);
+    }
+    numBins = Math.max(numBins, bin + 1);
+    double delta = value - binMeans[bin];
+    binMeans[bin] += delta / ++binCounts[bin];
+    binSquaredDeviations[bin] += delta * (value - binMeans[bin]);
+  }
+
+  private void addToQuantile(int quantile, double value) {
+    double delta = value - quantileMeans[quantile];
+    quantileMeans[quantile] += delta / ++quantileCounts[quantile];
+    quantileSquaredDeviations[quantile] += delta * (value - quantileMeans[quantile]);
+  }
+
+  /**
+   * Adds the finished trials of another aggregator, with the same bin width, to this one
+   */
+  void merge(TrialAggregator other) {
+    if (other.binWidth != binWidth) {
+      throw new IllegalArgumentException("Can't merge bins of " + other.binWidth + " s into bins of " + binWidth + " s");
+    }
+    while (binCounts.length < other.numBins) {
+      binCounts = Arrays.copyOf(binCounts, 2 * binCounts.length);
+      binMeans = Arrays.copyOf(binMeans, 2 * binMeans.length);
+      binSquaredDeviations = Arrays.copyOf(binSquaredDeviations, 2 * binSquaredDeviations.length);
+    }
+    for (int bin = 0; bin < other.numBins; bin++) {
+      merge(binCounts, binMeans, binSquaredDeviations, bin,
+            other.binCounts[bin], other.binMeans[bin], other.binSquaredDeviations[bin]);
+    }
+    for (int quantile = 0; quantile < numQuantiles; quantile++) {
+      merge(quantileCounts, quantileMeans, quantileSquaredDeviations, quantile,
+            other.quantileCounts[quantile], other.quantileMeans[quantile], other.quantileSquaredDeviations[quantile]);
+    }
+    numBins = Math.max(numBins, other.numBins);
+    numTrials += other.numTrials;
+  }
+
+  /**
+   * Combines the running statistics at index i with those of another set of values (Chan et al.'s method)
+   */
+  private static void merge(long[] counts, double[] means, double[] squaredDeviations, int i,
+                            long count, double mean, double squaredDeviation) {
+    if (count == 0) { return; }
+    long total = counts[i] + count;
+    double delta = mean - means[i];
+    means[i] += delta * count / total;
+    squaredDeviations[i] += squaredDeviation + delta * delta * ((double) counts[i] * count / total);
+    counts[i] = total;
+  }
+
+  long getNumTrials() {
+    return numTrials;
+  }
+
+  int getNumBins() {
+    return numBins;
+  }
+
+  /**
+   * @return simulation time at the end of the bin, at which its fractions of agents in the room were taken
+   */
+  double getBinTime(int bin) {
+    return (bin + 1) * binWidth;
+  }
+
+  long getBinCount(int bin) {
+    return binCounts[bin];
+  }
+
+  /**
+   * @return mean, over trials, of the fraction of agents in the room at the end of the bin
+   */
+  double getBinMean(int bin) {
+    return binMeans[bin];
+  }
+
+  /**
+   * @return sample variance, over trials, of the fraction of agents in the room at the end of the bin (0.0 if fewer
+   * than 2 trials contributed to the bin)
+   */
+  double getBinVariance(int bin) {
+    return (binCounts[bin] < 2) ? 0.0 : binSquaredDeviations[bin] / (binCounts[bin] - 1);
+  }
+
+  /**
+   * @return number of trials in which at least (quantile + 1) / numQuantiles of the agents left the room
+   */
+  long getQuantileCount(int quantile) {
+    return quantileCounts[quantile];
+  }
+
+  /**
+   * @return mean time by which (quantile + 1) / numQuantiles of the agents had left, over the trials in which they did
+   */
+  double getQuantileMean(int quantile) {
+    return quantileMeans[quantile];
+  }
+
+  double getQuantileVariance(int quantile) {
+    return (quantileCounts[quantile] < 2) ? 0.0 : quantileSquaredDeviations[quantile] / (quantileCounts[quantile] - 1);
+  }
+
+  /**
+   * Writes the statistics of the finished trials (e.g., to send them to another process); the current trial isn't
+   * written
+   */
+  void write(DataOutputStream out) throws IOException {
+    out.writeDouble(binWidth);
+    out.writeLong(numTrials);
+    out.writeInt(numBins);
+    for (int bin = 0; bin < numBins; bin++) {
+      out.writeLong(binCounts[bin]);
+      out.writeDouble(binMeans[bin]);
+      out.writeDouble(binSquaredDeviations[bin]);
+    }
+    for (int quantile = 0; quantile < numQuantiles; quantile++) {
+      out.writeLong(quantileCounts[quantile]);
+      out.writeDouble(quantileMeans[quantile]);
+      out.writeDouble(quantileSquaredDeviations[quantile]);
+    }
+  }
+
+  /**
+   * @return the statistics written by write()
+   */
+  static TrialAggregator read(DataInputStream in) throws IOException {
+    TrialAggregator aggregator = new TrialAggregator(in.readDouble());
+    aggregator.numTrials = in.readLong();
+    aggregator.numBins = in.readInt();
+    int capacity = Math.max(16, aggregator.numBins);
+    aggregator.binCounts = new long[capacity];
+    aggregator.binMeans = new double[capacity];
+    aggregator.binSquaredDeviations = new double[capacity];
+    for (int bin = 0; bin < aggregator.numBins; bin++) {
+      aggregator.binCounts[bin] = in.readLong();
+      aggregator.binMeans[bin] = in.readDouble();
+      aggregator.binSquaredDeviations[bin] = in.readDouble();
+    }
+    for (int quantile = 0; quantile < numQuantiles; quantile++) {
+      aggregator.quantileCounts[quantile] = in.readLong();
+      aggregator.quantileMeans[quantile] = in.readDouble();
+      aggregator.quantileSquaredDeviations[quantile] = in.readDouble();
+    }
+    return aggregator;
+  }
+
+}
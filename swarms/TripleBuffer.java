@@ -0,0 +1,75 @@
+package swarms;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Three buffers through which one writer thread passes its latest state to one reader thread without locks, so neither
+ * ever waits for the other (e.g., a simulation publishing snapshots of its agents to a LiveView, which draws them).
+ * The writer fills the back buffer and publishes it, swapping it with the middle buffer; the reader swaps the middle
+ * buffer with its front buffer whenever a newer one has been published, and reads the front buffer. Each swap is a
+ * single atomic exchange, which also makes the contents of the published buffer visible to the reader.
+ *
+ * The reader only ever sees the latest published buffer; buffers published in between are dropped.
+ *
+ * @param <T> type of the buffers, whose contents are overwritten in place
+ */
+class TripleBuffer<T> {
+
+  private static final int fresh = 4; // Flag in middle, set while the middle buffer hasn't been taken by the reader
+
+  private final Object[] buffers = new Object[3];
+  private final AtomicInteger middle = new AtomicInteger(1); // Index of the middle buffer, with the fresh flag
+  private int back = 0;  // Index of the buffer the writer fills (only used by the writer)
+  private int front = 2; // Index of the buffer the reader reads (only used by the reader)
+
+  /**
+   * @param factory creates each of the three buffers
+   */
+  TripleBuffer(Supplier<T> factory) {
+    for (int i = 0; i < buffers.length; i++) { buffers[i] = factory.get(); }
+  }
+
+  /**
+   * @return the buffer to fill before the next publish() (only called by the writer)
+   */
+  @SuppressWarnings("unchecked")
+  T getBack() {
+    return (T) buffers[back];
+  }
+
+  /**
+   * Publishes the back buffer, and takes over the middle buffer as the new back buffer (only called by the writer)
+   */
+  void publish() {
+    back = middle.getAndSet(back | fresh) & ~fresh;
+  }
+
+  /**
+   * @return true if the reader has taken the last published buffer, i.e., a newly published buffer wouldn't replace
+   * one it has never seen (only called by the writer, e.g., to publish no faster than the reader reads)
+   */
+  boolean isTaken() {
+    return (middle.get() & fresh) == 0;
+  }
+
+  /**
+   * Takes the last published buffer as the front buffer, if one was published since the last call (only called by the
+   * reader)
+   * @return true if the front buffer changed
+   */
+  boolean update() {
+    if ((middle.get() & fresh) == 0) { return false; }
+    front = middle.getAndSet(front) & ~fresh;
+    return true;
+  }
+
+  /**
+   * @return the buffer last taken by update() (only called by the reader)
+   */
+  @SuppressWarnings("unchecked")
+  T getFront() {
+    return (T) buffers[front];
+  }
+
+}
@@ -0,0 +1,79 @@
+package swarms;
+
+import math.geom2d.line.LineSegment2D;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A wall closed (added) or opened (removed) at a given simulation time during a trial, e.g., a door shut mid-evacuation.
+ * Agents know about closed walls at once: the room's exit distances are repaired around the change (see
+ * Room.addWallAtRuntime() and Room.removeWallAtRuntime()).
+ *
+ * Scenarios list their wall changes as "time close|open x1 y1 x2 y2", separated by semicolons (commas would sweep
+ * them), e.g., "10.0 close 5.001 40.999 15.001 44.999; 70.0 open 5.001 40.999 15.001 44.999" shuts
+ * the GATES8 8100 stairwell door for a minute. An opened wall must be in the room by then, with the same endpoints.
+ * The live view shows the changes as they are made, but movies show the walls as they were when the trial started.
+ */
+class WallChange {
+
+  final double time;         // Simulation time at which the change is made
+  final boolean closes;      // If true, the wall is added; otherwise, it is removed
+  final LineSegment2D wall;
+  private final String text; // The change as given in the scenario (normalized), e.g., for checkpoint parameters
+
+  private WallChange(double time, boolean closes, double[] endpoints) {
+    this.time = time;
+    this.closes = closes;
+    this.wall = new LineSegment2D(endpoints[0], endpoints[1], endpoints[2], endpoints[3]);
+    this.text = time + " " + (closes ? "close" : "open") + " " + endpoints[0] + " " + endpoints[1] + " " + endpoints[2]
+        + " " + endpoints[3];
+  }
+
+  /**
+   * Makes the change in a built room, which no other thread may be using
+   */
+  void applyTo(Room room) {
+    if (closes) {
+      room.addWallAtRuntime(wall);
+    } else {
+      room.removeWallAtRuntime(wall);
+    }
+  }
+
+  /**
+   * @param text wall changes, in the format above, or an empty string for none
+   * @return the changes, in order of time (changes at the same time keep their order in the text)
+   */
+  static List<WallChange> parse(String text) {
+    List<WallChange> changes = new ArrayList<>();
+    for (String item : text.split(";")) {
+      if (item.trim().isEmpty()) { continue; }
+      String[] parts = item.trim().split("\\s+");
+      if (parts.length != 6 || !(parts[1].equals("close") || parts[1].equals("open"))) {
+        throw new IllegalArgumentException("Invalid wall change (expected \"time close|open x1 y1 x2 y2\"): " + item);
+      }
+      double time;
+      double[] endpoints = new double[4];
+      try {
+        time = Double.parseDouble(parts[0]);
+        for (int i = 0; i < 4; i++) { endpoints[i] = Double.parseDouble(parts[i + 2]); }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid number in wall change: " + item, e);
+      }
+      if (!(time >= 0.0 && Double.isFinite(time))) {
+        throw new IllegalArgumentException("Wall changes must be at non-negative times: " + item);
+      }
+      changes.add(new WallChange(time, parts[1].equals("close"), endpoints));
+    }
+    changes.sort((a, b) -> Double.compare(a.time, b.time));
+    return Collections.unmodifiableList(changes);
+  }
+
+  @Override
+  public String toString() {
+    return text;
+  }
+
+}
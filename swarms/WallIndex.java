@@ -0,0 +1,295 @@
+package swarms;
+
+import math.geom2d.line.LineSegment2D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A uniform grid of buckets over the walls of a room. Each wall is stored in every bucket it touches, so a query
+ * segment only needs to be tested against the walls in the buckets that it passes through, which are found by
+ * walking the grid along the segment (Amanatides-Woo traversal).
+ *
+ * Queries don't modify the index, so a single index can be shared by the room and all agents. Walls may also be added
+ * to or removed from a built room, but not while other threads are querying the index.
+ */
+class WallIndex {
+
+  private final ArrayList<LineSegment2D> walls = new ArrayList<>();
+  private double[] x1 = new double[16], y1 = new double[16], x2 = new double[16], y2 = new double[16];
+
+  private final double cellSize;
+  private double minX, minY, maxX, maxY; // Region covered by the buckets; this grows if a wall falls outside of it
+  private int nCellsX, nCellsY;
+  private int[][] buckets;   // IDs of the walls touching each bucket
+  private int[] bucketSizes; // Number of wall IDs stored in each bucket
+
+  /**
+   * @param minX left edge of the region initially covered by the index
+   * @param minY bottom edge of the region initially covered by the index
+   * @param maxX right edge of the region initially covered by the index
+   * @param maxY top edge of the region initially covered by the index
+   * @param cellSize side length of each (square) bucket
+   */
+  WallIndex(double minX, double minY, double maxX, double maxY, double cellSize) {
+    this.cellSize = cellSize;
+    resize(minX, minY, maxX, maxY);
+  }
+
+  /**
+   * Adds a wall to the index
+   * @param wall wall to add
+   * @return ID of the new wall
+   */
+  int add(LineSegment2D wall) {
+    int id = walls.size();
+    walls.add(wall);
+    if (id == x1.length) {
+      x1 = Arrays.copyOf(x1, 2 * id);
+      y1 = Arrays.copyOf(y1, 2 * id);
+      x2 = Arrays.copyOf(x2, 2 * id);
+      y2 = Arrays.copyOf(y2, 2 * id);
+    }
+    x1[id] = wall.firstPoint().x();
+    y1[id] = wall.firstPoint().y();
+    x2[id] = wall.lastPoint().x();
+    y2[id] = wall.lastPoint().y();
+
+    double wallMinX = Math.min(x1[id], x2[id]), wallMaxX = Math.max(x1[id], x2[id]);
+    double wallMinY = Math.min(y1[id], y2[id]), wallMaxY = Math.max(y1[id], y2[id]);
+    if (wallMinX < minX || wallMinY < minY || wallMaxX > maxX || wallMaxY > maxY) {
+      // Grow the covered region (by an extra bucket on each side) and re-insert all walls
+      resize(Math.min(minX, wallMinX - cellSize), Math.min(minY, wallMinY - cellSize),
+             Math.max(maxX, wallMaxX + cellSize), Math.max(maxY, wallMaxY + cellSize));
+    } else {
+      insert(id);
+    }
+    return id;
+  }
+
+  /**
+   * Removes a wall from the index. IDs aren't reused, so the IDs of the other walls don't change.
+   * @param wall wall to remove, matched by its endpoints
+   * @return ID of the removed wall, or -1 if the index has no such wall
+   */
+  int remove(LineSegment2D wall) {
+    for (int id = 0; id < walls.size(); id++) {
+      if (walls.get(id) != null
+          && x1[id] == wall.firstPoint().x() && y1[id] == wall.firstPoint().y()
+          && x2[id] == wall.lastPoint().x() && y2[id] == wall.lastPoint().y()) {
+        walls.set(id, null);
+        for (int bucket = 0; bucket < bucketSizes.length; bucket++) {
+          int size = 0;
+          for (int k = 0; k < bucketSizes[bucket]; k++) {
+            if (buckets[bucket][k] != id) { buckets[bucket][size++] = buckets[bucket][k]; }
+          }
+          bucketSizes[bucket] = size;
+        }
+        return id;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return number of wall IDs handed out, including those of removed walls
+   */
+  int size() {
+    return walls.size();
+  }
+
+  /**
+   * @return the wall with the given ID, or null if it has been removed
+   */
+  LineSegment2D get(int id) {
+    return walls.get(id);
+  }
+
+  // Endpoint coordinates of a wall, for callers that want to avoid LineSegment2D and Point2D objects
+  double getX1(int id) { return x1[id]; }
+
+  double getY1(int id) { return y1[id]; }
+
+  double getX2(int id) { return x2[id]; }
+
+  double getY2(int id) { return y2[id]; }
+
+  /**
+   * @return true if and only if some wall intersects the segment from (ax, ay) to (bx, by)
+   */
+  boolean intersectsAny(double ax, double ay, double bx, double by) {
+    return findIntersecting(ax, ay, bx, by, null, null) >= 0;
+  }
+
+  /**
+   * @param ignoredWalls IDs of walls to leave out of the test (e.g., walls that agents don't know about)
+   * @return true if and only if some wall, other than the ignored ones, intersects the segment from (ax, ay) to (bx, by)
+   */
+  boolean intersectsAny(double ax, double ay, double bx, double by, BitSet ignoredWalls) {
+    return findIntersecting(ax, ay, bx, by, null, ignoredWalls) >= 0;
+  }
+
+  /**
+   * Finds the wall crossing the segment from (ax, ay) to (bx, by) nearest to (ax, ay)
+   * @param crossing length-2 array into which the coordinates of the crossing point are written
+   * @return ID of the nearest crossing wall, or -1 if no wall crosses the segment
+   */
+  int getFirstIntersecting(double ax, double ay, double bx, double by, double[] crossing) {
+    return findIntersecting(ax, ay, bx, by, crossing, null);
+  }
+
+  /**
+   * Walks the buckets along the segment from (ax, ay) to (bx, by), testing each wall they contain.
+   * @param crossing if null, return the first intersecting wall found; otherwise, find the wall whose crossing point is
+   *                 nearest to (ax, ay) and write that point into crossing
+   * @param ignoredWalls IDs of walls not to test, or null to test all walls
+   * @return ID of the intersecting wall found, or -1 if there is none
+   */
+  private int findIntersecting(double ax, double ay, double bx, double by, double[] crossing, BitSet ignoredWalls) {
+    double dx = bx - ax, dy = by - ay;
+
+    // Clip the segment to the covered region; no walls lie outside of it
+    double tStart = Math.max(getSlabEntry(ax, dx, minX, maxX), getSlabEntry(ay, dy, minY, maxY));
+    double tEnd = Math.min(getSlabExit(ax, dx, minX, maxX), getSlabExit(ay, dy, minY, maxY));
+    if (tStart > tEnd) { return -1; }
+
+    int i = getCellX(ax + tStart * dx), j = getCellY(ay + tStart * dy);
+    int iEnd = getCellX(ax + tEnd * dx), jEnd = getCellY(ay + tEnd * dy);
+    int stepX = (dx > 0.0) ? 1 : -1, stepY = (dy > 0.0) ? 1 : -1;
+    // Values of the segment parameter at which the segment crosses the next vertical and horizontal bucket boundaries
+    double tMaxX = (dx == 0.0) ? Double.POSITIVE_INFINITY : (minX + (i + (stepX > 0 ? 1 : 0)) * cellSize - ax) / dx;
+    double tMaxY = (dy == 0.0) ? Double.POSITIVE_INFINITY : (minY + (j + (stepY > 0 ? 1 : 0)) * cellSize - ay) / dy;
+    double tDeltaX = (dx == 0.0) ? Double.POSITIVE_INFINITY : cellSize / Math.abs(dx);
+    double tDeltaY = (dy == 0.0) ? Double.POSITIVE_INFINITY : cellSize / Math.abs(dy);
+
+    int nearestWall = -1;
+    double nearestDistance = Double.POSITIVE_INFINITY;
+    for (int step = 0; step <= nCellsX + nCellsY; step++) {
+      int bucket = i * nCellsY + j;
+      for (int k = 0; k < bucketSizes[bucket]; k++) {
+        int id = buckets[bucket][k];
+        if (ignoredWalls != null && ignoredWalls.get(id)) { continue; }
+        if (segmentsIntersect(x1[id], y1[id], x2[id], y2[id], ax, ay, bx, by)) {
+          if (crossing == null) { return id; }
+          // Find where the line through the wall meets the line through the segment, in the same way as
+          // LineSegment2D.getIntersection(wall, segment); (nearly) parallel lines have no crossing point
+          double wdx = x2[id] - x1[id], wdy = y2[id] - y1[id];
+          double denominator = wdx * dy - wdy * dx;
+          if (Math.abs(denominator) >= 1e-12) {
+            double t = ((y1[id] - ay) * dx - (x1[id] - ax) * dy) / denominator;
+            double crossingX = x1[id] + t * wdx, crossingY = y1[id] + t * wdy;
+            double distance = Math.hypot(crossingX - ax, crossingY - ay);
+            if (distance < nearestDistance) {
+              nearestDistance = distance;
+              nearestWall = id;
+              crossing[0] = crossingX;
+              crossing[1] = crossingY;
+            }
+          }
+        }
+      }
+      if (i == iEnd && j == jEnd) { break; }
+      if (tMaxX < tMaxY) {
+        i += stepX;
+        tMaxX += tDeltaX;
+      } else {
+        j += stepY;
+        tMaxY += tDeltaY;
+      }
+      if (i < 0 || i >= nCellsX || j < 0 || j >= nCellsY) { break; }
+    }
+    return nearestWall;
+  }
+
+  /**
+   * Tests whether two segments intersect, with the same conventions (including for touching and collinear segments)
+   * as LineSegment2D.intersects()
+   */
+  static boolean segmentsIntersect(double ax1, double ay1, double ax2, double ay2,
+                                   double bx1, double by1, double bx2, double by2) {
+    return ccw(ax1, ay1, ax2, ay2, bx1, by1) * ccw(ax1, ay1, ax2, ay2, bx2, by2) <= 0
+        && ccw(bx1, by1, bx2, by2, ax1, ay1) * ccw(bx1, by1, bx2, by2, ax2, ay2) <= 0;
+  }
+
+  /**
+   * Orientation of the point triple, as in Point2D.ccw(): 1 for counterclockwise, -1 for clockwise, and, for collinear
+   * points, 0 if (x3, y3) lies between the other two points
+   */
+  private static int ccw(double x1, double y1, double x2, double y2, double x3, double y3) {
+    double dx1 = x2 - x1, dy1 = y2 - y1;
+    double dx2 = x3 - x1, dy2 = y3 - y1;
+    if (dx1 * dy2 > dy1 * dx2) { return 1; }
+    if (dx1 * dy2 < dy1 * dx2) { return -1; }
+    if (dx1 * dx2 < 0.0 || dy1 * dy2 < 0.0) { return -1; }
+    if (Math.hypot(dx1, dy1) < Math.hypot(dx2, dy2)) { return 1; }
+    return 0;
+  }
+
+  /**
+   * @return smallest parameter t in [0, 1] for which a + t * d lies in [lo, hi] (or more than 1 if there is none)
+   */
+  private static double getSlabEntry(double a, double d, double lo, double hi) {
+    if (d == 0.0) { return (lo <= a && a <= hi) ? 0.0 : Double.POSITIVE_INFINITY; }
+    return Math.max(0.0, Math.min((lo - a) / d, (hi - a) / d));
+  }
+
+  /**
+   * @return largest parameter t in [0, 1] for which a + t * d lies in [lo, hi] (or less than 0 if there is none)
+   */
+  private static double getSlabExit(double a, double d, double lo, double hi) {
+    if (d == 0.0) { return (lo <= a && a <= hi) ? 1.0 : Double.NEGATIVE_INFINITY; }
+    return Math.min(1.0, Math.max((lo - a) / d, (hi - a) / d));
+  }
+
+  private void resize(double minX, double minY, double maxX, double maxY) {
+    this.minX = minX;
+    this.minY = minY;
+    nCellsX = 1 + (int) ((maxX - minX) / cellSize);
+    nCellsY = 1 + (int) ((maxY - minY) / cellSize);
+    this.maxX = minX + nCellsX * cellSize;
+    this.maxY = minY + nCellsY * cellSize;
+    buckets = new int[nCellsX * nCellsY][];
+    bucketSizes = new int[nCellsX * nCellsY];
+    for (int id = 0; id < walls.size(); id++) {
+      if (walls.get(id) != null) { insert(id); }
+    }
+  }
+
+  /**
+   * Adds the wall to every bucket that it touches. Buckets are slightly padded, so that queries that pass exactly
+   * through a bucket corner (and so skip one of the buckets around it) still find the wall.
+   */
+  private void insert(int id) {
+    double padding = 1e-6 * cellSize;
+    double dx = x2[id] - x1[id], dy = y2[id] - y1[id];
+    int loX = getCellX(Math.min(x1[id], x2[id]) - padding), hiX = getCellX(Math.max(x1[id], x2[id]) + padding);
+    int loY = getCellY(Math.min(y1[id], y2[id]) - padding), hiY = getCellY(Math.max(y1[id], y2[id]) + padding);
+    for (int i = loX; i <= hiX; i++) {
+      for (int j = loY; j <= hiY; j++) {
+        double left = minX + i * cellSize - padding, right = minX + (i + 1) * cellSize + padding;
+        double bottom = minY + j * cellSize - padding, top = minY + (j + 1) * cellSize + padding;
+        double tEntry = Math.max(getSlabEntry(x1[id], dx, left, right), getSlabEntry(y1[id], dy, bottom, top));
+        double tExit = Math.min(getSlabExit(x1[id], dx, left, right), getSlabExit(y1[id], dy, bottom, top));
+        if (tEntry <= tExit) {
+          int bucket = i * nCellsY + j;
+          if (buckets[bucket] == null) {
+            buckets[bucket] = new int[4];
+          } else if (bucketSizes[bucket] == buckets[bucket].length) {
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], 2 * bucketSizes[bucket]);
+          }
+          buckets[bucket][bucketSizes[bucket]++] = id;
+        }
+      }
+    }
+  }
+
+  private int getCellX(double x) {
+    return Math.max(0, Math.min(nCellsX - 1, (int) Math.floor((x - minX) / cellSize)));
+  }
+
+  private int getCellY(double y) {
+    return Math.max(0, Math.min(nCellsY - 1, (int) Math.floor((y - minY) / cellSize)));
+  }
+
+}